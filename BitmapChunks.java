@@ -0,0 +1,97 @@
+package baydroid.android_pan_zoom_bitmap_view.util;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+
+
+/**
+ * An in-memory bitmap too large to draw in one piece (larger than the canvas's maximum bitmap size, which for hardware
+ * accelerated canvases is the maximum GPU texture size), copied once into chunks small enough to draw, so that each
+ * frame draws only the chunks under the visible part of the view.
+ */
+class BitmapChunks
+    {
+    /**
+     * The maximum bitmap width and height assumed if the canvas doesn't say.
+     */
+    static final int DEFAULT_MAX_BITMAP_SIZE = 4096;
+
+    private final int chunkSize;     // Chunk width and height (in bitmap pixels). Chunks along the right and bottom edges may be smaller.
+    private final int cols;          // Number of columns of chunks.
+    private final int rows;          // Number of rows of chunks.
+    private final Bitmap[] chunks;   // The chunks, row by row.
+    private final Rect srcR = new Rect(); // The part of a chunk being drawn (in chunk pixel co-ordinates).
+    private final Rect dstR = new Rect(); // Where it's drawn (in bitmap pixel co-ordinates).
+
+    /**
+     * Is a bitmap too large to draw in one piece?
+     * @param bm The bitmap.
+     * @param maxBitmapSize The maximum width and height of a bitmap the canvas can draw.
+     * @return True if the bitmap needs chunking, false otherwise.
+     */
+    static boolean isOversized(Bitmap bm, int maxBitmapSize)
+        {
+        return bm.getWidth() > maxBitmapSize || bm.getHeight() > maxBitmapSize;
+        }
+
+    /**
+     * Get the maximum bitmap width and height a canvas can draw.
+     * @param cvs The canvas.
+     * @return The maximum bitmap width and height.
+     */
+    static int maxBitmapSize(Canvas cvs)
+        {
+        int max = Math.min(cvs.getMaximumBitmapWidth(), cvs.getMaximumBitmapHeight());
+        return max > 0 ? max : DEFAULT_MAX_BITMAP_SIZE;
+        }
+
+    /**
+     * Copy a bitmap into chunks.
+     * @param src The bitmap.
+     * @param chunkSize The maximum width and height of a chunk.
+     */
+    BitmapChunks(Bitmap src, int chunkSize)
+        {
+        this.chunkSize = chunkSize;
+        int w = src.getWidth();
+        int h = src.getHeight();
+        cols = (w + chunkSize - 1)/chunkSize;
+        rows = (h + chunkSize - 1)/chunkSize;
+        chunks = new Bitmap[cols*rows];
+        for (int row = 0; row < rows; row++)
+            for (int col = 0; col < cols; col++)
+                {
+                int left = col*chunkSize;
+                int top = row*chunkSize;
+                chunks[row*cols + col] = Bitmap.createBitmap(src, left, top, Math.min(chunkSize, w - left), Math.min(chunkSize, h - top));
+                }
+        }
+
+    /**
+     * Draw a region of the bitmap from the chunks intersecting it, with the canvas already transformed to bitmap pixel co-ordinates.
+     * @param cvs The canvas.
+     * @param bmR The region (in bitmap pixel co-ordinates).
+     * @param paint The paint to draw with.
+     */
+    void draw(Canvas cvs, Rect bmR, Paint paint)
+        {
+        if (bmR.right <= bmR.left || bmR.bottom <= bmR.top) return;
+        int firstCol = Math.max(0, bmR.left/chunkSize);
+        int lastCol = Math.min(cols - 1, (bmR.right - 1)/chunkSize);
+        int firstRow = Math.max(0, bmR.top/chunkSize);
+        int lastRow = Math.min(rows - 1, (bmR.bottom - 1)/chunkSize);
+        for (int row = firstRow; row <= lastRow; row++)
+            for (int col = firstCol; col <= lastCol; col++)
+                {
+                Bitmap chunk = chunks[row*cols + col];
+                int left = col*chunkSize;
+                int top = row*chunkSize;
+                dstR.set(Math.max(left, bmR.left), Math.max(top, bmR.top), Math.min(left + chunk.getWidth(), bmR.right), Math.min(top + chunk.getHeight(), bmR.bottom));
+                srcR.set(dstR.left - left, dstR.top - top, dstR.right - left, dstR.bottom - top);
+                cvs.drawBitmap(chunk, srcR, dstR, paint);
+                }
+        }
+    }
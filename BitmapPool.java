@@ -0,0 +1,199 @@
+package baydroid.android_pan_zoom_bitmap_view.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.util.ArrayList;
+
+
+
+/**
+ * A pool of mutable bitmaps no longer in use (evicted tiles and pyramid levels, replaced images) for decoding into
+ * through BitmapFactory.Options.inBitmap, so that once the pool has warmed up panning and switching images allocate no
+ * new bitmaps. Bitmaps are matched on width, height and config; from KitKat on, a larger bitmap of the same config is
+ * reconfigured when there's no exact match. The pool holds at most a given number of bytes, recycling the bitmaps put
+ * least recently once it's full. All methods are thread safe.
+ * <p>
+ * A bitmap put in the pool must no longer be drawn or referenced anywhere else, as its pixels will be overwritten.
+ * <p>
+ * Registered with a MemoryBudget, the pool's byte cap follows its share of the budget.
+ */
+public class BitmapPool implements MemoryBudget.Client
+    {
+    /**
+     * The default maximum number of bytes of bitmaps to hold.
+     */
+    public static final int DEFAULT_MAX_BYTES = 16*1024*1024;
+
+    private final ArrayList<Bitmap> bitmaps = new ArrayList<Bitmap>(); // The pooled bitmaps, least recently put first.
+    private int maxBytes;                                              // The byte budget.
+    private long totalBytes = 0;                                       // Sum of the pooled bitmaps' allocation sizes.
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Create a bitmap pool.
+     * @param maxBytes The maximum number of bytes of bitmaps to hold.
+     */
+    public BitmapPool(int maxBytes)
+        {
+        this.maxBytes = maxBytes;
+        }
+
+    /**
+     * Take a bitmap out of the pool.
+     * @param width The width wanted.
+     * @param height The height wanted.
+     * @param config The config wanted.
+     * @return A bitmap of the given width, height and config, with undefined contents, or null if the pool has none suitable.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config)
+        {
+        if (width <= 0 || height <= 0 || config == null || PixelFormats.isHardware(config))
+            {
+            misses++;
+            return null;
+            }
+        int best = -1;
+        long needed = ((long)width)*height*PixelFormats.bytesPerPixel(config);
+        boolean canReconfigure = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+        for (int i = bitmaps.size() - 1; i >= 0; i--)
+            {
+            Bitmap bm = bitmaps.get(i);
+            if (bm.getConfig() != config) continue;
+            if (bm.getWidth() == width && bm.getHeight() == height)
+                {
+                best = i;
+                break;
+                }
+            if (canReconfigure && allocationByteCount(bm) >= needed && (best < 0 || allocationByteCount(bm) < allocationByteCount(bitmaps.get(best))))
+                best = i;
+            }
+        if (best < 0)
+            {
+            misses++;
+            return null;
+            }
+        hits++;
+        Bitmap bm = bitmaps.remove(best);
+        totalBytes -= allocationByteCount(bm);
+        if (bm.getWidth() != width || bm.getHeight() != height) bm.reconfigure(width, height, config);
+        return bm;
+        }
+
+    /**
+     * Put a bitmap no longer in use in the pool. Bitmaps which are recycled, immutable or HARDWARE are ignored.
+     * @param bm The bitmap.
+     */
+    public void put(Bitmap bm)
+        {
+        if (bm == null || bm.isRecycled() || !bm.isMutable() || bm.getConfig() == null || PixelFormats.isHardware(bm.getConfig())) return;
+        synchronized (this)
+            {
+            if (bitmaps.contains(bm)) return;
+            bitmaps.add(bm);
+            totalBytes += allocationByteCount(bm);
+            trim();
+            }
+        }
+
+    /**
+     * Set up decoding options to decode into a pooled bitmap, if there's a suitable one, and to decode a mutable bitmap
+     * which can be pooled in its turn. If the decode then fails with an IllegalArgumentException (the pooled bitmap
+     * wasn't suitable after all), call putBack() and decode again.
+     * @param opts The decoding options. inPreferredConfig is used as the config, ARGB_8888 if it's null.
+     * @param width The width the image will be decoded to.
+     * @param height The height the image will be decoded to.
+     */
+    public void prepare(BitmapFactory.Options opts, int width, int height)
+        {
+        opts.inMutable = true;
+        opts.inBitmap = get(width, height, opts.inPreferredConfig != null ? opts.inPreferredConfig : Bitmap.Config.ARGB_8888);
+        }
+
+    /**
+     * Return the bitmap prepare() set up the decoding options with to the pool, and clear it from the options.
+     * @param opts The decoding options.
+     */
+    public void putBack(BitmapFactory.Options opts)
+        {
+        Bitmap bm = opts.inBitmap;
+        opts.inBitmap = null;
+        put(bm);
+        }
+
+    /**
+     * Change the maximum number of bytes of bitmaps to hold, recycling bitmaps if need be.
+     * @param maxBytes The maximum number of bytes of bitmaps to hold.
+     */
+    public synchronized void setMaxBytes(int maxBytes)
+        {
+        this.maxBytes = maxBytes;
+        trim();
+        }
+
+    public void onBudgetChanged(int maxBytes)
+        {
+        setMaxBytes(maxBytes);
+        }
+
+    /**
+     * @return The maximum number of bytes of bitmaps the pool holds.
+     */
+    public synchronized int getMaxBytes()
+        {
+        return maxBytes;
+        }
+
+    /**
+     * @return The number of bytes of bitmaps in the pool.
+     */
+    public synchronized long getSizeBytes()
+        {
+        return totalBytes;
+        }
+
+    /**
+     * @return The number of get() calls which found a suitable bitmap.
+     */
+    public synchronized long getHitCount()
+        {
+        return hits;
+        }
+
+    /**
+     * @return The number of get() calls which didn't find a suitable bitmap.
+     */
+    public synchronized long getMissCount()
+        {
+        return misses;
+        }
+
+    /**
+     * Recycle all the bitmaps in the pool.
+     */
+    public synchronized void clear()
+        {
+        for (int i = 0; i < bitmaps.size(); i++) bitmaps.get(i).recycle();
+        bitmaps.clear();
+        totalBytes = 0;
+        }
+
+    // Must hold the monitor.
+    private void trim()
+        {
+        while (totalBytes > maxBytes && !bitmaps.isEmpty())
+            {
+            Bitmap bm = bitmaps.remove(0);
+            totalBytes -= allocationByteCount(bm);
+            bm.recycle();
+            }
+        }
+
+    // The bytes a bitmap's pixels take up. Before KitKat a bitmap can't be reconfigured, so that's its byte count.
+    private static int allocationByteCount(Bitmap bm)
+        {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT ? bm.getAllocationByteCount() : bm.getByteCount();
+        }
+    }
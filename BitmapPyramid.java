@@ -0,0 +1,279 @@
+package baydroid.android_pan_zoom_bitmap_view.util;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+
+
+/**
+ * Power-of-two subsampled copies (pyramid levels) of an in-memory bitmap, built lazily the first time each one is
+ * needed and held in an LRU cache with a byte budget, so that levels not drawn recently are evicted first. With a
+ * BitmapPool, levels are built in pooled bitmaps and returned to the pool when they're evicted, by way of the view's
+ * BitmapReleaseQueue so that a level isn't reused while the last frame drawn may still show it.
+ * <p>
+ * Levels are built on the UI thread when drawing needs one, and on the loader thread ahead of time, so building a level
+ * and caching it (which can evict another, perhaps the one being built from) is done holding the pyramid's lock. The
+ * loader thread waits for a level being built on the UI thread, but drawing doesn't wait for the loader thread: with
+ * tryGetLevel() it draws another level that's cached while the lock's busy. Reading a cached level doesn't take the
+ * lock.
+ * <p>
+ * Levels are built in the cheapest config the pixel format setting allows, which may be cheaper than the base
+ * bitmap's (e.g. RGB_565 levels of an opaque ARGB_8888 bitmap a caller decoded).
+ */
+class BitmapPyramid
+    {
+    /**
+     * The default byte budget for the cache of subsampled levels.
+     */
+    static final int DEFAULT_CACHE_BYTES = 16*1024*1024;
+
+    private final Bitmap base;        // The full resolution bitmap (sample size 1), which is never evicted.
+    private final LevelCache levels;  // The subsampled levels, keyed by sample size.
+    private final BitmapPool pool;    // Where levels are built in and evicted to, or null for none.
+    private final BitmapReleaseQueue releaseQueue; // Holds evicted levels back from the pool until they're off screen.
+    private final PanZoomBitmapView.PixelFormat format;
+    private volatile Bitmap.Config levelConfig = null; // The config levels are built in, chosen when the first one's built.
+    private volatile int prefetchingSampleSize = 0; // The level being built on the loader thread, if any.
+    private final ReentrantLock lock = new ReentrantLock(); // Held while building a level.
+    private boolean released = false; // Whether or not the view has let go of the pyramid (and maybe base). Guarded by lock.
+
+    BitmapPyramid(Bitmap base, int cacheBytes, BitmapPool pool, BitmapReleaseQueue releaseQueue, PanZoomBitmapView.PixelFormat format)
+        {
+        this.base = base;
+        this.pool = pool;
+        this.releaseQueue = releaseQueue;
+        this.format = format;
+        levels = new LevelCache(cacheBytes);
+        }
+
+    Bitmap getBase()
+        {
+        return base;
+        }
+
+    /**
+     * Get a pyramid level, building it if it isn't already in the cache.
+     * @param sampleSize The sample size (a power of 2), 1 for the full resolution bitmap.
+     * @return The level's bitmap, roughly 1/sampleSize the width and height of the full resolution bitmap, or null if the pyramid's been released.
+     */
+    Bitmap getLevel(int sampleSize)
+        {
+        if (sampleSize <= 1) return base;
+        lock.lock();
+        try
+            {
+            return buildLevel(sampleSize);
+            }
+        finally
+            {
+            lock.unlock();
+            }
+        }
+
+    /**
+     * Get a pyramid level, building it if it isn't already in the cache, unless another thread is building a level, in
+     * which case this doesn't wait for it. For drawing, which would rather draw another level than stall.
+     * @param sampleSize The sample size (a power of 2), 1 for the full resolution bitmap.
+     * @return The level's bitmap, or null if it isn't in the cache and another thread is building a level.
+     */
+    Bitmap tryGetLevel(int sampleSize)
+        {
+        if (sampleSize <= 1) return base;
+        Bitmap level = levels.get(sampleSize);
+        if (level != null || !lock.tryLock()) return level;
+        try
+            {
+            return buildLevel(sampleSize);
+            }
+        finally
+            {
+            lock.unlock();
+            }
+        }
+
+    // Must hold lock.
+    private Bitmap buildLevel(int sampleSize)
+        {
+        if (released) return null; // Base may be in the pool by now.
+        Integer key = sampleSize;
+        Bitmap level = levels.get(key);
+        if (level == null)
+            {
+            Bitmap src = base;
+            for (int s = sampleSize/2; s > 1; s /= 2)
+                {
+                Bitmap finer = levels.get(s);
+                if (finer != null)
+                    {
+                    src = finer;
+                    break;
+                    }
+                }
+            int w = Math.max(1, base.getWidth()/sampleSize);
+            int h = Math.max(1, base.getHeight()/sampleSize);
+            Bitmap.Config config = getLevelConfig();
+            level = pool != null ? pool.get(w, h, config) : null;
+            if (level == null && config != src.getConfig() && !PixelFormats.isHardware(config)) level = Bitmap.createBitmap(w, h, config);
+            if (level != null)
+                PixelFormats.drawScaled(src, level);
+            else
+                level = Bitmap.createScaledBitmap(src, w, h, true); // Also copes with HARDWARE bitmaps, which can't be drawn into a software canvas.
+            levels.put(key, level);
+            }
+        return level;
+        }
+
+    /**
+     * Get a pyramid level if it's in the cache, without building it.
+     * @param sampleSize The sample size (a power of 2), 1 for the full resolution bitmap.
+     * @return The level's bitmap, or null if it isn't in the cache.
+     */
+    Bitmap getCachedLevel(int sampleSize)
+        {
+        return sampleSize <= 1 ? base : levels.get(sampleSize);
+        }
+
+    /**
+     * Build a pyramid level on the loader thread, if it isn't already in the cache, so that it's ready when needed.
+     * @param sampleSize The sample size (a power of 2).
+     */
+    void prefetchLevel(final int sampleSize)
+        {
+        if (sampleSize <= 1 || sampleSize == prefetchingSampleSize || levels.get(sampleSize) != null) return;
+        prefetchingSampleSize = sampleSize;
+        ImageLoader.execute
+            (
+            new Runnable()
+                {
+
+                public void run()
+                    {
+                    try
+                        {
+                        getLevel(sampleSize);
+                        }
+                    catch (OutOfMemoryError e)
+                        {
+                        // Built on the UI thread when it's drawn, if there's the memory by then.
+                        }
+                    catch (RuntimeException e)
+                        {
+                        // Likewise, rather than kill the loader thread.
+                        }
+                    finally
+                        {
+                        prefetchingSampleSize = 0;
+                        }
+                    }
+
+                }
+            );
+        }
+
+    /**
+     * Change the byte budget for the cache of subsampled levels, evicting levels if need be.
+     * @param cacheBytes The maximum number of bytes of levels to hold.
+     */
+    void setCacheBytes(int cacheBytes)
+        {
+        lock.lock();
+        try
+            {
+            levels.resize(cacheBytes);
+            }
+        finally
+            {
+            lock.unlock();
+            }
+        }
+
+    /**
+     * Get the smallest byte budget which doesn't have a level evicted as soon as it's built.
+     * @return The size of the largest subsampled level (in bytes).
+     */
+    int getMinCacheBytes()
+        {
+        return (int)Math.max(1L, ((long)base.getWidth())*base.getHeight()*PixelFormats.bytesPerPixel(getLevelConfig())/4);
+        }
+
+    /**
+     * Get how many bytes the cached levels save over the same levels in ARGB_8888.
+     * @return The bytes saved.
+     */
+    long getSavedBytes()
+        {
+        long saved = 0;
+        for (Bitmap level : levels.snapshot().values()) saved += PixelFormats.savedBytes(level);
+        return saved;
+        }
+
+    // Choose the config levels are built in, examining the base bitmap the first time if the format setting calls for it.
+    private Bitmap.Config getLevelConfig()
+        {
+        Bitmap.Config config = levelConfig;
+        if (config == null)
+            {
+            Bitmap.Config baseConfig = base.getConfig();
+            if (baseConfig == Bitmap.Config.ARGB_8888 && format != PanZoomBitmapView.PixelFormat.ARGB_8888)
+                config = PixelFormats.choose(format, base, false);
+            else
+                config = baseConfig != null ? baseConfig : Bitmap.Config.ARGB_8888;
+            levelConfig = config;
+            }
+        return config;
+        }
+
+    /**
+     * Evict all the subsampled levels.
+     */
+    void clear()
+        {
+        lock.lock();
+        try
+            {
+            levels.evictAll();
+            }
+        finally
+            {
+            lock.unlock();
+            }
+        }
+
+    /**
+     * Let go of the pyramid for good, before the base bitmap is released: evict all the subsampled levels, and build no
+     * more. Waits for a level being built on the loader thread, which may be reading the base bitmap, to be done.
+     */
+    void release()
+        {
+        lock.lock();
+        try
+            {
+            released = true;
+            levels.evictAll();
+            }
+        finally
+            {
+            lock.unlock();
+            }
+        }
+
+    private class LevelCache extends LruCache<Integer, Bitmap>
+        {
+        LevelCache(int maxBytes)
+            {
+            super(maxBytes);
+            }
+
+        protected int sizeOf(Integer key, Bitmap level)
+            {
+            return level.getByteCount();
+            }
+
+        protected void entryRemoved(boolean evicted, Integer key, Bitmap oldLevel, Bitmap newLevel)
+            {
+            if (oldLevel != newLevel) releaseQueue.release(oldLevel, pool);
+            }
+        }
+    }
@@ -0,0 +1,82 @@
+package baydroid.android_pan_zoom_bitmap_view.util;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+
+
+
+/**
+ * Bitmaps on their way from a view's caches (evicted tiles and pyramid levels, replaced images) to a BitmapPool, held
+ * back until the view has drawn a frame without them. With hardware acceleration the display list of the last frame
+ * drawn can still refer to a bitmap after the view lets go of it, so pooling it straight away could have the next
+ * inBitmap decode overwrite pixels the render thread is still drawing. A bitmap released before a frame starts isn't
+ * drawn in that frame, so it's safe to pool once the frame after has started: by then the render thread has been
+ * handed the frame without it in place of the last one with it. All methods are thread safe.
+ */
+class BitmapReleaseQueue
+    {
+    private final ArrayList<Bitmap> released = new ArrayList<Bitmap>();         // Released since the current frame started, so maybe drawn in it.
+    private final ArrayList<BitmapPool> releasedPools = new ArrayList<BitmapPool>(); // The pool each of released goes to.
+    private final ArrayList<Bitmap> retired = new ArrayList<Bitmap>();          // Released before the current frame started, so not drawn in it.
+    private final ArrayList<BitmapPool> retiredPools = new ArrayList<BitmapPool>();
+
+    /**
+     * Queue a bitmap the view no longer uses for putting in a pool once no frame the render thread has can draw it.
+     * @param bm The bitmap.
+     * @param pool The pool to put it in.
+     */
+    synchronized void release(Bitmap bm, BitmapPool pool)
+        {
+        if (bm == null || pool == null) return;
+        released.add(bm);
+        releasedPools.add(pool);
+        }
+
+    /**
+     * Start a new frame, putting the bitmaps released before the last frame started in their pools. Call at the start
+     * of each onDraw().
+     */
+    void beginFrame()
+        {
+        synchronized (this)
+            {
+            if (released.isEmpty() && retired.isEmpty()) return;
+            }
+        for (;;)
+            {
+            Bitmap bm;
+            BitmapPool pool;
+            synchronized (this)
+                {
+                int last = retired.size() - 1;
+                if (last < 0)
+                    {
+                    for (int i = 0; i < released.size(); i++) // Not addAll(), which allocates.
+                        {
+                        retired.add(released.get(i));
+                        retiredPools.add(releasedPools.get(i));
+                        }
+                    released.clear();
+                    releasedPools.clear();
+                    return;
+                    }
+                bm = retired.remove(last);
+                pool = retiredPools.remove(last);
+                }
+            pool.put(bm); // Outside the lock, as the pool takes its own.
+            }
+        }
+
+    /**
+     * Let go of all the queued bitmaps without pooling them, e.g. when memory's short: they're garbage collected once
+     * the render thread lets go of them too.
+     */
+    synchronized void clear()
+        {
+        released.clear();
+        releasedPools.clear();
+        retired.clear();
+        retiredPools.clear();
+        }
+    }
@@ -0,0 +1,145 @@
+package baydroid.android_pan_zoom_bitmap_view.util;
+
+
+
+/**
+ * Time based fling physics: constant deceleration along the direction of the fling, integrated exactly from the fling's
+ * start time to each frame time, so that the distance travelled is right however irregular the frame times are
+ * (including dropped frames). Free of any android dependency, and allocation free.
+ */
+public class FlingEngine
+    {
+    /**
+     * The default deceleration (in view pixels per second per second), the same as the original fixed 30ms frame
+     * fling, which lost 10 pixels per frame of speed every frame.
+     */
+    public static final float DEFAULT_DECELERATION = 10.0f/(0.030f*0.030f);
+    /**
+     * Flings slower than this (in view pixels per second) are ignored. As with the original fixed 30ms frame fling,
+     * that's less than a pixel per frame.
+     */
+    public static final float MIN_VELOCITY = 1.0f/0.030f;
+
+    private static final float NANOS_PER_SECOND = 1.0e9f;
+
+    private float deceleration = DEFAULT_DECELERATION; // In view pixels per second per second.
+    private boolean active = false;                     // Whether or not there's a fling in progress.
+    private long startNanos;                            // When the fling started (System.nanoTime() time base).
+    private float directionX;                           // Unit vector of the direction of travel.
+    private float directionY;
+    private float startSpeed;                           // Speed at the start of the fling (in view pixels per second).
+    private float duration;                             // Time from the start to the end of the fling (in seconds).
+    private float travelled;                            // Distance travelled as of the last step (in view pixels).
+    private float stepDeltaX;                           // Distance travelled during the last step (in view pixels).
+    private float stepDeltaY;
+
+    /**
+     * Set the deceleration used by subsequent flings.
+     * @param deceleration The deceleration (in view pixels per second per second).
+     */
+    public void setDeceleration(float deceleration)
+        {
+        if (deceleration <= 0.0f) throw new IllegalArgumentException("deceleration must be positive");
+        this.deceleration = deceleration;
+        }
+
+    /**
+     * Start a fling.
+     * @param velocityX Horizontal velocity (in view pixels per second).
+     * @param velocityY Vertical velocity (in view pixels per second).
+     * @param startNanos The start time of the fling (System.nanoTime() time base, as with Choreographer frame times).
+     * @return True if the fling started, false if it was too slow to bother with.
+     */
+    public boolean start(float velocityX, float velocityY, long startNanos)
+        {
+        float speed = (float)Math.sqrt(velocityX*velocityX + velocityY*velocityY);
+        if (speed < MIN_VELOCITY)
+            {
+            stop();
+            return false;
+            }
+        active = true;
+        this.startNanos = startNanos;
+        directionX = velocityX/speed;
+        directionY = velocityY/speed;
+        startSpeed = speed;
+        duration = speed/deceleration;
+        travelled = 0.0f;
+        stepDeltaX = stepDeltaY = 0.0f;
+        return true;
+        }
+
+    /**
+     * Stop any fling in progress.
+     */
+    public void stop()
+        {
+        active = false;
+        stepDeltaX = stepDeltaY = 0.0f;
+        }
+
+    /**
+     * Is there a fling in progress?
+     * @return True if there's a fling in progress, false otherwise.
+     */
+    public boolean isActive()
+        {
+        return active;
+        }
+
+    /**
+     * Advance the fling to a frame time. The distance travelled since the previous step is then available from
+     * getStepDeltaX() and getStepDeltaY().
+     * @param frameNanos The frame time (System.nanoTime() time base).
+     * @return True if the fling is still in progress after this step, false if it's come to rest.
+     */
+    public boolean step(long frameNanos)
+        {
+        if (!active) return false;
+        float t = (frameNanos - startNanos)/NANOS_PER_SECOND;
+        if (t < 0.0f) t = 0.0f;
+        if (t >= duration)
+            {
+            t = duration;
+            active = false;
+            }
+        float distance = startSpeed*t - 0.5f*deceleration*t*t;
+        float delta = distance - travelled;
+        travelled = distance;
+        stepDeltaX = delta*directionX;
+        stepDeltaY = delta*directionY;
+        return active;
+        }
+
+    /**
+     * @return The horizontal distance travelled during the last step (in view pixels).
+     */
+    public float getStepDeltaX()
+        {
+        return stepDeltaX;
+        }
+
+    /**
+     * @return The vertical distance travelled during the last step (in view pixels).
+     */
+    public float getStepDeltaY()
+        {
+        return stepDeltaY;
+        }
+
+    /**
+     * @return The horizontal distance still to travel from the last step to where the fling comes to rest (in view pixels).
+     */
+    public float getRemainingDeltaX()
+        {
+        return active ? (startSpeed*duration*0.5f - travelled)*directionX : 0.0f;
+        }
+
+    /**
+     * @return The vertical distance still to travel from the last step to where the fling comes to rest (in view pixels).
+     */
+    public float getRemainingDeltaY()
+        {
+        return active ? (startSpeed*duration*0.5f - travelled)*directionY : 0.0f;
+        }
+    }
@@ -0,0 +1,466 @@
+package baydroid.android_pan_zoom_bitmap_view.util;
+
+import android.view.InputDevice;
+import android.view.MotionEvent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+
+
+/**
+ * A recording of the touch events a TouchPanZoomBitmapView handled and the display frames it animated them on, for
+ * replaying against a view later: e.g. under Robolectric on a CI box, to check that a release still handles real
+ * scroll bursts, pinches, double taps and flings within a budget of invalidates and time, and ends up with the same
+ * viewport. Record with TouchPanZoomBitmapView.setGestureTrace(), save with writeTo(), load with readFrom(), and
+ * replay with replay().
+ * <p>
+ * Every sample of every event is kept, including the historical samples batched into move events (which the gesture
+ * detectors' velocity and scale calculations use), along with every frame time, so a replay drives the view exactly
+ * as the recording did: frames are only replayed when the view has asked for one, and flings are timed from the
+ * recorded event and frame times rather than the clock. The view should be the size it was when recording, with the
+ * same image, zoom limits and starting viewport. Timed messages inside the gesture detectors (e.g. for long presses
+ * and confirming single taps) run off the looper, not the recording, so aren't replayed.
+ * <p>
+ * Traces are compact: times are held as variable length differences from the time before, and pointer ids in a byte.
+ * Must only be used on the UI thread.
+ */
+public class GestureTrace
+    {
+    /**
+     * The first 4 bytes of a trace file.
+     */
+    public static final int MAGIC = 0x505A4754; // "PZGT".
+    /**
+     * The version of the trace file format written.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * The outcome of a replay.
+     */
+    public static class ReplayResult
+        {
+        private final ViewMetrics metrics;
+        private final PanZoomBitmapView.ViewportState viewport;
+        private final long handlingNanos;
+        private final int motionEvents;
+        private final int frames;
+
+        ReplayResult(ViewMetrics metrics, PanZoomBitmapView.ViewportState viewport, long handlingNanos, int motionEvents, int frames)
+            {
+            this.metrics = metrics;
+            this.viewport = viewport;
+            this.handlingNanos = handlingNanos;
+            this.motionEvents = motionEvents;
+            this.frames = frames;
+            }
+
+        /**
+         * @return What the view counted during the replay: invalidates, pans and zooms (and how many changed nothing), fling frames, ...
+         */
+        public ViewMetrics getMetrics()
+            {
+            return metrics;
+            }
+
+        /**
+         * @return The viewport the view ended up at, or null if it had no image.
+         */
+        public PanZoomBitmapView.ViewportState getViewport()
+            {
+            return viewport;
+            }
+
+        /**
+         * @return The time the view spent handling the touch events and frames, gesture detection and transform math included but not drawing (in nanoseconds).
+         */
+        public long getHandlingNanos()
+            {
+            return handlingNanos;
+            }
+
+        /**
+         * @return The number of touch events replayed.
+         */
+        public int getMotionEvents()
+            {
+            return motionEvents;
+            }
+
+        /**
+         * @return The number of frames replayed.
+         */
+        public int getFrames()
+            {
+            return frames;
+            }
+        }
+
+    private static final int RECORD_MOTION = 1;
+    private static final int RECORD_FRAME = 2;
+    private static final int INITIAL_CAPACITY = 4096;
+
+    private byte[] data = new byte[INITIAL_CAPACITY];
+    private int size = 0;            // Bytes of data used.
+    private int headerSize = 0;      // Bytes of data before the first record.
+    private int viewW = 0;
+    private int viewH = 0;
+    private long lastNanos = 0;      // The time of the last record written (in nanoseconds, System.nanoTime() time base).
+    private int motionEvents = 0;
+    private int frames = 0;
+    private int readPos;             // Where replay() is reading.
+    private MotionEvent.PointerProperties[] props = new MotionEvent.PointerProperties[0]; // Reused by replay() for each event's pointers.
+    private MotionEvent.PointerCoords[] coords = new MotionEvent.PointerCoords[0];
+
+    /**
+     * Create an empty trace, to record into.
+     */
+    public GestureTrace()
+        {
+        }
+
+    /**
+     * Read a trace written by writeTo().
+     * @param in The stream to read, to the end. It isn't closed.
+     * @return The trace.
+     * @throws IOException If the stream can't be read or doesn't hold a trace.
+     */
+    public static GestureTrace readFrom(InputStream in) throws IOException
+        {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[INITIAL_CAPACITY];
+        for (int n; (n = in.read(buf)) > 0; ) bytes.write(buf, 0, n);
+        GestureTrace trace = new GestureTrace();
+        trace.data = bytes.toByteArray();
+        trace.size = trace.data.length;
+        try
+            {
+            trace.readPos = 0;
+            if (trace.readInt() != MAGIC) throw new IOException("Not a gesture trace");
+            int version = trace.data[trace.readPos++];
+            if (version != VERSION) throw new IOException("Unsupported gesture trace version " + version);
+            trace.viewW = (int)trace.readVarLong();
+            trace.viewH = (int)trace.readVarLong();
+            trace.headerSize = trace.readPos;
+            while (trace.readPos < trace.size)
+                {
+                int type = trace.data[trace.readPos++];
+                trace.readVarLong();
+                if (type == RECORD_MOTION)
+                    {
+                    trace.skipMotion();
+                    trace.motionEvents++;
+                    }
+                else if (type == RECORD_FRAME)
+                    trace.frames++;
+                else
+                    throw new IOException("Corrupt gesture trace");
+                }
+            if (trace.readPos != trace.size) throw new IOException("Truncated gesture trace");
+            }
+        catch (ArrayIndexOutOfBoundsException e)
+            {
+            throw new IOException("Truncated gesture trace");
+            }
+        return trace;
+        }
+
+    /**
+     * Write the trace, in a form readFrom() can read.
+     * @param out The stream to write to. It isn't closed.
+     * @throws IOException If the stream can't be written to.
+     */
+    public void writeTo(OutputStream out) throws IOException
+        {
+        out.write(data, 0, size);
+        }
+
+    /**
+     * @return The width of the view the trace was recorded on.
+     */
+    public int getViewWidth()
+        {
+        return viewW;
+        }
+
+    /**
+     * @return The height of the view the trace was recorded on.
+     */
+    public int getViewHeight()
+        {
+        return viewH;
+        }
+
+    /**
+     * @return The number of touch events recorded.
+     */
+    public int getMotionEventCount()
+        {
+        return motionEvents;
+        }
+
+    /**
+     * @return The number of frames recorded.
+     */
+    public int getFrameCount()
+        {
+        return frames;
+        }
+
+    /**
+     * @return The size of the trace (in bytes), as writeTo() writes it.
+     */
+    public int getByteCount()
+        {
+        return size;
+        }
+
+    /**
+     * Replay the trace against a view: its touch events through onTouchEvent() and its frames through doFrame(),
+     * each followed by the layout onDraw() does, with the recorded times, without waiting between them. The view's metrics are swapped for a fresh ViewMetrics
+     * for the replay, then put back.
+     * @param view The view, with the image, size and viewport it had when the trace was recorded.
+     * @return What happened.
+     */
+    public ReplayResult replay(TouchPanZoomBitmapView view)
+        {
+        ViewMetrics savedMetrics = view.getMetrics();
+        ViewMetrics metrics = new ViewMetrics();
+        view.setMetrics(metrics);
+        view.setReplaying(true);
+        long handlingNanos = 0;
+        int replayedEvents = 0;
+        int replayedFrames = 0;
+        try
+            {
+            readPos = headerSize;
+            long nanos = 0;
+            while (readPos < size)
+                {
+                int type = data[readPos++];
+                nanos += readVarLong();
+                if (type == RECORD_MOTION)
+                    {
+                    MotionEvent ev = readMotion(nanos);
+                    long start = System.nanoTime();
+                    view.onTouchEvent(ev);
+                    handlingNanos += System.nanoTime() - start;
+                    ev.recycle();
+                    replayedEvents++;
+                    }
+                else if (view.isFrameScheduled())
+                    {
+                    long start = System.nanoTime();
+                    view.doFrame(nanos);
+                    if (view.hasLoadedBitmap()) view.layoutFrame(); // As onDraw() would, so the next event sees this frame's viewport.
+                    handlingNanos += System.nanoTime() - start;
+                    replayedFrames++;
+                    }
+                }
+            }
+        finally
+            {
+            view.setReplaying(false);
+            view.setMetrics(savedMetrics);
+            }
+        return new ReplayResult(metrics, view.getViewportState(new PanZoomBitmapView.ViewportState()), handlingNanos, replayedEvents, replayedFrames);
+        }
+
+    /**
+     * Start recording afresh, discarding anything recorded before.
+     * @param viewW The width of the view being recorded.
+     * @param viewH The height of the view being recorded.
+     */
+    void begin(int viewW, int viewH)
+        {
+        size = 0;
+        motionEvents = frames = 0;
+        lastNanos = 0;
+        this.viewW = viewW;
+        this.viewH = viewH;
+        writeInt(MAGIC);
+        writeByte(VERSION);
+        writeVarLong(viewW);
+        writeVarLong(viewH);
+        headerSize = size;
+        }
+
+    /**
+     * Record a touch event, with all its samples.
+     * @param ev The event.
+     */
+    void recordMotion(MotionEvent ev)
+        {
+        int pointerCount = ev.getPointerCount();
+        int historySize = ev.getHistorySize();
+        long firstNanos = millisToNanos(historySize > 0 ? ev.getHistoricalEventTime(0) : ev.getEventTime());
+        writeByte(RECORD_MOTION);
+        writeVarLong(firstNanos - lastNanos);
+        lastNanos = firstNanos;
+        writeVarLong(firstNanos - millisToNanos(ev.getDownTime()));
+        writeByte(pointerCount);
+        writeVarLong(ev.getAction());
+        for (int i = 0; i < pointerCount; i++) writeByte(ev.getPointerId(i));
+        writeVarLong(historySize + 1);
+        long sampleNanos = firstNanos;
+        for (int h = 0; h <= historySize; h++)
+            {
+            long t = millisToNanos(h < historySize ? ev.getHistoricalEventTime(h) : ev.getEventTime());
+            if (h > 0) writeVarLong(t - sampleNanos);
+            sampleNanos = t;
+            for (int i = 0; i < pointerCount; i++)
+                {
+                writeFloat(h < historySize ? ev.getHistoricalX(i, h) : ev.getX(i));
+                writeFloat(h < historySize ? ev.getHistoricalY(i, h) : ev.getY(i));
+                }
+            }
+        motionEvents++;
+        }
+
+    /**
+     * Record a display frame.
+     * @param frameTimeNanos The frame time (System.nanoTime() time base).
+     */
+    void recordFrame(long frameTimeNanos)
+        {
+        writeByte(RECORD_FRAME);
+        writeVarLong(frameTimeNanos - lastNanos);
+        lastNanos = frameTimeNanos;
+        frames++;
+        }
+
+    // Read a motion record's body, from after its time, into a new MotionEvent.
+    private MotionEvent readMotion(long nanos)
+        {
+        long downNanos = nanos - readVarLong();
+        int pointerCount = data[readPos++];
+        if (props.length < pointerCount)
+            {
+            props = new MotionEvent.PointerProperties[pointerCount];
+            coords = new MotionEvent.PointerCoords[pointerCount];
+            for (int i = 0; i < pointerCount; i++)
+                {
+                props[i] = new MotionEvent.PointerProperties();
+                coords[i] = new MotionEvent.PointerCoords();
+                }
+            }
+        int action = (int)readVarLong();
+        for (int i = 0; i < pointerCount; i++)
+            {
+            props[i].clear();
+            props[i].id = data[readPos++];
+            props[i].toolType = MotionEvent.TOOL_TYPE_FINGER;
+            }
+        int samples = (int)readVarLong();
+        MotionEvent ev = null;
+        long sampleNanos = nanos;
+        for (int s = 0; s < samples; s++)
+            {
+            if (s > 0) sampleNanos += readVarLong();
+            for (int i = 0; i < pointerCount; i++)
+                {
+                coords[i].clear();
+                coords[i].x = readFloat();
+                coords[i].y = readFloat();
+                coords[i].pressure = 1.0f;
+                coords[i].size = 1.0f;
+                }
+            if (ev == null)
+                ev = MotionEvent.obtain(downNanos/1000000L, sampleNanos/1000000L, action, pointerCount, props, coords, 0, 0, 1.0f, 1.0f, 0, 0, InputDevice.SOURCE_TOUCHSCREEN, 0);
+            else
+                ev.addBatch(sampleNanos/1000000L, coords, 0);
+            }
+        return ev;
+        }
+
+    // Skip a motion record's body, from after its time.
+    private void skipMotion()
+        {
+        readVarLong();
+        int pointerCount = data[readPos++];
+        readVarLong();
+        readPos += pointerCount;
+        int samples = (int)readVarLong();
+        for (int s = 0; s < samples; s++)
+            {
+            if (s > 0) readVarLong();
+            readPos += 8*pointerCount;
+            }
+        }
+
+    private static long millisToNanos(long millis)
+        {
+        return millis*1000000L;
+        }
+
+    private void ensureCapacity(int extra)
+        {
+        if (size + extra <= data.length) return;
+        byte[] grown = new byte[Math.max(2*data.length, size + extra)];
+        System.arraycopy(data, 0, grown, 0, size);
+        data = grown;
+        }
+
+    private void writeByte(int b)
+        {
+        ensureCapacity(1);
+        data[size++] = (byte)b;
+        }
+
+    private void writeInt(int v)
+        {
+        ensureCapacity(4);
+        data[size++] = (byte)(v >>> 24);
+        data[size++] = (byte)(v >>> 16);
+        data[size++] = (byte)(v >>> 8);
+        data[size++] = (byte)v;
+        }
+
+    private void writeFloat(float f)
+        {
+        writeInt(Float.floatToRawIntBits(f));
+        }
+
+    // Write a signed value in as few bytes as its magnitude needs: zigzag encoded, then 7 bits per byte, low bits first.
+    private void writeVarLong(long v)
+        {
+        ensureCapacity(10);
+        long z = (v << 1) ^ (v >> 63);
+        while ((z & ~0x7FL) != 0)
+            {
+            data[size++] = (byte)((z & 0x7F) | 0x80);
+            z >>>= 7;
+            }
+        data[size++] = (byte)z;
+        }
+
+    private int readInt()
+        {
+        int v = ((data[readPos] & 0xFF) << 24) | ((data[readPos + 1] & 0xFF) << 16) | ((data[readPos + 2] & 0xFF) << 8) | (data[readPos + 3] & 0xFF);
+        readPos += 4;
+        return v;
+        }
+
+    private float readFloat()
+        {
+        return Float.intBitsToFloat(readInt());
+        }
+
+    private long readVarLong()
+        {
+        long z = 0;
+        int shift = 0;
+        byte b;
+        do
+            {
+            b = data[readPos++];
+            z |= ((long)(b & 0x7F)) << shift;
+            shift += 7;
+            }
+        while ((b & 0x80) != 0);
+        return (z >>> 1) ^ -(z & 1);
+        }
+    }
@@ -0,0 +1,433 @@
+package baydroid.android_pan_zoom_bitmap_view.util;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+
+/**
+ * A cache of decoded images shared by any number of PanZoomBitmapViews, for galleries and pagers. When a view with
+ * an ImageCache moves on from an image it loaded, the decoded image (or tiled image source, or preview) is kept here,
+ * along with the view's viewport, so that coming back to the image shows it straight away, panned and zoomed as it
+ * was. Images can also be preloaded (e.g. the pages either side of the current one) at a lower priority than loading
+ * the images being shown. Cached images are evicted least recently used first once the cache's byte budget is spent.
+ * <p>
+ * Images are identified by keys made from their File or Uri. Must only be used on the UI thread.
+ */
+public class ImageCache implements MemoryBudget.Client
+    {
+    /**
+     * The default byte budget.
+     */
+    public static final int DEFAULT_MAX_BYTES = 32*1024*1024;
+    /**
+     * The number of images whose viewports are remembered.
+     */
+    public static final int MAX_VIEWPORTS = 256;
+
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+    private final EntryCache entries;                                   // The decoded images, by key.
+    private final HashMap<String, Preload> preloads = new HashMap<String, Preload>(); // Preloads in progress, by key.
+    private final LinkedHashMap<String, PanZoomBitmapView.ViewportState> viewports = new LinkedHashMap<String, PanZoomBitmapView.ViewportState>(16, 0.75f, true)
+        {
+
+        protected boolean removeEldestEntry(Map.Entry<String, PanZoomBitmapView.ViewportState> eldest)
+            {
+            return size() > MAX_VIEWPORTS;
+            }
+
+        };
+    private TileDiskCache tileDiskCache = null;  // Used by preloads.
+    private BitmapPool bitmapPool = null;        // Used by preloads, and to release evicted images to.
+    private PanZoomBitmapView.PixelFormat pixelFormat = PanZoomBitmapView.PixelFormat.AUTO; // Used by preloads.
+
+    /**
+     * Create an image cache.
+     * @param maxBytes The maximum number of bytes of decoded images to hold.
+     */
+    public ImageCache(int maxBytes)
+        {
+        entries = new EntryCache(maxBytes);
+        }
+
+    /**
+     * Get the key for an image file.
+     * @param file The image file.
+     * @return The key.
+     */
+    public static String keyFor(File file)
+        {
+        return "file:" + file.getAbsolutePath();
+        }
+
+    /**
+     * Get the key for an image Uri.
+     * @param uri The image Uri.
+     * @return The key.
+     */
+    public static String keyFor(Uri uri)
+        {
+        return "uri:" + uri.toString();
+        }
+
+    /**
+     * Set the persistent tile cache preloads of tiled images use.
+     * @param tileDiskCache The cache, or null for none.
+     * @return The ImageCache object on which this method is being called.
+     */
+    public ImageCache setTileDiskCache(TileDiskCache tileDiskCache)
+        {
+        this.tileDiskCache = tileDiskCache;
+        return this;
+        }
+
+    /**
+     * Set the pool preloads decode into, and evicted images are released to.
+     * @param bitmapPool The pool, or null for none.
+     * @return The ImageCache object on which this method is being called.
+     */
+    public ImageCache setBitmapPool(BitmapPool bitmapPool)
+        {
+        this.bitmapPool = bitmapPool;
+        return this;
+        }
+
+    /**
+     * Set the pixel format preloads decode images to. Use the same setting as the views.
+     * @param pixelFormat One of the values of the PanZoomBitmapView.PixelFormat enum. The default is PixelFormat.AUTO.
+     * @return The ImageCache object on which this method is being called.
+     */
+    public ImageCache setPixelFormat(PanZoomBitmapView.PixelFormat pixelFormat)
+        {
+        if (pixelFormat == null) throw new IllegalArgumentException("pixelFormat must not be null");
+        this.pixelFormat = pixelFormat;
+        return this;
+        }
+
+    /**
+     * Preload an image file, if it isn't already cached or being preloaded.
+     * @param file The image file.
+     * @param previewOnly True to decode only a subsampled preview, e.g. for images further away, false for the full image.
+     */
+    public void preload(File file, boolean previewOnly)
+        {
+        preload(keyFor(file), ImageLoader.fileSource(file), previewOnly);
+        }
+
+    /**
+     * Preload an image from a content or file Uri, if it isn't already cached or being preloaded.
+     * @param ctx A context to get a ContentResolver from.
+     * @param uri The Uri of the image.
+     * @param previewOnly True to decode only a subsampled preview, e.g. for images further away, false for the full image.
+     */
+    public void preload(Context ctx, Uri uri, boolean previewOnly)
+        {
+        preload(keyFor(uri), ImageLoader.uriSource(ctx.getContentResolver(), uri), previewOnly);
+        }
+
+    private void preload(String key, ImageLoader.Source src, boolean previewOnly)
+        {
+        Entry e = entries.get(key);
+        if (e != null && (previewOnly || e.bm != null || e.tiles != null)) return;
+        Preload p = preloads.get(key);
+        if (p != null && (previewOnly || !p.request.isPreviewOnly())) return;
+        if (p != null) p.request.cancel();
+        p = new Preload(key);
+        preloads.put(key, p);
+        p.request = ImageLoader.newRequest(src, p).setDiskCache(tileDiskCache).setBitmapPool(bitmapPool).setPixelFormat(pixelFormat).setPreviewOnly(previewOnly).setPriority(ImageLoader.PRIORITY_PRELOAD).start();
+        }
+
+    /**
+     * Cancel all the preloads in progress.
+     */
+    public void cancelPreloads()
+        {
+        for (Preload p : preloads.values()) p.request.cancel();
+        preloads.clear();
+        }
+
+    /**
+     * Get the viewport a view last had on an image.
+     * @param key The image's key.
+     * @return The viewport, or null if there's none remembered.
+     */
+    public PanZoomBitmapView.ViewportState getViewport(String key)
+        {
+        return viewports.get(key);
+        }
+
+    /**
+     * Remember the viewport a view has on an image.
+     * @param key The image's key.
+     * @param state The viewport. It's copied.
+     */
+    public void putViewport(String key, PanZoomBitmapView.ViewportState state)
+        {
+        PanZoomBitmapView.ViewportState copy = viewports.get(key);
+        if (copy == null) copy = new PanZoomBitmapView.ViewportState();
+        copy.set(state);
+        viewports.put(key, copy);
+        }
+
+    /**
+     * Change the byte budget, evicting images if need be.
+     * @param maxBytes The maximum number of bytes of decoded images to hold.
+     */
+    public void setMaxBytes(int maxBytes)
+        {
+        entries.resize(Math.max(1, maxBytes));
+        }
+
+    public void onBudgetChanged(int maxBytes)
+        {
+        setMaxBytes(maxBytes);
+        }
+
+    /**
+     * @return The number of bytes of decoded images held.
+     */
+    public int getSizeBytes()
+        {
+        return entries.size();
+        }
+
+    /**
+     * Evict all the images and cancel all the preloads. Remembered viewports are kept.
+     */
+    public void clear()
+        {
+        cancelPreloads();
+        entries.evictAll();
+        }
+
+    // Take an image out of the cache, for a view to show. It's put back when the view moves on.
+    Entry take(String key)
+        {
+        Entry e = entries.remove(key);
+        if (e != null) e.restoreTileCacheBytes();
+        return e;
+        }
+
+    // Put an image a view has moved on from in the cache. The cache owns it from now on.
+    void put(String key, Entry e)
+        {
+        Preload p = preloads.remove(key);
+        if (p != null) p.request.cancel();
+        entries.put(key, e);
+        }
+
+    // Hand over a full preload in progress to a view's load callback, raising it to the visible priority. Any preview
+    // already decoded is delivered to the callback straight away (after the caller has taken the returned request).
+    ImageLoader.Request adoptPreload(String key, ImageLoader.Callback cb)
+        {
+        final Preload p = preloads.remove(key);
+        if (p == null) return null;
+        if (p.request.isPreviewOnly())
+            {
+            p.request.cancel();
+            return null;
+            }
+        p.target = cb;
+        p.request.setPriority(ImageLoader.PRIORITY_VISIBLE);
+        if (p.preview != null)
+            {
+            final Bitmap preview = p.preview;
+            p.preview = null;
+            uiHandler.post
+                (
+                new Runnable()
+                    {
+
+                    public void run()
+                        {
+                        p.onPreviewDecoded(p.request, preview, p.width, p.height);
+                        }
+
+                    }
+                );
+            }
+        return p.request;
+        }
+
+    private void release(Bitmap bm)
+        {
+        release(bm, null);
+        }
+
+    // Release a bitmap of an entry leaving the cache. One a view may have drawn in its last frames goes through the
+    // view's release queue, and without a pool is left to the garbage collector rather than recycled under the view.
+    private void release(Bitmap bm, BitmapReleaseQueue releaseQueue)
+        {
+        if (bm == null) return;
+        if (releaseQueue != null)
+            {
+            releaseQueue.release(bm, bitmapPool);
+            return;
+            }
+        if (bitmapPool != null)
+            bitmapPool.put(bm);
+        else
+            bm.recycle();
+        }
+
+    /**
+     * A decoded image: the full resolution bitmap or a tiled image source, and/or a preview.
+     */
+    static class Entry
+        {
+        final Bitmap bm;
+        final TiledImageSource tiles;
+        final Bitmap preview;
+        final int width;
+        final int height;
+        final BitmapReleaseQueue releaseQueue; // The queue of the view that last drew the bitmaps, or null if none has.
+        private final int byteCount;         // As of when the entry was made, so that the cache's accounting doesn't drift.
+        private final int tileCacheBytes;    // The tiles' cache byte budget before they were cached here.
+
+        /**
+         * Make an entry. A tiled image source is counted by the tiles it holds, not its cache's budget, and held to
+         * those tiles while it's in the cache, so that it can't grow past what's counted. The bitmaps of an entry a view
+         * has been showing are released through that view's release queue, as its last frames may still draw them.
+         */
+        Entry(Bitmap bm, TiledImageSource tiles, Bitmap preview, int width, int height, BitmapReleaseQueue releaseQueue)
+            {
+            this.bm = bm;
+            this.tiles = tiles;
+            this.preview = preview;
+            this.width = width;
+            this.height = height;
+            this.releaseQueue = releaseQueue;
+            long bytes = 1;
+            if (bm != null) bytes += bm.getByteCount();
+            if (preview != null) bytes += preview.getByteCount();
+            if (tiles != null)
+                {
+                int tileBytes = tiles.getCachedBytes();
+                bytes += tileBytes;
+                tileCacheBytes = tiles.getCacheBytes();
+                tiles.setCacheBytes(Math.max(1, tileBytes));
+                }
+            else
+                tileCacheBytes = 0;
+            byteCount = (int)Math.min(Integer.MAX_VALUE, bytes);
+            }
+
+        int getByteCount()
+            {
+            return byteCount;
+            }
+
+        // Give the tiles back their cache byte budget, when a view takes the entry to show.
+        void restoreTileCacheBytes()
+            {
+            if (tiles != null) tiles.setCacheBytes(tileCacheBytes);
+            }
+        }
+
+    private class EntryCache extends LruCache<String, Entry>
+        {
+        EntryCache(int maxBytes)
+            {
+            super(maxBytes);
+            }
+
+        protected int sizeOf(String key, Entry e)
+            {
+            return e.getByteCount();
+            }
+
+        protected void entryRemoved(boolean evicted, String key, Entry oldEntry, Entry newEntry)
+            {
+            if (!evicted && newEntry == null) return; // Taken by a view.
+            release(oldEntry.bm, oldEntry.releaseQueue);
+            release(oldEntry.preview, oldEntry.releaseQueue);
+            if (oldEntry.tiles != null) oldEntry.tiles.recycle();
+            }
+        }
+
+    // Receives a preload's results, keeping them in the cache, or passing them on to a view that's adopted the preload.
+    private class Preload implements ImageLoader.Callback
+        {
+        private final String key;
+        private ImageLoader.Request request = null;
+        private ImageLoader.Callback target = null;  // The adopting view's callback, if any.
+        private Bitmap preview = null;
+        private int width;
+        private int height;
+
+        Preload(String key)
+            {
+            this.key = key;
+            }
+
+        public void onPreviewDecoded(ImageLoader.Request request, Bitmap preview, int width, int height)
+            {
+            if (target != null)
+                {
+                target.onPreviewDecoded(request, preview, width, height);
+                return;
+                }
+            if (preloads.get(key) != this)
+                {
+                release(preview);
+                return;
+                }
+            this.preview = preview;
+            this.width = width;
+            this.height = height;
+            if (request.isPreviewOnly())
+                {
+                preloads.remove(key);
+                entries.put(key, new Entry(null, null, preview, width, height, null));
+                }
+            }
+
+        public void onFullDecoded(ImageLoader.Request request, Bitmap bm, TiledImageSource tiles)
+            {
+            if (target != null)
+                {
+                target.onFullDecoded(request, bm, tiles);
+                return;
+                }
+            if (preloads.get(key) != this)
+                {
+                release(bm);
+                release(preview);
+                if (tiles != null) tiles.recycle();
+                return;
+                }
+            preloads.remove(key);
+            Bitmap p = preview;
+            if (bm != null) // The preview's only worth keeping for tiled images.
+                {
+                release(p);
+                p = null;
+                }
+            int w = bm != null ? bm.getWidth() : tiles.getWidth();
+            int h = bm != null ? bm.getHeight() : tiles.getHeight();
+            entries.put(key, new Entry(bm, tiles, p, w, h, null));
+            }
+
+        public void onDecodeFailed(ImageLoader.Request request, IOException e)
+            {
+            if (target != null)
+                {
+                target.onDecodeFailed(request, e);
+                return;
+                }
+            if (preloads.get(key) == this) preloads.remove(key);
+            release(preview);
+            preview = null;
+            }
+        }
+    }
@@ -0,0 +1,644 @@
+package baydroid.android_pan_zoom_bitmap_view.util;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+/**
+ * Decodes images for PanZoomBitmapView off the UI thread. Each load first decodes a heavily subsampled preview, which
+ * the view can show straight away, then either the full resolution bitmap or, for images too large to decode in one
+ * piece, a TiledImageSource. Results are delivered on the UI thread.
+ * <p>
+ * With a TileDiskCache, tiled images are identified by their file's path, size and modification time, or for sources
+ * that aren't files by a hash of their content. An image whose size is already in the
+ * disk cache skips the preview and goes straight to a TiledImageSource which opens no decoder until it needs a tile
+ * that isn't on disk. With a BitmapPool, images are decoded into pooled bitmaps where possible, and tiled images
+ * decode their tiles into the same pool.
+ * <p>
+ * The pixel format of full resolution images and tiles is negotiated per image (see PanZoomBitmapView.PixelFormat),
+ * by examining the preview, or when there's no preview a tiny subsampled decode, before the full decode.
+ * <p>
+ * Work is done in priority order, so that preloading images the user may look at next never delays showing the one
+ * they're looking at.
+ */
+class ImageLoader
+    {
+    /**
+     * Previews are subsampled by the smallest power of 2 that brings their larger dimension down to this or less.
+     */
+    static final int PREVIEW_MAX_DIMENSION = 256;
+    /**
+     * Images with more pixels than this are loaded as a TiledImageSource rather than decoded in one piece.
+     */
+    static final int MAX_FULL_DECODE_PIXELS = 8*1024*1024;
+    /**
+     * Images without a preview are subsampled to this or less for examining to choose their pixel format.
+     */
+    static final int SAMPLE_MAX_DIMENSION = 64;
+    /**
+     * Priority for loading images being shown, and work they need done.
+     */
+    static final int PRIORITY_VISIBLE = 0;
+    /**
+     * Priority for preloading images that may be shown soon.
+     */
+    static final int PRIORITY_PRELOAD = 1;
+
+    private static final Handler uiHandler = new Handler(Looper.getMainLooper());
+    private static final AtomicLong sequence = new AtomicLong(); // Orders tasks of equal priority.
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor
+        (
+        1,
+        1,
+        0L,
+        TimeUnit.MILLISECONDS,
+        new PriorityBlockingQueue<Runnable>(),
+        new ThreadFactory()
+            {
+
+            public Thread newThread(Runnable r)
+                {
+                Thread t = new Thread(r, "PanZoomBitmapView image loader");
+                t.setDaemon(true);
+                t.setPriority(Thread.NORM_PRIORITY - 1);
+                return t;
+                }
+
+            }
+        );
+
+    /**
+     * Somewhere an image can be read from, as many times as needed.
+     */
+    interface Source
+        {
+        InputStream open() throws IOException;
+
+        /**
+         * @return A cheap stand in for a hash of the content, which changes whenever the content does (e.g. a file's path, size and modification time), or null if there's none and the content must be hashed.
+         */
+        String getIdentity();
+        }
+
+    /**
+     * Receives the results of a load, on the UI thread.
+     */
+    interface Callback
+        {
+        void onPreviewDecoded(Request request, Bitmap preview, int width, int height);
+        void onFullDecoded(Request request, Bitmap bm, TiledImageSource tiles);
+        void onDecodeFailed(Request request, IOException e);
+        }
+
+    static Source fileSource(final File file)
+        {
+        return new Source()
+            {
+
+            public InputStream open() throws IOException
+                {
+                return new FileInputStream(file);
+                }
+
+            public String getIdentity()
+                {
+                return fileIdentity(file);
+                }
+
+            };
+        }
+
+    static Source uriSource(final ContentResolver resolver, final Uri uri)
+        {
+        return new Source()
+            {
+
+            public InputStream open() throws IOException
+                {
+                InputStream is = resolver.openInputStream(uri);
+                if (is == null) throw new IOException("Can't open " + uri);
+                return is;
+                }
+
+            public String getIdentity()
+                {
+                String path = uri.getPath();
+                return "file".equals(uri.getScheme()) && path != null ? fileIdentity(new File(path)) : null; // Content providers' data can change under the same Uri, so is hashed.
+                }
+
+            };
+        }
+
+    // A stream can only be read once, so the first open() (on the loader thread) reads it all into memory.
+    static Source streamSource(final InputStream is)
+        {
+        return new Source()
+            {
+            private byte[] data = null;
+
+            public InputStream open() throws IOException
+                {
+                if (data == null)
+                    {
+                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                    byte[] buf = new byte[64*1024];
+                    for (int n = is.read(buf); n >= 0; n = is.read(buf)) bos.write(buf, 0, n);
+                    data = bos.toByteArray();
+                    }
+                return new ByteArrayInputStream(data);
+                }
+
+
+            public String getIdentity()
+                {
+                return null;
+                }
+
+            };
+        }
+
+    // Each tile decoding worker gets its own decoder, reading the source afresh.
+    static TiledImageSource.DecoderFactory decoderFactory(final Source src)
+        {
+        return new TiledImageSource.DecoderFactory()
+            {
+
+            public BitmapRegionDecoder newDecoder() throws IOException
+                {
+                InputStream is = src.open();
+                try
+                    {
+                    return TiledImageSource.newRegionDecoder(is);
+                    }
+                finally
+                    {
+                    is.close();
+                    }
+                }
+
+            };
+        }
+
+    /**
+     * Get the key identifying an image's content in a TileDiskCache: a hash of its identity where it has one (which
+     * for files is their path, size and modification time), so that reopening a file doesn't read the whole of it,
+     * otherwise a hash of its content.
+     * @param src Where to read the image from.
+     * @return The key, as hex.
+     * @throws IOException If the image has no identity and can't be read.
+     */
+    static String contentKey(Source src) throws IOException
+        {
+        MessageDigest md = sha1();
+        String identity = src.getIdentity();
+        if (identity != null)
+            {
+            md.update(identity.getBytes("UTF-8"));
+            return toHex(md.digest());
+            }
+        InputStream is = src.open();
+        try
+            {
+            byte[] buf = new byte[64*1024];
+            for (int n = is.read(buf); n >= 0; n = is.read(buf)) md.update(buf, 0, n);
+            }
+        finally
+            {
+            is.close();
+            }
+        return toHex(md.digest());
+        }
+
+    // A file's path, size and modification time, or null if it isn't a file that can be read.
+    private static String fileIdentity(File file)
+        {
+        long modified = file.lastModified();
+        if (!file.isFile() || modified == 0L) return null;
+        return "file:" + file.getAbsolutePath() + ":" + file.length() + ":" + modified;
+        }
+
+    private static MessageDigest sha1() throws IOException
+        {
+        try
+            {
+            return MessageDigest.getInstance("SHA-1");
+            }
+        catch (NoSuchAlgorithmException e)
+            {
+            throw new IOException(e);
+            }
+        }
+
+    private static String toHex(byte[] digest)
+        {
+        StringBuilder sb = new StringBuilder(2*digest.length);
+        for (int i = 0; i < digest.length; i++)
+            {
+            sb.append(Character.forDigit((digest[i] >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(digest[i] & 0xF, 16));
+            }
+        return sb.toString();
+        }
+
+    /**
+     * Run a task on the loader thread, e.g. to build a pyramid level ahead of it being needed.
+     * @param task The task.
+     */
+    static void execute(Runnable task)
+        {
+        executor.execute(new Task(task, PRIORITY_VISIBLE));
+        }
+
+    /**
+     * Make a request to load an image. Configure it with its setters, then start() it.
+     * @param src Where to read the image from.
+     * @param cb Receives the results, on the UI thread.
+     * @return The request.
+     */
+    static Request newRequest(Source src, Callback cb)
+        {
+        return new Request(src, cb);
+        }
+
+    // A unit of work for the loader thread, run in priority order.
+    private static class Task implements Runnable, Comparable<Task>
+        {
+        private final Runnable work;
+        private final int priority;
+        private final long sequence;
+
+        Task(Runnable work, int priority)
+            {
+            this.work = work;
+            this.priority = priority;
+            sequence = ImageLoader.sequence.getAndIncrement();
+            }
+
+        public void run()
+            {
+            work.run();
+            }
+
+        public int compareTo(Task other)
+            {
+            if (priority != other.priority) return priority < other.priority ? -1 : 1;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+            }
+        }
+
+    static class Request implements Runnable
+        {
+        private final Source src;
+        private final Callback cb;
+        private TileDiskCache diskCache = null;
+        private BitmapPool pool = null;
+        private boolean previewOnly = false;
+        private boolean skipPreview = false;
+        private int priority = PRIORITY_VISIBLE;
+        private PanZoomBitmapView.PixelFormat pixelFormat = PanZoomBitmapView.PixelFormat.AUTO;
+        private final BitmapFactory.Options opts = new BitmapFactory.Options();
+        private volatile boolean cancelled = false;
+        private Task task = null;  // The queued task, null until started. Only used on the UI thread.
+
+        private Request(Source src, Callback cb)
+            {
+            this.src = src;
+            this.cb = cb;
+            }
+
+        /**
+         * @param diskCache The persistent cache for tiled images' tiles, or null for none (the default).
+         * @return The Request object on which this method is being called.
+         */
+        Request setDiskCache(TileDiskCache diskCache)
+            {
+            this.diskCache = diskCache;
+            return this;
+            }
+
+        /**
+         * @param pool The pool to decode into, or null for none (the default).
+         * @return The Request object on which this method is being called.
+         */
+        Request setBitmapPool(BitmapPool pool)
+            {
+            this.pool = pool;
+            return this;
+            }
+
+        /**
+         * @param previewOnly True to decode only the preview (for images large enough to have one), false to decode the full image too (the default).
+         * @return The Request object on which this method is being called.
+         */
+        Request setPreviewOnly(boolean previewOnly)
+            {
+            this.previewOnly = previewOnly;
+            return this;
+            }
+
+        /**
+         * @param skipPreview True to decode only the full image, e.g. when there's already a preview, false to decode a preview first (the default).
+         * @return The Request object on which this method is being called.
+         */
+        Request setSkipPreview(boolean skipPreview)
+            {
+            this.skipPreview = skipPreview;
+            return this;
+            }
+
+        /**
+         * @param pixelFormat The pixel format setting for the full resolution image or tiles (the default is PixelFormat.AUTO).
+         * @return The Request object on which this method is being called.
+         */
+        Request setPixelFormat(PanZoomBitmapView.PixelFormat pixelFormat)
+            {
+            this.pixelFormat = pixelFormat;
+            return this;
+            }
+
+        /**
+         * Set the priority, which can be raised (e.g. when an image being preloaded is wanted for showing) while the
+         * request is still waiting to start.
+         * @param priority PRIORITY_VISIBLE (the default) or PRIORITY_PRELOAD.
+         * @return The Request object on which this method is being called.
+         */
+        Request setPriority(int priority)
+            {
+            this.priority = priority;
+            if (task != null && task.priority != priority && executor.remove(task))
+                {
+                task = new Task(this, priority);
+                executor.execute(task);
+                }
+            return this;
+            }
+
+        /**
+         * Queue the request on the loader thread.
+         * @return The Request object on which this method is being called.
+         */
+        Request start()
+            {
+            task = new Task(this, priority);
+            executor.execute(task);
+            return this;
+            }
+
+        boolean isPreviewOnly()
+            {
+            return previewOnly;
+            }
+
+        /**
+         * Cancel the load. Results not yet delivered are discarded. A decode in progress runs to the end, but the load
+         * goes no further: the cancelled flag is checked between each stage.
+         */
+        void cancel()
+            {
+            cancelled = true;
+            if (task != null) executor.remove(task);
+            }
+
+        boolean isCancelled()
+            {
+            return cancelled;
+            }
+
+        public void run()
+            {
+            if (cancelled) return;
+            try
+                {
+                String contentKey = null;
+                if (diskCache != null)
+                    {
+                    contentKey = contentKey(src);
+                    int[] size = new int[2];
+                    if (diskCache.getImageSize(contentKey, size))
+                        {
+                        if (cancelled) return;
+                        Bitmap.Config tileConfig = PixelFormats.choose(pixelFormat, null, false);
+                        if (pixelFormat == PanZoomBitmapView.PixelFormat.AUTO || pixelFormat == PanZoomBitmapView.PixelFormat.HARDWARE) tileConfig = diskCache.getImageTileConfig(contentKey); // As negotiated when the image was first loaded.
+                        TiledImageSource tiles = new TiledImageSource(decoderFactory(src), size[0], size[1], TiledImageSource.DEFAULT_TILE_SIZE, TiledImageSource.DEFAULT_CACHE_BYTES, TiledImageSource.defaultWorkerCount());
+                        deliverFull(null, tiles.setTileConfig(tileConfig).setDiskCache(diskCache, contentKey).setBitmapPool(pool));
+                        return;
+                        }
+                    }
+                opts.inJustDecodeBounds = true;
+                decode();
+                final int width = opts.outWidth;
+                final int height = opts.outHeight;
+                if (width <= 0 || height <= 0) throw new IOException("Unsupported image format");
+                opts.inJustDecodeBounds = false;
+                int sampleSize = 1;
+                while ((width > height ? width : height)/sampleSize > PREVIEW_MAX_DIMENSION) sampleSize *= 2;
+                Bitmap.Config config = null;      // The config for tiles, and the full resolution image unless that's HARDWARE.
+                Bitmap.Config fullConfig = null;
+                if (sampleSize > 1 && !cancelled && !skipPreview)
+                    {
+                    opts.inSampleSize = sampleSize;
+                    final Bitmap preview = decodePooled((width + sampleSize - 1)/sampleSize, (height + sampleSize - 1)/sampleSize);
+                    if (preview != null && !previewOnly)
+                        {
+                        config = PixelFormats.choose(pixelFormat, preview, false); // Before the UI thread has it.
+                        fullConfig = chooseFullConfig(config, preview);
+                        }
+                    if (preview != null)
+                        uiHandler.post
+                            (
+                            new Runnable()
+                                {
+
+                                public void run()
+                                    {
+                                    if (cancelled)
+                                        release(preview);
+                                    else
+                                        cb.onPreviewDecoded(Request.this, preview, width, height);
+                                    }
+
+                                }
+                            );
+                    else if (previewOnly && !cancelled)
+                        throw new IOException("Can't decode image");
+                    }
+                if (cancelled || (previewOnly && sampleSize > 1)) return;
+                if (config == null)
+                    {
+                    Bitmap sample = decodeSample(width, height);
+                    config = PixelFormats.choose(pixelFormat, sample, false);
+                    fullConfig = chooseFullConfig(config, sample);
+                    if (sample != null) sample.recycle();
+                    }
+                Bitmap bm = null;
+                TiledImageSource tiles = null;
+                if (((long)width)*height <= MAX_FULL_DECODE_PIXELS)
+                    {
+                    opts.inSampleSize = 1;
+                    if (PixelFormats.isHardware(fullConfig))
+                        {
+                        opts.inPreferredConfig = Bitmap.Config.HARDWARE;
+                        opts.inMutable = false;
+                        bm = decode(); // Hardware bitmaps can't be decoded into pooled bitmaps.
+                        }
+                    else
+                        {
+                        opts.inPreferredConfig = PixelFormats.decodeConfig(fullConfig);
+                        bm = PixelFormats.convert(decodePooled(width, height), fullConfig, pool);
+                        }
+                    if (bm == null)
+                        {
+                        if (cancelled) return;
+                        throw new IOException("Can't decode image");
+                        }
+                    }
+                else
+                    {
+                    tiles = new TiledImageSource(decoderFactory(src), TiledImageSource.DEFAULT_TILE_SIZE, TiledImageSource.DEFAULT_CACHE_BYTES, TiledImageSource.defaultWorkerCount());
+                    tiles.setBitmapPool(pool).setTileConfig(config);
+                    if (diskCache != null)
+                        {
+                        diskCache.putImageSize(contentKey, width, height, config);
+                        tiles.setDiskCache(diskCache, contentKey);
+                        }
+                    }
+                deliverFull(bm, tiles);
+                }
+            catch (IOException e)
+                {
+                fail(e);
+                }
+            catch (RuntimeException e) // E.g. a corrupt image the decoder chokes on.
+                {
+                fail(new IOException("Can't decode image", e));
+                }
+            catch (OutOfMemoryError e)
+                {
+                fail(new IOException("Not enough memory to decode image", e));
+                }
+            }
+
+        // Report a failed load, unless it's been cancelled, returning any pooled bitmap the failed decode was given.
+        private void fail(final IOException e)
+            {
+            if (pool != null) pool.putBack(opts);
+            if (!cancelled)
+                uiHandler.post
+                    (
+                    new Runnable()
+                        {
+
+                        public void run()
+                            {
+                            if (!cancelled) cb.onDecodeFailed(Request.this, e);
+                            }
+
+                        }
+                    );
+            }
+
+        private void deliverFull(final Bitmap bm, final TiledImageSource tiles)
+            {
+            uiHandler.post
+                (
+                new Runnable()
+                    {
+
+                    public void run()
+                        {
+                        if (cancelled)
+                            {
+                            if (bm != null) release(bm);
+                            if (tiles != null) tiles.recycle();
+                            }
+                        else
+                            cb.onFullDecoded(Request.this, bm, tiles);
+                        }
+
+                    }
+                );
+            }
+
+        // The full resolution image's config: HARDWARE if the format setting asks for it and the platform has it, otherwise the tiles' config.
+        private Bitmap.Config chooseFullConfig(Bitmap.Config config, Bitmap sample)
+            {
+            return pixelFormat == PanZoomBitmapView.PixelFormat.HARDWARE ? PixelFormats.choose(pixelFormat, sample, true) : config;
+            }
+
+        // Decode a tiny subsampled copy of the image to choose its pixel format from, if the format setting needs one.
+        private Bitmap decodeSample(int width, int height) throws IOException
+            {
+            if (pixelFormat != PanZoomBitmapView.PixelFormat.AUTO && pixelFormat != PanZoomBitmapView.PixelFormat.HARDWARE) return null;
+            int sampleSize = 1;
+            while ((width > height ? width : height)/sampleSize > SAMPLE_MAX_DIMENSION) sampleSize *= 2;
+            opts.inSampleSize = sampleSize;
+            opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            opts.inMutable = false;
+            opts.inBitmap = null;
+            return decode();
+            }
+
+        // Decode, into a pooled bitmap if there's a suitable one.
+        private Bitmap decodePooled(int width, int height) throws IOException
+            {
+            if (pool == null) return decode();
+            pool.prepare(opts, width, height);
+            Bitmap bm;
+            try
+                {
+                bm = decode();
+                }
+            catch (IllegalArgumentException e) // The pooled bitmap didn't suit the decoder after all.
+                {
+                pool.putBack(opts);
+                bm = decode();
+                }
+            if (bm == null)
+                pool.putBack(opts);
+            else
+                opts.inBitmap = null;
+            return bm;
+            }
+
+        private void release(Bitmap bm)
+            {
+            if (pool != null)
+                pool.put(bm);
+            else
+                bm.recycle();
+            }
+
+        private Bitmap decode() throws IOException
+            {
+            InputStream is = src.open();
+            try
+                {
+                return BitmapFactory.decodeStream(is, null, opts);
+                }
+            finally
+                {
+                is.close();
+                }
+            }
+        }
+    }
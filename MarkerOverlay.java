@@ -0,0 +1,88 @@
+package baydroid.android_pan_zoom_bitmap_view.util;
+
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+
+
+
+/**
+ * An overlay marking a point with a disc of fixed size on screen, whatever the zoom.
+ */
+public class MarkerOverlay extends Overlay
+    {
+    private static final float[] point = new float[2]; // For mapping the point to the view. Overlays are only drawn on the UI thread.
+
+    private final float radius;
+    private Paint paint;
+
+    /**
+     * Create a marker.
+     * @param x The X co-ordinate of the point (in bitmap pixel co-ordinates).
+     * @param y The Y co-ordinate of the point (in bitmap pixel co-ordinates).
+     * @param radius The radius of the disc (in view pixels).
+     * @param paint The paint to draw the disc with. It can be shared by any number of markers.
+     */
+    public MarkerOverlay(float x, float y, float radius, Paint paint)
+        {
+        super(x, y, x, y);
+        this.radius = radius;
+        this.paint = paint;
+        }
+
+    /**
+     * Move the marker.
+     * @param x The X co-ordinate of the point (in bitmap pixel co-ordinates).
+     * @param y The Y co-ordinate of the point (in bitmap pixel co-ordinates).
+     */
+    public void setPosition(float x, float y)
+        {
+        setBounds(x, y, x, y);
+        }
+
+    /**
+     * @return The X co-ordinate of the point (in bitmap pixel co-ordinates).
+     */
+    public float getX()
+        {
+        return left;
+        }
+
+    /**
+     * @return The Y co-ordinate of the point (in bitmap pixel co-ordinates).
+     */
+    public float getY()
+        {
+        return top;
+        }
+
+    /**
+     * Change the paint the disc's drawn with. Invalidate the view to see the change.
+     * @param paint The paint.
+     */
+    public void setPaint(Paint paint)
+        {
+        this.paint = paint;
+        }
+
+    public void draw(Canvas cvs, Matrix bmToView, float scale)
+        {
+        point[0] = left;
+        point[1] = top;
+        bmToView.mapPoints(point);
+        cvs.drawCircle(point[0], point[1], radius, paint);
+        }
+
+    public boolean hitTest(float bmX, float bmY, float slop, float scale)
+        {
+        float r = slop + radius/scale;
+        float dx = bmX - left;
+        float dy = bmY - top;
+        return dx*dx + dy*dy <= r*r;
+        }
+
+    public float getScreenExtent()
+        {
+        return radius;
+        }
+    }
@@ -0,0 +1,208 @@
+package baydroid.android_pan_zoom_bitmap_view.util;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+
+
+
+/**
+ * A byte budget for decoded bitmaps shared by any number of clients (PanZoomBitmapViews, BitmapPools), each of which
+ * is given an equal share to size its caches to. The budget shrinks a step at a time as the system reports memory
+ * pressure through ComponentCallbacks2.onTrimMemory(), and grows back a step at a time once the pressure has eased.
+ * Must only be used on the UI thread.
+ */
+public class MemoryBudget implements ComponentCallbacks2
+    {
+    /**
+     * The default budget is this fraction of the app's memory class (its heap size limit).
+     */
+    public static final float DEFAULT_MEMORY_CLASS_FRACTION = 0.25f;
+    /**
+     * How long without further memory pressure before the budget grows back a step (in milliseconds).
+     */
+    public static final long RECOVERY_STEP_MILLIS = 10000;
+
+    /**
+     * Something that sizes its caches to a share of the budget.
+     */
+    public interface Client
+        {
+        /**
+         * Called when the client's share of the budget changes, and when it's registered.
+         * @param maxBytes The client's share (in bytes), 0 if it should hold nothing it can do without.
+         */
+        void onBudgetChanged(int maxBytes);
+        }
+
+    private static final float[] STEPS = { 1.0f, 0.75f, 0.5f, 0.25f, 0.0f }; // The fractions of the budget available at each level of pressure.
+    private static MemoryBudget defaultBudget = null;
+
+    private final ArrayList<Client> clients = new ArrayList<Client>();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ActivityManager am;  // For checking whether the system is still low on memory before growing back, or null if unknown.
+    private int maxBytes;              // The budget before any trimming.
+    private int step = 0;              // Index into STEPS.
+    private final Runnable recover = new Runnable()
+        {
+
+        public void run()
+            {
+            if (step == 0) return;
+            if (am != null)
+                {
+                ActivityManager.MemoryInfo mi = new ActivityManager.MemoryInfo();
+                am.getMemoryInfo(mi);
+                if (mi.lowMemory)
+                    {
+                    handler.postDelayed(this, RECOVERY_STEP_MILLIS);
+                    return;
+                    }
+                }
+            setStep(step - 1);
+            if (step > 0) handler.postDelayed(this, RECOVERY_STEP_MILLIS);
+            }
+
+        };
+
+    /**
+     * Get the process wide budget, sized from the app's memory class and registered for the application's
+     * onTrimMemory() callbacks. PanZoomBitmapViews use it unless given another.
+     * @param ctx Any context of the app.
+     * @return The process wide budget.
+     */
+    public static MemoryBudget getDefault(Context ctx)
+        {
+        if (defaultBudget == null)
+            {
+            Context appCtx = ctx.getApplicationContext();
+            ActivityManager am = (ActivityManager)appCtx.getSystemService(Context.ACTIVITY_SERVICE);
+            int memoryClassMB = am != null ? am.getMemoryClass() : 64;
+            defaultBudget = new MemoryBudget((int)Math.min(Integer.MAX_VALUE, (long)(memoryClassMB*1024L*1024L*DEFAULT_MEMORY_CLASS_FRACTION)), am);
+            appCtx.registerComponentCallbacks(defaultBudget);
+            }
+        return defaultBudget;
+        }
+
+    /**
+     * Create a budget. To have it respond to memory pressure, register it with Context.registerComponentCallbacks(),
+     * or pass on onTrimMemory() calls to it.
+     * @param maxBytes The budget (in bytes) when there's no memory pressure.
+     */
+    public MemoryBudget(int maxBytes)
+        {
+        this(maxBytes, null);
+        }
+
+    private MemoryBudget(int maxBytes, ActivityManager am)
+        {
+        if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes must be positive");
+        this.maxBytes = maxBytes;
+        this.am = am;
+        }
+
+    /**
+     * Change the budget when there's no memory pressure.
+     * @param maxBytes The budget (in bytes).
+     * @return The MemoryBudget object on which this method is being called.
+     */
+    public MemoryBudget setMaxBytes(int maxBytes)
+        {
+        if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes must be positive");
+        this.maxBytes = maxBytes;
+        notifyClients();
+        return this;
+        }
+
+    /**
+     * Get the budget when there's no memory pressure.
+     * @return The budget (in bytes).
+     */
+    public int getMaxBytes()
+        {
+        return maxBytes;
+        }
+
+    /**
+     * Get the budget now, after any shrinking for memory pressure.
+     * @return The budget (in bytes).
+     */
+    public int getCurrentBytes()
+        {
+        return (int)(maxBytes*STEPS[step]);
+        }
+
+    /**
+     * Get a client's share of the budget now.
+     * @return The share (in bytes) each client gets.
+     */
+    public int getShareBytes()
+        {
+        return clients.isEmpty() ? getCurrentBytes() : getCurrentBytes()/clients.size();
+        }
+
+    /**
+     * Add a client, which is told its share straight away. The other clients' shares shrink to make room.
+     * @param client The client.
+     */
+    public void register(Client client)
+        {
+        if (clients.contains(client)) return;
+        clients.add(client);
+        notifyClients();
+        }
+
+    /**
+     * Remove a client. The other clients' shares grow.
+     * @param client The client.
+     */
+    public void unregister(Client client)
+        {
+        if (clients.remove(client)) notifyClients();
+        }
+
+    public void onTrimMemory(int level)
+        {
+        int s;
+        if (level >= TRIM_MEMORY_COMPLETE)
+            s = 4;
+        else if (level >= TRIM_MEMORY_RUNNING_CRITICAL)
+            s = 3; // Running but about to be killed, or (TRIM_MEMORY_UI_HIDDEN and up) hidden, so nothing needs drawing.
+        else if (level >= TRIM_MEMORY_RUNNING_LOW)
+            s = 2;
+        else if (level >= TRIM_MEMORY_RUNNING_MODERATE)
+            s = 1;
+        else
+            return;
+        handler.removeCallbacks(recover);
+        if (s > step) setStep(s);
+        handler.postDelayed(recover, RECOVERY_STEP_MILLIS);
+        }
+
+    public void onLowMemory()
+        {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+        }
+
+    public void onConfigurationChanged(Configuration newConfig)
+        {
+        }
+
+    private void setStep(int step)
+        {
+        if (step == this.step) return;
+        this.step = step;
+        notifyClients();
+        }
+
+    private void notifyClients()
+        {
+        int share = getShareBytes();
+        for (int i = 0; i < clients.size(); i++) clients.get(i).onBudgetChanged(share);
+        }
+    }
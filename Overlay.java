@@ -0,0 +1,149 @@
+package baydroid.android_pan_zoom_bitmap_view.util;
+
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+
+
+
+/**
+ * Something drawn over the image in an OverlayLayer (a marker, a polygon, ...), positioned in bitmap pixel
+ * co-ordinates so that it pans and zooms with the image. Subclasses draw themselves and, if their shape isn't their
+ * bounding box, hit test themselves. Overlays must only be used on the UI thread.
+ */
+public abstract class Overlay
+    {
+    float left;                      // Bounds (in bitmap pixel co-ordinates).
+    float top;
+    float right;
+    float bottom;
+    OverlayLayer layer = null;       // The layer the overlay's in, if any.
+    OverlayLayer.Node node = null;   // The layer's quadtree node the overlay's in.
+    long sequence;                   // Order of adding to the layer, for hit testing the topmost overlay.
+    private Object tag = null;
+
+    /**
+     * Create an overlay.
+     * @param left The left edge of the overlay's bounds (in bitmap pixel co-ordinates).
+     * @param top The top edge of the overlay's bounds (in bitmap pixel co-ordinates).
+     * @param right The right edge of the overlay's bounds (in bitmap pixel co-ordinates).
+     * @param bottom The bottom edge of the overlay's bounds (in bitmap pixel co-ordinates).
+     */
+    protected Overlay(float left, float top, float right, float bottom)
+        {
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+        }
+
+    /**
+     * Draw the overlay, on a canvas in view pixel co-ordinates. Only called when the overlay's bounds (extended by
+     * getScreenExtent()) intersect the visible part of the view and it's not part of a cluster.
+     * @param cvs The canvas.
+     * @param bmToView The bitmap to view transform, as the image is drawn through.
+     * @param scale The scale (view pixels per bitmap pixel), for sizing and simplifying the drawing to the zoom.
+     */
+    public abstract void draw(Canvas cvs, Matrix bmToView, float scale);
+
+    /**
+     * Is a point on the overlay? The default tests the bounds, extended by the screen extent.
+     * @param bmX The X co-ordinate of the point (in bitmap pixel co-ordinates).
+     * @param bmY The Y co-ordinate of the point (in bitmap pixel co-ordinates).
+     * @param slop How far off the overlay the point can be and still hit it (in bitmap pixels).
+     * @param scale The scale (view pixels per bitmap pixel).
+     * @return True if the point hits the overlay, false otherwise.
+     */
+    public boolean hitTest(float bmX, float bmY, float slop, float scale)
+        {
+        float margin = slop + getScreenExtent()/scale;
+        return bmX >= left - margin && bmX <= right + margin && bmY >= top - margin && bmY <= bottom + margin;
+        }
+
+    /**
+     * Get how far the overlay's drawing reaches beyond its bounds at any zoom, e.g. the radius of a marker drawn at a
+     * fixed size on screen. Must not change while the overlay's in a layer.
+     * @return The extent (in view pixels). The default is 0.
+     */
+    public float getScreenExtent()
+        {
+        return 0.0f;
+        }
+
+    /**
+     * Move the overlay, keeping its layer's index up to date.
+     * @param left The left edge of the overlay's new bounds (in bitmap pixel co-ordinates).
+     * @param top The top edge of the overlay's new bounds (in bitmap pixel co-ordinates).
+     * @param right The right edge of the overlay's new bounds (in bitmap pixel co-ordinates).
+     * @param bottom The bottom edge of the overlay's new bounds (in bitmap pixel co-ordinates).
+     */
+    protected void setBounds(float left, float top, float right, float bottom)
+        {
+        OverlayLayer l = layer;
+        if (l != null) l.remove(this);
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+        if (l != null) l.add(this);
+        }
+
+    /**
+     * @return The left edge of the overlay's bounds (in bitmap pixel co-ordinates).
+     */
+    public final float getLeft()
+        {
+        return left;
+        }
+
+    /**
+     * @return The top edge of the overlay's bounds (in bitmap pixel co-ordinates).
+     */
+    public final float getTop()
+        {
+        return top;
+        }
+
+    /**
+     * @return The right edge of the overlay's bounds (in bitmap pixel co-ordinates).
+     */
+    public final float getRight()
+        {
+        return right;
+        }
+
+    /**
+     * @return The bottom edge of the overlay's bounds (in bitmap pixel co-ordinates).
+     */
+    public final float getBottom()
+        {
+        return bottom;
+        }
+
+    /**
+     * Get the layer the overlay's in.
+     * @return The layer, or null if it's in none.
+     */
+    public final OverlayLayer getLayer()
+        {
+        return layer;
+        }
+
+    /**
+     * Attach an object of the caller's to the overlay, e.g. the record it marks.
+     * @param tag The object.
+     * @return The Overlay object on which this method is being called.
+     */
+    public Overlay setTag(Object tag)
+        {
+        this.tag = tag;
+        return this;
+        }
+
+    /**
+     * @return The object attached with setTag(), or null if there's none.
+     */
+    public Object getTag()
+        {
+        return tag;
+        }
+    }
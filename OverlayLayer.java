@@ -0,0 +1,476 @@
+package baydroid.android_pan_zoom_bitmap_view.util;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+
+/**
+ * A layer of overlays drawn over the image by the PanZoomBitmapViews it's added to, indexed by a quadtree over the
+ * bitmap so that drawing and hit testing only visit the overlays near the visible region or the point tested, however
+ * many there are. Each overlay is kept in the smallest quadtree cell wholly containing its bounds.
+ * <p>
+ * When zoomed out, quadtree cells smaller on screen than the cluster size which hold more than one overlay are drawn
+ * as a single cluster (by default a disc with the count) at the mean of their overlays' centers, so the cost of a
+ * frame is bounded by the size of the view rather than the number of overlays.
+ * <p>
+ * Overlapping overlays in the same layer are drawn in no particular order; use separate layers (e.g. polygons under
+ * markers) where the order matters. Layers must only be used on the UI thread.
+ */
+public class OverlayLayer
+    {
+    /**
+     * The default cluster size (in view pixels).
+     */
+    public static final float DEFAULT_CLUSTER_SIZE = 64.0f;
+    /**
+     * The most overlays a quadtree leaf holds before it's split.
+     */
+    static final int LEAF_CAPACITY = 16;
+    /**
+     * The quadtree's maximum depth, beyond which leaves aren't split however many overlays they hold.
+     */
+    static final int MAX_DEPTH = 16;
+
+    /**
+     * Draws clusters of overlays.
+     */
+    public interface ClusterRenderer
+        {
+        /**
+         * Draw a cluster, on a canvas in view pixel co-ordinates.
+         * @param cvs The canvas.
+         * @param viewX The X co-ordinate of the cluster's center (in view pixel co-ordinates).
+         * @param viewY The Y co-ordinate of the cluster's center (in view pixel co-ordinates).
+         * @param count The number of overlays in the cluster.
+         * @param clusterSize The layer's cluster size (in view pixels).
+         */
+        void drawCluster(Canvas cvs, float viewX, float viewY, int count, float clusterSize);
+        }
+
+    /**
+     * The default cluster renderer: a translucent disc with the count in the middle.
+     */
+    public static final ClusterRenderer DEFAULT_CLUSTER_RENDERER = new ClusterRenderer()
+        {
+
+        private final Paint discPaint = newPaint(0xC01E88E5);
+        private final Paint textPaint = newPaint(Color.WHITE);
+        private final String[] labels = new String[1000]; // Built as needed, so drawing doesn't allocate.
+
+        public void drawCluster(Canvas cvs, float viewX, float viewY, int count, float clusterSize)
+            {
+            float radius = clusterSize*0.3f;
+            cvs.drawCircle(viewX, viewY, radius, discPaint);
+            String label;
+            if (count < labels.length)
+                {
+                label = labels[count];
+                if (label == null) label = labels[count] = Integer.toString(count);
+                }
+            else
+                label = "999+";
+            textPaint.setTextSize(radius*0.8f);
+            cvs.drawText(label, viewX, viewY + radius*0.3f, textPaint);
+            }
+
+        private Paint newPaint(int color)
+            {
+            Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+            paint.setColor(color);
+            paint.setTextAlign(Paint.Align.CENTER);
+            return paint;
+            }
+
+        };
+
+    private final Node root;
+    private final ArrayList<PanZoomBitmapView> views = new ArrayList<PanZoomBitmapView>(); // The views the layer's added to.
+    private final float[] point = new float[2];  // For mapping cluster centers to the view.
+    private ClusterRenderer clusterRenderer = DEFAULT_CLUSTER_RENDERER;
+    private float clusterSize = DEFAULT_CLUSTER_SIZE;
+    private float maxScreenExtent = 0.0f;        // The largest getScreenExtent() of any overlay added (in view pixels).
+    private long sequence = 0;                   // Orders overlays by when they were added.
+    private boolean visible = true;
+    // The region being drawn or searched, and the scale, for the recursive traversals.
+    private float queryLeft;
+    private float queryTop;
+    private float queryRight;
+    private float queryBottom;
+    private float queryScale;
+    private Overlay hit;
+
+    /**
+     * Create an overlay layer.
+     * @param width The width of the bitmap the overlays are on (in bitmap pixels). Overlays outside the bitmap are allowed, but aren't indexed as efficiently.
+     * @param height The height of the bitmap the overlays are on (in bitmap pixels).
+     */
+    public OverlayLayer(float width, float height)
+        {
+        if (!(width > 0.0f) || !(height > 0.0f)) throw new IllegalArgumentException("width and height must be positive");
+        root = new Node(null, 0.0f, 0.0f, width, height, 0);
+        }
+
+    /**
+     * Add an overlay. An overlay can only be in one layer at a time.
+     * @param overlay The overlay.
+     * @return The OverlayLayer object on which this method is being called.
+     */
+    public OverlayLayer add(Overlay overlay)
+        {
+        if (overlay.layer != null) throw new IllegalStateException("The overlay is already in a layer");
+        overlay.layer = this;
+        overlay.sequence = sequence++;
+        float extent = overlay.getScreenExtent();
+        if (extent > maxScreenExtent) maxScreenExtent = extent;
+        insert(overlay);
+        invalidateViews();
+        return this;
+        }
+
+    /**
+     * Remove an overlay.
+     * @param overlay The overlay.
+     * @return True if the overlay was in this layer, false otherwise.
+     */
+    public boolean remove(Overlay overlay)
+        {
+        if (overlay.layer != this) return false;
+        Node n = overlay.node;
+        n.items.remove(overlay);
+        float cx = (overlay.left + overlay.right)/2.0f;
+        float cy = (overlay.top + overlay.bottom)/2.0f;
+        for (; n != null; n = n.parent)
+            {
+            n.count--;
+            n.sumX -= cx;
+            n.sumY -= cy;
+            }
+        overlay.node = null;
+        overlay.layer = null;
+        invalidateViews();
+        return true;
+        }
+
+    /**
+     * Remove all the overlays.
+     */
+    public void clear()
+        {
+        clear(root);
+        root.children = null;
+        root.count = 0;
+        root.sumX = root.sumY = 0.0;
+        invalidateViews();
+        }
+
+    /**
+     * @return The number of overlays in the layer.
+     */
+    public int size()
+        {
+        return root.count;
+        }
+
+    /**
+     * Show or hide the layer.
+     * @param visible True to draw the layer, false not to.
+     * @return The OverlayLayer object on which this method is being called.
+     */
+    public OverlayLayer setVisible(boolean visible)
+        {
+        this.visible = visible;
+        invalidateViews();
+        return this;
+        }
+
+    /**
+     * @return True if the layer's drawn, false if it's hidden.
+     */
+    public boolean isVisible()
+        {
+        return visible;
+        }
+
+    /**
+     * Set the cluster size: quadtree cells holding more than one overlay are drawn as clusters when they're smaller than this on screen.
+     * @param clusterSize The cluster size (in view pixels), 0 to never cluster. The default is DEFAULT_CLUSTER_SIZE.
+     * @return The OverlayLayer object on which this method is being called.
+     */
+    public OverlayLayer setClusterSize(float clusterSize)
+        {
+        this.clusterSize = clusterSize;
+        invalidateViews();
+        return this;
+        }
+
+    /**
+     * Set what draws clusters.
+     * @param clusterRenderer The renderer. The default is DEFAULT_CLUSTER_RENDERER.
+     * @return The OverlayLayer object on which this method is being called.
+     */
+    public OverlayLayer setClusterRenderer(ClusterRenderer clusterRenderer)
+        {
+        if (clusterRenderer == null) throw new IllegalArgumentException("clusterRenderer must not be null");
+        this.clusterRenderer = clusterRenderer;
+        invalidateViews();
+        return this;
+        }
+
+    /**
+     * Find the overlays whose bounds intersect a region.
+     * @param left The left edge of the region (in bitmap pixel co-ordinates).
+     * @param top The top edge of the region (in bitmap pixel co-ordinates).
+     * @param right The right edge of the region (in bitmap pixel co-ordinates).
+     * @param bottom The bottom edge of the region (in bitmap pixel co-ordinates).
+     * @param out Receives the overlays, in no particular order. It isn't cleared first.
+     * @return out.
+     */
+    public List<Overlay> query(float left, float top, float right, float bottom, List<Overlay> out)
+        {
+        queryLeft = left;
+        queryTop = top;
+        queryRight = right;
+        queryBottom = bottom;
+        query(root, out);
+        return out;
+        }
+
+    /**
+     * Find the topmost (most recently added) overlay at a point.
+     * @param bmX The X co-ordinate of the point (in bitmap pixel co-ordinates).
+     * @param bmY The Y co-ordinate of the point (in bitmap pixel co-ordinates).
+     * @param slop How far off an overlay the point can be and still hit it (in bitmap pixels).
+     * @param scale The scale the overlays are drawn at (view pixels per bitmap pixel), for overlays sized on screen.
+     * @return The overlay, or null if the point hits none.
+     */
+    public Overlay hitTest(float bmX, float bmY, float slop, float scale)
+        {
+        float margin = slop + maxScreenExtent/scale;
+        queryLeft = bmX - margin;
+        queryTop = bmY - margin;
+        queryRight = bmX + margin;
+        queryBottom = bmY + margin;
+        queryScale = scale;
+        hit = null;
+        hitTest(root, bmX, bmY, slop);
+        Overlay h = hit;
+        hit = null;
+        return h;
+        }
+
+    // Draw the overlays intersecting the visible region, on a canvas in view pixel co-ordinates.
+    void draw(Canvas cvs, Matrix bmToView, float scale, float left, float top, float right, float bottom)
+        {
+        if (!visible || root.count == 0) return;
+        float margin = maxScreenExtent/scale;
+        queryLeft = left - margin;
+        queryTop = top - margin;
+        queryRight = right + margin;
+        queryBottom = bottom + margin;
+        queryScale = scale;
+        draw(root, cvs, bmToView);
+        }
+
+    void attach(PanZoomBitmapView view)
+        {
+        if (!views.contains(view)) views.add(view);
+        }
+
+    void detach(PanZoomBitmapView view)
+        {
+        views.remove(view);
+        }
+
+    private void invalidateViews()
+        {
+        for (int i = 0; i < views.size(); i++) views.get(i).invalidate();
+        }
+
+    private void insert(Overlay o)
+        {
+        float cx = (o.left + o.right)/2.0f;
+        float cy = (o.top + o.bottom)/2.0f;
+        Node n = root;
+        while (true)
+            {
+            n.count++;
+            n.sumX += cx;
+            n.sumY += cy;
+            if (n.children == null)
+                {
+                if (n.items.size() < LEAF_CAPACITY || n.depth >= MAX_DEPTH)
+                    {
+                    n.add(o);
+                    return;
+                    }
+                n.split();
+                }
+            Node child = n.childContaining(o);
+            if (child == null)
+                {
+                n.add(o);
+                return;
+                }
+            n = child;
+            }
+        }
+
+    private void clear(Node n)
+        {
+        for (int i = 0; i < n.items.size(); i++)
+            {
+            Overlay o = n.items.get(i);
+            o.node = null;
+            o.layer = null;
+            }
+        n.items.clear();
+        if (n.children != null)
+            for (int i = 0; i < 4; i++) clear(n.children[i]);
+        }
+
+    private boolean intersectsQuery(Node n)
+        {
+        return n == root || (n.left <= queryRight && n.right >= queryLeft && n.top <= queryBottom && n.bottom >= queryTop); // Overlays outside the bitmap are at the root.
+        }
+
+    private boolean intersectsQuery(Overlay o)
+        {
+        return o.left <= queryRight && o.right >= queryLeft && o.top <= queryBottom && o.bottom >= queryTop;
+        }
+
+    private void draw(Node n, Canvas cvs, Matrix bmToView)
+        {
+        if (n.count == 0 || !intersectsQuery(n)) return;
+        if (n != root && n.count > 1 && (n.right - n.left)*queryScale < clusterSize)
+            {
+            point[0] = (float)(n.sumX/n.count);
+            point[1] = (float)(n.sumY/n.count);
+            bmToView.mapPoints(point);
+            clusterRenderer.drawCluster(cvs, point[0], point[1], n.count, clusterSize);
+            return;
+            }
+        for (int i = 0; i < n.items.size(); i++)
+            {
+            Overlay o = n.items.get(i);
+            if (intersectsQuery(o)) o.draw(cvs, bmToView, queryScale);
+            }
+        if (n.children != null)
+            for (int i = 0; i < 4; i++) draw(n.children[i], cvs, bmToView);
+        }
+
+    private void query(Node n, List<Overlay> out)
+        {
+        if (n.count == 0 || !intersectsQuery(n)) return;
+        for (int i = 0; i < n.items.size(); i++)
+            {
+            Overlay o = n.items.get(i);
+            if (intersectsQuery(o)) out.add(o);
+            }
+        if (n.children != null)
+            for (int i = 0; i < 4; i++) query(n.children[i], out);
+        }
+
+    private void hitTest(Node n, float bmX, float bmY, float slop)
+        {
+        if (n.count == 0 || !intersectsQuery(n)) return;
+        for (int i = 0; i < n.items.size(); i++)
+            {
+            Overlay o = n.items.get(i);
+            if ((hit == null || o.sequence > hit.sequence) && intersectsQuery(o) && o.hitTest(bmX, bmY, slop, queryScale)) hit = o;
+            }
+        if (n.children != null)
+            for (int i = 0; i < 4; i++) hitTest(n.children[i], bmX, bmY, slop);
+        }
+
+    /**
+     * A quadtree cell.
+     */
+    static class Node
+        {
+        final Node parent;
+        final float left;
+        final float top;
+        final float right;
+        final float bottom;
+        final int depth;
+        final ArrayList<Overlay> items = new ArrayList<Overlay>(); // The overlays in this cell which aren't wholly in one of its children.
+        Node[] children = null;  // Top left, top right, bottom left, bottom right, or null for a leaf.
+        int count = 0;           // The number of overlays in this cell and its descendants.
+        double sumX = 0.0;       // Sums of their centers, for placing clusters.
+        double sumY = 0.0;
+
+        Node(Node parent, float left, float top, float right, float bottom, int depth)
+            {
+            this.parent = parent;
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+            this.depth = depth;
+            }
+
+        void add(Overlay o)
+            {
+            items.add(o);
+            o.node = this;
+            }
+
+        // Make the children, and move the overlays that fit in one down into it.
+        void split()
+            {
+            float midX = (left + right)/2.0f;
+            float midY = (top + bottom)/2.0f;
+            children = new Node[]
+                {
+                new Node(this, left, top, midX, midY, depth + 1),
+                new Node(this, midX, top, right, midY, depth + 1),
+                new Node(this, left, midY, midX, bottom, depth + 1),
+                new Node(this, midX, midY, right, bottom, depth + 1)
+                };
+            int kept = 0;
+            for (int i = 0; i < items.size(); i++)
+                {
+                Overlay o = items.get(i);
+                Node child = childContaining(o);
+                if (child == null)
+                    items.set(kept++, o);
+                else
+                    {
+                    child.add(o);
+                    child.count++;
+                    child.sumX += (o.left + o.right)/2.0f;
+                    child.sumY += (o.top + o.bottom)/2.0f;
+                    }
+                }
+            while (items.size() > kept) items.remove(items.size() - 1);
+            }
+
+        // The child wholly containing an overlay's bounds, or null if none does.
+        Node childContaining(Overlay o)
+            {
+            float midX = (left + right)/2.0f;
+            float midY = (top + bottom)/2.0f;
+            int col;
+            if (o.left >= left && o.right <= midX)
+                col = 0;
+            else if (o.left >= midX && o.right <= right)
+                col = 1;
+            else
+                return null;
+            int row;
+            if (o.top >= top && o.bottom <= midY)
+                row = 0;
+            else if (o.top >= midY && o.bottom <= bottom)
+                row = 1;
+            else
+                return null;
+            return children[row*2 + col];
+            }
+        }
+    }
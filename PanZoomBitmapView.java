@@ -1,11 +1,22 @@
 package baydroid.android_pan_zoom_bitmap_view.util;
 
+import android.animation.TimeInterpolator;
 import android.content.Context;
+import android.net.Uri;
 import android.util.AttributeSet;
+import android.view.Choreographer;
 import android.view.View;
 import android.graphics.Canvas;
 import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.graphics.Paint;
 import android.graphics.Rect;
+import android.graphics.RectF;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 
 
 
@@ -30,19 +41,256 @@ public class PanZoomBitmapView extends View
         FITS_OR_1TO1
         }
 
-    private static final int MIN_BM_RECT_DIMENSION = 32;
+    /**
+     * Options for the pixel format images are decoded to and pyramid levels are built in.
+     */
+    public enum PixelFormat
+        {
+        /**
+         * The cheapest format that shows the image without visible loss: RGB_565 for opaque colour images, ALPHA_8
+         * holding the grey level for opaque greyscale images, and ARGB_8888 for images with transparency.
+         */
+        AUTO,
+        /**
+         * Always ARGB_8888, as decoded by default.
+         */
+        ARGB_8888,
+        /**
+         * Always RGB_565, dropping any transparency.
+         */
+        RGB_565,
+        /**
+         * HARDWARE (GPU memory only) for full resolution images where the platform supports it (Android 8.0 and up),
+         * otherwise as AUTO. Tiles and previews are as AUTO. Hardware bitmaps can't be pooled, and can't be drawn by
+         * software rendering, so only use this with a hardware accelerated view.
+         */
+        HARDWARE
+        }
+
+    /**
+     * Callback for the outcome of loadImage().
+     */
+    public interface OnImageLoadListener
+        {
+        /**
+         * Called when the full resolution image (or tiled image source) has been decoded and is showing.
+         * @param view The view the image was loaded into.
+         */
+        void onImageLoaded(PanZoomBitmapView view);
+
+        /**
+         * Called when the image couldn't be loaded.
+         * @param view The view the image was being loaded into.
+         * @param e What went wrong.
+         */
+        void onImageLoadFailed(PanZoomBitmapView view, IOException e);
+        }
+
+    /**
+     * Callback for when the viewport the view draws changes.
+     */
+    public interface OnViewportChangeListener
+        {
+        /**
+         * Called on the UI thread, as a frame with a changed viewport (or image, or view size) is drawn, so should only
+         * hand off the work, e.g. wake a worker thread to read getViewportSnapshot().
+         * @param view The view.
+         * @param version The version of the new viewport, as getViewportSnapshot() gives it.
+         */
+        void onViewportChanged(PanZoomBitmapView view, long version);
+        }
+
+    /**
+     * Chooses how the image is drawn each frame, so that drawing can trade quality for speed while the image is in
+     * motion (being panned, flung or zoomed) and make up for it with a single high quality redraw when it comes to rest.
+     */
+    public interface RenderQualityPolicy
+        {
+        /**
+         * Choose the sample size (pyramid level) to draw the image at. A coarser level than the zoom calls for is only
+         * drawn if it's ready; otherwise it's built in the background and the level the zoom calls for is drawn.
+         * @param view The view being drawn.
+         * @param sampleSize The sample size the zoom calls for (a power of 2, 1 for full resolution).
+         * @param inMotion Whether or not the image is in motion.
+         * @return The sample size to draw at, a power of 2 (e.g. sampleSize*2 to draw a coarser level).
+         */
+        int getSampleSize(PanZoomBitmapView view, int sampleSize, boolean inMotion);
+
+        /**
+         * Choose whether or not to filter the image when it's drawn scaled.
+         * @param view The view being drawn.
+         * @param sampleSize The sample size being drawn at.
+         * @param inMotion Whether or not the image is in motion.
+         * @return True to filter (smoother, slower), false for nearest neighbour sampling.
+         */
+        boolean isFilterBitmap(PanZoomBitmapView view, int sampleSize, boolean inMotion);
+        }
+
+    /**
+     * The default render quality policy: nearest neighbour sampling while in motion, filtering at rest.
+     */
+    public static final RenderQualityPolicy RENDER_FILTER_AT_REST = new RenderQualityPolicy()
+        {
+
+        public int getSampleSize(PanZoomBitmapView view, int sampleSize, boolean inMotion)
+            {
+            return sampleSize;
+            }
+
+        public boolean isFilterBitmap(PanZoomBitmapView view, int sampleSize, boolean inMotion)
+            {
+            return !inMotion;
+            }
+
+        };
+
+    /**
+     * A render quality policy for slow devices: a level twice as coarse, with nearest neighbour sampling, while in
+     * motion, and the level the zoom calls for, filtered, at rest.
+     */
+    public static final RenderQualityPolicy RENDER_COARSE_IN_MOTION = new RenderQualityPolicy()
+        {
+
+        public int getSampleSize(PanZoomBitmapView view, int sampleSize, boolean inMotion)
+            {
+            return inMotion ? 2*sampleSize : sampleSize;
+            }
+
+        public boolean isFilterBitmap(PanZoomBitmapView view, int sampleSize, boolean inMotion)
+            {
+            return !inMotion;
+            }
+
+        };
+
+    /**
+     * A render quality policy which always draws the level the zoom calls for, filtered.
+     */
+    public static final RenderQualityPolicy RENDER_ALWAYS_FILTER = new RenderQualityPolicy()
+        {
+
+        public int getSampleSize(PanZoomBitmapView view, int sampleSize, boolean inMotion)
+            {
+            return sampleSize;
+            }
+
+        public boolean isFilterBitmap(PanZoomBitmapView view, int sampleSize, boolean inMotion)
+            {
+            return true;
+            }
+
+        };
+
+    /**
+     * The default duration of animated zooms and pans (in milliseconds).
+     */
+    public static final long DEFAULT_ZOOM_DURATION_MILLIS = 250;
+
+    /**
+     * The default interpolator for animated zooms and pans: starts quickly and eases in to the end (a cubic ease out).
+     */
+    public static final TimeInterpolator DEFAULT_ZOOM_INTERPOLATOR = new TimeInterpolator()
+        {
+
+        public float getInterpolation(float t)
+            {
+            float r = 1.0f - t;
+            return 1.0f - r*r*r;
+            }
+
+        };
+
+    /**
+     * Where the view is panned and zoomed to on an image, independent of the view's size, for saving and restoring.
+     */
+    public static class ViewportState
+        {
+        /**
+         * The X co-ordinate of the center of the viewport (in bitmap pixel co-ordinates).
+         */
+        public float centerX;
+        /**
+         * The Y co-ordinate of the center of the viewport (in bitmap pixel co-ordinates).
+         */
+        public float centerY;
+        /**
+         * The scale (bitmap pixels per view pixel).
+         */
+        public float scaleFactor;
+        /**
+         * Whether or not the image is zoomed to fit, in which case it's zoomed to fit again on restoring, whatever the view's size.
+         */
+        public boolean zoomedToFit;
+
+        /**
+         * Copy another viewport state.
+         * @param other The viewport state to copy.
+         * @return The ViewportState object on which this method is being called.
+         */
+        public ViewportState set(ViewportState other)
+            {
+            centerX = other.centerX;
+            centerY = other.centerY;
+            scaleFactor = other.scaleFactor;
+            zoomedToFit = other.zoomedToFit;
+            return this;
+            }
+        }
+
+    private static final int PREFETCH_PATH_STEPS = 4;           // How many points along a predicted pan to prefetch tiles for.
+    private static final float PREFETCH_STEP_DISTANCE = 1.0e4f; // Orders prefetches by step before distance (in squared tiles).
 
     private Bitmap bm = null;                // The bitmap.
     private int bmW = -1;                    // Bitmap width in pixels.
     private int bmH = -1;                    // Bitmap height in pixels.
-    private MaxZoomOut mzo = MaxZoomOut.BY8; // Maximum allowed zoom out.
-    private int minViewInBmRDimension = -1;  // Minimum height or width of the view mapped into the bitmap's co-ordinate space (in bitmap pixels).
-    private int layoutViewW = 0;             // The view width (in view pixels) at the time the layout (I.E. viewInBmR) was computed.
-    private int layoutViewH = 0;             // The view height (in view pixels) at the time the layout (I.E. viewInBmR) was computed.
-    private Rect viewInBmR = null;           // The frame of the view mapped into the bitmap's co-ordinate space (in bitmap pixel co-ordinates).
-    private Rect prevViewInBmR = new Rect(); // viewInBmR as before a call to zoom() or pan() etc. Used for checking to see if anything changed during the call.
+    private BitmapPyramid pyramid = null;    // Subsampled levels of bm, built lazily for drawing when zoomed out.
+    private BitmapChunks bmChunks = null;    // bm copied into chunks the canvas can draw, if it's too large to draw in one piece.
+    private Bitmap chunkingBm = null;        // The bitmap being copied into chunks on the loader thread, if any.
+    private final ArrayList<ChunkCopy> chunkCopies = new ArrayList<ChunkCopy>(); // Copies into chunks not yet done, whose bitmaps can't be pooled until they are.
+    private int maxBitmapSize = 0;           // The largest bitmap width and height the canvas can draw, 0 until the first draw.
+    private TiledImageSource tiles = null;   // The tiled image source, used instead of bm for images too large to decode in one piece.
+    private Bitmap preview = null;           // A subsampled copy of the image being loaded, shown until bm is decoded, and in place of tiles not yet decoded.
+    private boolean ownsTiles = false;       // Whether or not tiles was created by loadImage(), in which case it's recycled when replaced.
+    private boolean ownsBm = false;          // Whether or not bm was decoded by loadImage(), in which case it's pooled when replaced.
+    private BitmapPool bitmapPool = null;    // Where images, levels and tiles are decoded into and released to, or null for none.
+    private final BitmapReleaseQueue releaseQueue = new BitmapReleaseQueue(); // Holds released bitmaps back from bitmapPool until the frames showing them have gone.
+    private MemoryBudget memoryBudget = null; // The budget the caches are sized to, or null for MemoryBudget.getDefault().
+    private MemoryBudget registeredBudget = null; // The budget registered with while attached to a window.
+    private int budgetBytes = -1;            // This view's share of the budget, -1 while not registered (the caches keep their default sizes).
+    private final BudgetClient budgetClient = new BudgetClient();
+    private ImageLoader.Request loadRequest = null; // The load in progress, if any.
+    private OnImageLoadListener onImageLoadListener = null;
+    private TileDiskCache tileDiskCache = null; // Persistent cache for the tiles of images loaded by loadImage(), or null for none.
+    private ImageCache imageCache = null;    // Where images loaded by loadImage() are kept when replaced, or null for none.
+    private String imageKey = null;          // The image cache key of the image loaded by loadImage(), or null if it has none.
+    private ViewportState pendingViewport = null; // A viewport to restore at the next draw, or null for none.
+    private final TileDecodedListener tileDecodedListener = new TileDecodedListener();
+    private final LoaderCallback loaderCallback = new LoaderCallback();
+    private final ViewportEngine engine = new ViewportEngine(); // The pan and zoom transform math, including the view mapped into the bitmap's co-ordinate space.
     private Rect bmShowingR = new Rect();    // The part of the bitmap showing (in bitmap pixel co-ordinates).
-    private Rect viewShowingR = new Rect();  // The part of the view showing the bitmap (in view pixel co-ordinates).
+    private Matrix drawMatrix = new Matrix(); // The bitmap to view transform the image is drawn through.
+    private Rect levelSrcR = new Rect();     // bmShowingR mapped into the pyramid level being drawn (in level pixel co-ordinates).
+    private RectF tileDstR = new RectF();    // Where a tile is drawn (in bitmap pixel co-ordinates).
+    private RenderQualityPolicy renderQualityPolicy = RENDER_FILTER_AT_REST;
+    private boolean inMotion = false;        // Whether or not the image is being panned, flung or zoomed.
+    private final Paint filterPaint = newBitmapPaint(true);   // For drawing the image filtered.
+    private final Paint nearestPaint = newBitmapPaint(false); // For drawing the image with nearest neighbour sampling.
+    private Paint drawPaint = filterPaint;   // The paint the current frame is drawn with.
+    private final Paint grayFilterPaint = PixelFormats.newGrayPaint(true);   // For drawing greyscale ALPHA_8 bitmaps filtered.
+    private final Paint grayNearestPaint = PixelFormats.newGrayPaint(false); // For drawing greyscale ALPHA_8 bitmaps with nearest neighbour sampling.
+    private Paint grayDrawPaint = grayFilterPaint; // The paint the current frame draws greyscale ALPHA_8 bitmaps with.
+    private PixelFormat pixelFormat = PixelFormat.AUTO;
+    private final ArrayList<OverlayLayer> overlayLayers = new ArrayList<OverlayLayer>(); // Drawn over the image, bottom first.
+    private boolean grayAlpha8 = true;       // Whether ALPHA_8 bitmaps hold grey images (as decoded by loadImage()) rather than masks (as passed to setImageBitmap()).
+    private ScrollBlitter scrollBlitter = null; // The last frame, for drawing only what a pan exposes on software canvases, or null if scroll-blit mode is off.
+    private boolean frameComplete;           // Whether or not the frame being drawn shows the image as it will stay, with no stand-ins for tiles not yet decoded.
+    private ViewMetrics metrics = null;      // Where to count draws, pans, zooms and cache hits, or null for nowhere.
+    private final ZoomAnimation zoomAnimation = new ZoomAnimation();
+    private final ViewportPublisher viewportPublisher = new ViewportPublisher(); // Each frame's viewport, for reading on other threads.
+    private final ArrayList<OnViewportChangeListener> viewportListeners = new ArrayList<OnViewportChangeListener>();
+    private TimeInterpolator zoomInterpolator = DEFAULT_ZOOM_INTERPOLATOR;
+    private boolean animationFrameScheduled = false; // Whether or not animationFrame is posted to the Choreographer.
+    private final AnimationFrame animationFrame = new AnimationFrame();
 
     public PanZoomBitmapView(Context ctx)
         {
@@ -60,407 +308,1594 @@ public class PanZoomBitmapView extends View
         }
 
     /**
-     * Load a new bitmap.
+     * Load a new bitmap. A bitmap larger than the canvas can draw in one piece (e.g. larger than the maximum GPU texture
+     * size) is copied into chunks small enough to draw, once, when the canvas's limit is known.
      * @param bm The bitmap to load, or null to show no bitmap.
      * @return The PanZoomBitmapView object on which this method is being called.
      */
     public PanZoomBitmapView setImageBitmap(Bitmap bm)
         {
-        viewInBmR = null;
-        this.bm = bm;
-        if (bm != null)
-            {
-            bmW = bm.getWidth();
-            bmH = bm.getHeight();
-            minViewInBmRDimension = MIN_BM_RECT_DIMENSION > bmW ? bmW : MIN_BM_RECT_DIMENSION;
-            if (minViewInBmRDimension > bmH) minViewInBmRDimension = bmH;
-            }
-        else
-            {
-            bmW = -1;
-            bmH = -1;
-            }
-        invalidate();
-        return this;
+        cancelImageLoad();
+        return setImage(bm, null);
         }
 
     /**
-     * Clear any loaded bitmap.
+     * Load a new tiled image source. Only the tiles under the visible part of the view are decoded, so memory use
+     * depends on the size of the view rather than the size of the image.
+     * @param tiles The tiled image source to load, or null to show no image.
      * @return The PanZoomBitmapView object on which this method is being called.
      */
-    public PanZoomBitmapView clearImageBitmap()
+    public PanZoomBitmapView setImageSource(TiledImageSource tiles)
         {
-        return setImageBitmap(null);
+        cancelImageLoad();
+        return setImage(null, tiles);
         }
 
     /**
-     * Is there a loaded bitmap?
-     * @return true if there's a bitmap already loaded and false if there's no bitmap loaded.
+     * Load an image file, decoding it off the UI thread. A heavily subsampled preview is shown as soon as it's decoded,
+     * then replaced by the full resolution image (or, for images too large to decode in one piece, a tiled image
+     * source) without disturbing any panning or zooming done in the meantime. Any load already in progress is cancelled.
+     * @param file The image file.
+     * @return The PanZoomBitmapView object on which this method is being called.
      */
-    public boolean hasLoadedBitmap()
+    public PanZoomBitmapView loadImage(File file)
         {
-        return bm != null;
+        return loadImage(ImageCache.keyFor(file), ImageLoader.fileSource(file));
         }
 
     /**
-     * Get the currently loaded bitmap.
-     * @return The currently loaded bitmap.
+     * Load an image from a content or file Uri, decoding it off the UI thread, as with loadImage(File).
+     * @param uri The Uri of the image.
+     * @return The PanZoomBitmapView object on which this method is being called.
      */
-    public Bitmap getBitmap()
+    public PanZoomBitmapView loadImage(Uri uri)
         {
-        return bm;
+        return loadImage(ImageCache.keyFor(uri), ImageLoader.uriSource(getContext().getContentResolver(), uri));
         }
 
     /**
-     * Get the width in pixels of the currently loaded bitmap.
-     * @return The width in pixels of the currently loaded bitmap.
+     * Load an image from a stream, reading and decoding it off the UI thread, as with loadImage(File). The stream is read
+     * into memory in full, and isn't closed.
+     * @param is The stream to read the image from.
+     * @return The PanZoomBitmapView object on which this method is being called.
      */
-    public int getBitmapWidth()
+    public PanZoomBitmapView loadImage(InputStream is)
         {
-        return bmW;
+        return loadImage(null, ImageLoader.streamSource(is));
+        }
+
+    // Load an image, from the image cache if it's there (or being preloaded), otherwise from its source. Images from
+    // streams have no key, so are never cached.
+    private PanZoomBitmapView loadImage(String key, ImageLoader.Source src)
+        {
+        cancelImageLoad();
+        setImage(null, null);
+        if (imageCache == null || key == null)
+            {
+            loadRequest = newLoadRequest(src).start();
+            return this;
+            }
+        imageKey = key;
+        ViewportState saved = imageCache.getViewport(key);
+        pendingViewport = saved != null ? new ViewportState().set(saved) : null;
+        ImageCache.Entry e = imageCache.take(key);
+        if (e == null)
+            {
+            loadRequest = imageCache.adoptPreload(key, loaderCallback);
+            if (metrics != null) metrics.recordImageCache(false, loadRequest != null);
+            if (loadRequest == null) loadRequest = newLoadRequest(src).start();
+            return this;
+            }
+        if (metrics != null) metrics.recordImageCache(e.bm != null || e.tiles != null, true);
+        showDecoded(e.bm, e.tiles);
+        preview = e.preview;
+        setImageSize(e.width, e.height);
+        invalidateImage();
+        if (e.bm == null && e.tiles == null) // Only the preview was preloaded.
+            loadRequest = newLoadRequest(src).setSkipPreview(true).start();
+        else if (onImageLoadListener != null)
+            onImageLoadListener.onImageLoaded(this);
+        return this;
+        }
+
+    private ImageLoader.Request newLoadRequest(ImageLoader.Source src)
+        {
+        return ImageLoader.newRequest(src, loaderCallback).setDiskCache(tileDiskCache).setBitmapPool(bitmapPool).setPixelFormat(pixelFormat);
         }
 
     /**
-     * Get the height in pixels of the currently loaded bitmap.
-     * @return The height in pixels of the currently loaded bitmap.
+     * Cancel any image load in progress. Whatever has been loaded so far (e.g. the preview) stays showing.
      */
-    public int getBitmapHeight()
+    public void cancelImageLoad()
         {
-        return bmH;
+        if (loadRequest == null) return;
+        loadRequest.cancel();
+        loadRequest = null;
         }
 
     /**
-     * Set the maximum zoom out, or how small can the image get in the view.
-     * @param mzo One of the values of the PanZoomBitmapView.MaxZoomOut enum.
+     * Is there an image load in progress?
+     * @return True if there's an image load in progress, false otherwise.
+     */
+    public boolean isLoadingImage()
+        {
+        return loadRequest != null;
+        }
+
+    /**
+     * Set a persistent cache for the tiles of images too large to decode in one piece, used by subsequent calls to
+     * loadImage(). Reloading an image whose tiles are in the cache (even in a later run of the app) reads them from
+     * disk rather than decoding the image again. A cache can be shared by any number of views.
+     * @param tileDiskCache The cache, or null for none.
      * @return The PanZoomBitmapView object on which this method is being called.
      */
-    public PanZoomBitmapView setMaxZoomOut(MaxZoomOut mzo)
+    public PanZoomBitmapView setTileDiskCache(TileDiskCache tileDiskCache)
         {
-        this.mzo = mzo;
+        this.tileDiskCache = tileDiskCache;
         return this;
         }
 
     /**
-     * Slide the bitmap image (if it's zoomed in enough that only part of the bitmap's showing).
-     * @param deltaX Amount to slide in the horizontal direction (in view pixel co-ordinates).
-     * @param deltaY Amount to slide in the vertical direction (in view pixel co-ordinates).
-     * @return True if there was any change to the contents of the view and false if the view remains unchanged (e.g. panning past the edge of the bitmap).
+     * Set a pool of bitmaps to reuse, through BitmapFactory.Options.inBitmap, for the images, pyramid levels and tiles
+     * decoded by subsequent calls to loadImage(). Bitmaps the view decoded itself are returned to the pool when they're
+     * evicted or the image is replaced (once the view has drawn a frame without them, as the last frame's display list
+     * may still draw them), so don't hold on to the bitmap returned by getBitmap() after replacing the image.
+     * Bitmaps passed to setImageBitmap() are never pooled. A pool can be shared by any number of views.
+     * @param bitmapPool The pool, or null for none.
+     * @return The PanZoomBitmapView object on which this method is being called.
      */
-    public boolean pan(int deltaX, int deltaY)
+    public PanZoomBitmapView setBitmapPool(BitmapPool bitmapPool)
         {
-        if (bm == null || viewInBmR == null) return false;
-        prevViewInBmR.set(viewInBmR);
-        float scaleFactor = computeScaleFactor();
-        viewInBmR.offset(Math.round(scaleFactor*((float)deltaX)), Math.round(scaleFactor*((float)deltaY)));
-        tidyPosition();
-        if (!viewInBmR.equals(prevViewInBmR))
-            {
-            invalidate();
-            return true;
-            }
-        else
-            return false;
+        this.bitmapPool = bitmapPool;
+        return this;
         }
 
     /**
-     * Zoom so that the bitmap image is the largest it can be and still fit the entire bitmap in the view.
-     * @return True if there was any change to the contents of the view and false if the view remains unchanged (e.g. if it was already zoomed to fit).
+     * Set the memory budget the view sizes its caches (pyramid levels, and the decoded tiles of images loaded by
+     * loadImage()) to while it's attached to a window. The view gets an equal share of the budget with the budget's
+     * other clients, which shrinks under memory pressure. Give several views the same budget to have them share it.
+     * @param memoryBudget The budget, or null for the process wide MemoryBudget.getDefault() (the default).
+     * @return The PanZoomBitmapView object on which this method is being called.
      */
-    public boolean zoomToFit()
+    public PanZoomBitmapView setMemoryBudget(MemoryBudget memoryBudget)
         {
-        if (bm == null) return false;
-        boolean firstTime = viewInBmR == null;
-        if (firstTime)
-            viewInBmR = new Rect();
-        else
-            prevViewInBmR.set(viewInBmR);
-        zoomToFitNoInvalidate();
-        if (firstTime || !viewInBmR.equals(prevViewInBmR))
+        this.memoryBudget = memoryBudget;
+        if (registeredBudget != null)
             {
-            invalidate();
-            return true;
+            registeredBudget.unregister(budgetClient);
+            registerBudget();
             }
-        else
-            return false;
+        return this;
         }
 
-    private void zoomToFitNoInvalidate()
+    /**
+     * Set a cache to keep the images loaded by loadImage(File) and loadImage(Uri) in when they're replaced, along with
+     * where the view was panned and zoomed to on them. Loading an image that's in the cache shows it straight away, as
+     * it was left, and loading one that's being preloaded by the cache takes over the preload. A cache can be shared by
+     * any number of views, e.g. the pages of a pager.
+     * @param imageCache The cache, or null for none.
+     * @return The PanZoomBitmapView object on which this method is being called.
+     */
+    public PanZoomBitmapView setImageCache(ImageCache imageCache)
         {
-        layoutViewW = getWidth();
-        layoutViewH = getHeight();
-        float heightToWidth = ((float)layoutViewH)/((float)layoutViewW);
-        if (layoutViewH*bmW > bmH*layoutViewW)
-            {
-            viewInBmR.left = 0;
-            viewInBmR.right = bmW;
-            int h = Math.round(heightToWidth*bmW);
-            viewInBmR.top = -(h - bmH)/2;
-            viewInBmR.bottom = viewInBmR.top + h;
-            }
-        else
-            {
-            viewInBmR.top = 0;
-            viewInBmR.bottom = bmH;
-            int w = Math.round(bmH/heightToWidth);
-            viewInBmR.left = -(w - bmW)/2;
-            viewInBmR.right = viewInBmR.left + w;
-            }
+        this.imageCache = imageCache;
+        return this;
         }
 
     /**
-     * Test whether or not the bitmap is zoomed such that it's the largest it can be and still fit entirely inside the view.
-     * @return True if it's zoomed to fit, false otherwise.
+     * Get where the view is panned and zoomed to on the image.
+     * @param out The viewport state to fill in.
+     * @return out, or null if there's no image or it hasn't been laid out yet.
      */
-    public boolean isZoomedToFit()
+    public ViewportState getViewportState(ViewportState out)
         {
-        if (bm == null || viewInBmR == null) return false;
-        if (viewInBmR.left == 0 && viewInBmR.right == bmW && viewInBmR.height() >= bmH) return true;
-        if (viewInBmR.top == 0 && viewInBmR.bottom == bmH && viewInBmR.width() >= bmW) return true;
-        return false;
+        if (pendingViewport != null) return out.set(pendingViewport);
+        if (!hasLoadedBitmap() || !engine.hasViewport()) return null;
+        out.centerX = engine.getCenterX();
+        out.centerY = engine.getCenterY();
+        out.scaleFactor = engine.computeScaleFactor();
+        out.zoomedToFit = engine.isZoomedToFit();
+        return out;
         }
 
     /**
-     * Zoom so that there's a 1 to 1 correspondence between pixels in the bitmap and pixels on the screen, and center on a point.
-     * @param centerX The X co-ordinate of the point to center on (in view pixel co-ordinates).
-     * @param centerY The Y co-ordinate of the point to center on (in view pixel co-ordinates).
-     * @return True if there was any change to the contents of the view and false if the view remains unchanged (e.g. if it was already positioned and zoomed to pixel 1 to 1).
+     * Pan and zoom to a viewport state from getViewportState(), at the next draw, once the image is showing. The scale
+     * is limited to the allowed zoom range as for zoom().
+     * @param state The viewport state (it's copied), or null to cancel restoring one not yet applied.
+     * @return The PanZoomBitmapView object on which this method is being called.
      */
-    public boolean zoomToPixel1To1(int centerX, int centerY)
+    public PanZoomBitmapView setViewportState(ViewportState state)
         {
-        if (bm == null || viewInBmR == null) return false;
-        layoutViewW = getWidth();
-        layoutViewH = getHeight();
-        if (mzo == MaxZoomOut.FITS && (bmW <= layoutViewW && bmH <= layoutViewH)) return zoomToFit();
-        prevViewInBmR.set(viewInBmR);
-        float scaleFactor = computeScaleFactor();
-        centerX = Math.round(scaleFactor*((float)centerX)) + viewInBmR.left;
-        centerY = Math.round(scaleFactor*((float)centerY)) + viewInBmR.top;
-        viewInBmR.left = centerX - layoutViewW/2;
-        viewInBmR.right = viewInBmR.left + layoutViewW;
-        viewInBmR.top = centerY - layoutViewH/2;
-        viewInBmR.bottom = viewInBmR.top + layoutViewH;
-        tidyPosition();
-        if (!viewInBmR.equals(prevViewInBmR))
-            {
-            invalidate();
-            return true;
-            }
-        else
-            return false;
+        pendingViewport = state != null ? new ViewportState().set(state) : null;
+        invalidate();
+        return this;
         }
 
     /**
-     * Zoom in or out about a point by the given zoom factor.
-     * @param zoomFactor The amount to zoom by.
-     * @param centerX The X co-ordinate of the center point of the zoom (in view pixel co-ordinates).
-     * @param centerY The Y co-ordinate of the center point of the zoom (in view pixel co-ordinates).
-     * @return True if there was any change to the contents of the view and false if the view remains unchanged (e.g. if it was already positioned and zoomed in or out to te max).
+     * Set a listener to be told the outcome of loadImage().
+     * @param onImageLoadListener The listener, or null for none.
+     * @return The PanZoomBitmapView object on which this method is being called.
      */
-    public boolean zoom(float zoomFactor, int centerX, int centerY)
+    public PanZoomBitmapView setOnImageLoadListener(OnImageLoadListener onImageLoadListener)
         {
-        if (bm == null || viewInBmR == null) return false;
-        prevViewInBmR.set(viewInBmR);
-        layoutViewW = getWidth();
-        layoutViewH = getHeight();
-        float heightToWidth = ((float)layoutViewH)/((float)layoutViewW);
-        int maxW = computeMaxW(heightToWidth);
-        int maxH = computeMaxH(heightToWidth);
-        int oldH = viewInBmR.height();
-        int oldW = viewInBmR.width();
-        int newH;
-        int newW;
-        if (oldH > oldW)
-            {
-            newH = Math.round(oldH/zoomFactor);
-            if (newH > maxH) newH = maxH;
-            if (newH < minViewInBmRDimension) newH = minViewInBmRDimension;
-            newW = Math.round(newH/heightToWidth);
-            }
-        else
-            {
-            newW = Math.round(oldW/zoomFactor);
-            if (newW > maxW) newW = maxW;
-            if (newW < minViewInBmRDimension) newW = minViewInBmRDimension;
-            newH = Math.round(newW*heightToWidth);
-            }
-        float scaleFactor = computeScaleFactor();
-        centerX = Math.round(scaleFactor*((float)centerX)) + viewInBmR.left;
-        centerY = Math.round(scaleFactor*((float)centerY)) + viewInBmR.top;
-        viewInBmR.left = centerX - (newW*(centerX - viewInBmR.left))/oldW;
-        viewInBmR.right = viewInBmR.left + newW;
-        viewInBmR.top = centerY - (newH*(centerY - viewInBmR.top))/oldH;
-        viewInBmR.bottom = viewInBmR.top + newH;
-        tidyPosition();
-        if (!viewInBmR.equals(prevViewInBmR))
-            {
-            invalidate();
-            return true;
-            }
-        else
-            return false;
+        this.onImageLoadListener = onImageLoadListener;
+        return this;
         }
 
-    protected void onDraw(Canvas cvs)
+    private PanZoomBitmapView setImage(Bitmap bm, TiledImageSource tiles)
         {
-        super.onDraw(cvs);
-        if (bm == null) return;
-        int viewW = getWidth();
-        int viewH = getHeight();
-        if (viewInBmR == null)
-            {
-            viewInBmR = new Rect();
-            zoomToFitNoInvalidate();
-            }
-        else if (layoutViewW != viewW || layoutViewH != viewH)
-            {
-            layoutViewW = viewW;
-            layoutViewH = viewH;
-            float scaleFactor = computeScaleFactor();
-            int w = Math.round(scaleFactor*((float)viewW));
-            int h = Math.round(scaleFactor*((float)viewH));
-            float heightToWidth = ((float)viewH)/((float)viewW);
-            int maxW = computeMaxW(heightToWidth);
-            int maxH = computeMaxH(heightToWidth);
-            if (w < minViewInBmRDimension)
-                {
-                w = minViewInBmRDimension;
-                h = Math.round(heightToWidth*w);
-                }
-            else if (w > maxW)
-                {
-                w = maxW;
-                h = Math.round(heightToWidth*w);
-                }
-            if (h < minViewInBmRDimension)
-                {
-                h = minViewInBmRDimension;
-                w = Math.round(h/heightToWidth);
-                }
-            else if (h > maxH)
-                {
-                h = maxH;
-                w = Math.round(h/heightToWidth);
-                }
-            final int SLOP = 2;
-            if ((bmW - SLOP <= w && w <= bmW + SLOP && h >= bmH - SLOP) || (bmH - SLOP <= h && h <= bmH + SLOP && w >= bmW - SLOP))
-                zoomToFitNoInvalidate();
-            else
-                {
-                int centerX = (viewInBmR.left + viewInBmR.right)/2;
-                int centerY = (viewInBmR.top + viewInBmR.bottom)/2;
-                viewInBmR.left = centerX - w/2;
-                viewInBmR.right = viewInBmR.left + w;
-                viewInBmR.top = centerY - h/2;
-                viewInBmR.bottom = viewInBmR.top + h;
-                tidyPosition();
-                }
-            }
-        if (viewInBmR.right > bmW)
-            {
-            bmShowingR.left = 0;
-            bmShowingR.right = bmW;
-            int w = (viewW*bmW)/viewInBmR.width();
-            viewShowingR.left = (viewW - w)/2;
-            viewShowingR.right = viewShowingR.left + w;
-            }
-        else
+        cancelZoomAnimation();
+        stashImage();
+        pendingViewport = null;
+        if (this.tiles != null)
             {
-            bmShowingR.left = viewInBmR.left;
-            bmShowingR.right = viewInBmR.right;
-            viewShowingR.left = 0;
-            viewShowingR.right = viewW;
+            this.tiles.setOnTileDecodedListener(null);
+            if (ownsTiles) this.tiles.recycle();
             }
-        if (viewInBmR.bottom > bmH)
+        ownsTiles = false;
+        if (tiles != null)
             {
-            bmShowingR.top = 0;
-            bmShowingR.bottom = bmH;
-            int h = (viewH*bmH)/viewInBmR.height();
-            viewShowingR.top = (viewH - h)/2;
-            viewShowingR.bottom = viewShowingR.top + h;
+            tiles.setOnTileDecodedListener(tileDecodedListener);
+            tiles.setReleaseQueue(releaseQueue);
             }
+        if (pyramid != null) pyramid.release();
+        if (ownsBm) poolBitmap(this.bm);
+        ownsBm = false;
+        this.bm = bm;
+        grayAlpha8 = bm == null || bm.getConfig() != Bitmap.Config.ALPHA_8;
+        pyramid = bm != null ? new BitmapPyramid(bm, BitmapPyramid.DEFAULT_CACHE_BYTES, bitmapPool, releaseQueue, pixelFormat) : null;
+        bmChunks = null;
+        chunkingBm = null;
+        chunkIfOversized();
+        this.tiles = tiles;
+        poolBitmap(preview);
+        preview = null;
+        applyBudget();
+        if (bm != null || tiles != null)
+            setImageSize(bm != null ? bm.getWidth() : tiles.getWidth(), bm != null ? bm.getHeight() : tiles.getHeight());
         else
-            {
-            bmShowingR.top = viewInBmR.top;
-            bmShowingR.bottom = viewInBmR.bottom;
-            viewShowingR.top = 0;
-            viewShowingR.bottom = viewH;
-            }
-        cvs.drawBitmap(bm, bmShowingR, viewShowingR, null);
+            setImageSize(-1, -1);
+        invalidateImage();
+        return this;
         }
 
-    private int computeMaxW(float heightToWidth)
+    // Put the image loadImage() loaded in the image cache, along with the viewport, handing over what the view owns.
+    private void stashImage()
         {
-        MaxZoomOut effectiveMZO = mzo;
-        if (effectiveMZO == MaxZoomOut.FITS_OR_1TO1 && (bmW >= layoutViewW || bmH >= layoutViewH)) effectiveMZO = MaxZoomOut.FITS;
-        switch (effectiveMZO)
+        String key = imageKey;
+        imageKey = null;
+        if (imageCache == null || key == null) return;
+        ViewportState state = getViewportState(new ViewportState());
+        if (state != null) imageCache.putViewport(key, state);
+        Bitmap ownedBm = ownsBm ? bm : null;
+        if (ownedBm != null && isChunkCopying(ownedBm))
             {
-            case BY8:          return 8*bmW;
-            case FITS:         return layoutViewH*bmW > layoutViewW*bmH ? bmW : Math.round(bmH/heightToWidth);
-            case FITS_OR_1TO1: return layoutViewW;
+            poolBitmap(ownedBm); // Once the copy's done. Cached, it could be evicted and reused while it's still being read.
+            ownedBm = null;
+            ownsBm = false;
             }
-        return -1;
+        TiledImageSource ownedTiles = ownsTiles ? tiles : null;
+        if (ownedBm == null && ownedTiles == null && preview == null) return;
+        if (ownedTiles != null) ownedTiles.setOnTileDecodedListener(null);
+        imageCache.put(key, new ImageCache.Entry(ownedBm, ownedTiles, preview, bmW, bmH, releaseQueue));
+        ownsBm = false;
+        ownsTiles = false;
+        preview = null;
         }
 
-    private int computeMaxH(float heightToWidth)
+    // Show a decoded image the view owns (from loadImage()).
+    private void showDecoded(Bitmap bm, TiledImageSource tiles)
         {
-        MaxZoomOut effectiveMZO = mzo;
-        if (effectiveMZO == MaxZoomOut.FITS_OR_1TO1 && (bmW >= layoutViewW || bmH >= layoutViewH)) effectiveMZO = MaxZoomOut.FITS;
-        switch (effectiveMZO)
+        this.bm = bm;
+        ownsBm = bm != null;
+        grayAlpha8 = true;
+        pyramid = bm != null ? new BitmapPyramid(bm, BitmapPyramid.DEFAULT_CACHE_BYTES, bitmapPool, releaseQueue, pixelFormat) : null;
+        bmChunks = null;
+        chunkingBm = null;
+        chunkIfOversized();
+        this.tiles = tiles;
+        ownsTiles = tiles != null;
+        if (tiles != null)
             {
-            case BY8:          return 8*bmH;
-            case FITS:         return layoutViewH*bmW > layoutViewW*bmH ? Math.round(heightToWidth*bmW) : bmH;
-            case FITS_OR_1TO1: return layoutViewH;
+            tiles.setOnTileDecodedListener(tileDecodedListener);
+            tiles.setReleaseQueue(releaseQueue);
             }
-        return -1;
+        applyBudget();
         }
 
-    private float computeScaleFactor()
+    // Restore pendingViewport, once there's an image and a view size.
+    private void applyPendingViewport()
         {
-        if (bmShowingR.height() > bmShowingR.width())
-            return ((float)bmShowingR.height())/((float)viewShowingR.height());
+        if (pendingViewport == null || bmW <= 0 || bmH <= 0 || getWidth() <= 0 || getHeight() <= 0) return;
+        if (pendingViewport.zoomedToFit)
+            engine.zoomToFit(getWidth(), getHeight());
         else
-            return ((float)bmShowingR.width())/((float)viewShowingR.width());
+            engine.setViewport(getWidth(), getHeight(), pendingViewport.centerX, pendingViewport.centerY, pendingViewport.scaleFactor);
+        pendingViewport = null;
+        }
+
+    private static Paint newBitmapPaint(boolean filter)
+        {
+        Paint paint = new Paint();
+        paint.setFilterBitmap(filter);
+        return paint;
+        }
+
+    private void registerBudget()
+        {
+        registeredBudget = memoryBudget != null ? memoryBudget : MemoryBudget.getDefault(getContext());
+        registeredBudget.register(budgetClient);
         }
 
-    private void tidyPosition()
+    // Size the caches to this view's share of the memory budget, but never so small that what's showing doesn't fit.
+    private void applyBudget()
         {
-        int h = viewInBmR.height();
-        if (h >= bmH)
+        if (budgetBytes < 0) return;
+        if (pyramid != null) pyramid.setCacheBytes(Math.max(budgetBytes, pyramid.getMinCacheBytes()));
+        if (tiles != null && ownsTiles)
             {
-            viewInBmR.top = -(h - bmH)/2;
-            viewInBmR.bottom = viewInBmR.top + h;
+            int tileSize = tiles.getTileSize();
+            int tileBytes = tileSize*tileSize*4;
+            int minTiles = (2*getWidth()/tileSize + 2)*(2*getHeight()/tileSize + 2); // Tiles show at between half and full size.
+            tiles.setCacheBytes((int)Math.min(Integer.MAX_VALUE, Math.max((long)budgetBytes, ((long)minTiles)*tileBytes)));
             }
-        else
+        if (budgetBytes == 0) trimMemory(); // The system's about to kill the app, so let go of everything that can be rebuilt.
+        }
+
+    protected void onAttachedToWindow()
+        {
+        super.onAttachedToWindow();
+        registerBudget();
+        }
+
+    protected void onDetachedFromWindow()
+        {
+        if (registeredBudget != null)
             {
-            if (viewInBmR.top < 0)
-                {
-                viewInBmR.top = 0;
-                viewInBmR.bottom = h;
-                }
-            else if (viewInBmR.bottom > bmH)
-                {
-                viewInBmR.top = bmH - h;
-                viewInBmR.bottom = bmH;
-                }
+            registeredBudget.unregister(budgetClient);
+            registeredBudget = null;
             }
-        int w = viewInBmR.width();
-        if (w >= bmW)
+        budgetBytes = -1;
+        if (scrollBlitter != null) scrollBlitter.release();
+        cancelZoomAnimation();
+        if (animationFrameScheduled)
             {
-            viewInBmR.left = -(w - bmW)/2;
-            viewInBmR.right = viewInBmR.left + w;
+            Choreographer.getInstance().removeFrameCallback(animationFrame);
+            animationFrameScheduled = false;
             }
-        else
-            {
-            if (viewInBmR.left < 0)
-                {
-                viewInBmR.left = 0;
-                viewInBmR.right = w;
-                }
-            else if (viewInBmR.right > bmW)
+        super.onDetachedFromWindow();
+        }
+
+    protected void onSizeChanged(int w, int h, int oldW, int oldH)
+        {
+        super.onSizeChanged(w, h, oldW, oldH);
+        applyBudget();
+        }
+
+    // Start copying bm into chunks on the loader thread if it's too large for the canvas to draw in one piece, rather
+    // than stall a frame (and hold both copies) on the UI thread. Until the first draw, when the canvas's limit is found,
+    // this waits for onDraw(). Meanwhile, and for good if there isn't the memory for the chunks, the image is drawn from
+    // a pyramid level small enough to draw.
+    private void chunkIfOversized()
+        {
+        if (bm == null || bmChunks != null || chunkingBm == bm || maxBitmapSize <= 0 || !BitmapChunks.isOversized(bm, maxBitmapSize)) return;
+        final Bitmap src = bm;
+        final int chunkSize = maxBitmapSize;
+        chunkingBm = src;
+        ChunkCopy copy = new ChunkCopy(src, chunkSize);
+        chunkCopies.add(copy);
+        ImageLoader.execute(copy);
+        }
+
+    // Finish a copy into chunks, on the UI thread: show the chunks if the image hasn't been replaced since, and release
+    // the bitmap copied if the view let go of it while it was being read.
+    private void chunkCopyDone(ChunkCopy copy)
+        {
+        chunkCopies.remove(copy);
+        if (copy.released)
+            releaseQueue.release(copy.src, bitmapPool);
+        else if (chunkingBm == copy.src && copy.chunks != null)
+            {
+            chunkingBm = null;
+            bmChunks = copy.chunks;
+            invalidateImage();
+            }
+        }
+
+    // Is a bitmap being read by a copy into chunks on the loader thread?
+    private boolean isChunkCopying(Bitmap b)
+        {
+        for (int i = 0; i < chunkCopies.size(); i++)
+            {
+            if (chunkCopies.get(i).src == b) return true;
+            }
+        return false;
+        }
+
+    // Put a bitmap the view decoded and no longer uses in the pool, if there is one, once it's no longer on screen, and
+    // no longer being copied into chunks.
+    private void poolBitmap(Bitmap b)
+        {
+        for (int i = 0; i < chunkCopies.size(); i++)
+            {
+            ChunkCopy copy = chunkCopies.get(i);
+            if (copy.src == b)
+                {
+                copy.released = true;
+                return;
+                }
+            }
+        releaseQueue.release(b, bitmapPool);
+        }
+
+    // Pool a bitmap the view decoded but never used, or recycle it if there's no pool.
+    private void discardBitmap(Bitmap b)
+        {
+        if (bitmapPool != null)
+            bitmapPool.put(b);
+        else
+            b.recycle();
+        }
+
+    private void setImageSize(int w, int h)
+        {
+        bmW = w;
+        bmH = h;
+        engine.setBitmapSize(bmW, bmH);
+        }
+
+    /**
+     * Clear any loaded bitmap.
+     * @return The PanZoomBitmapView object on which this method is being called.
+     */
+    public PanZoomBitmapView clearImageBitmap()
+        {
+        return setImageBitmap(null);
+        }
+
+    /**
+     * Is there a loaded bitmap?
+     * @return true if there's a bitmap, tiled image source or image load preview already loaded and false if there's no bitmap loaded.
+     */
+    public boolean hasLoadedBitmap()
+        {
+        return bm != null || tiles != null || preview != null;
+        }
+
+    /**
+     * Get the currently loaded bitmap.
+     * @return The currently loaded bitmap, or null if there's no bitmap loaded or a tiled image source is loaded instead.
+     */
+    public Bitmap getBitmap()
+        {
+        return bm;
+        }
+
+    /**
+     * Get the currently loaded tiled image source.
+     * @return The currently loaded tiled image source, or null if there's none loaded.
+     */
+    public TiledImageSource getImageSource()
+        {
+        return tiles;
+        }
+
+    /**
+     * Get the width in pixels of the currently loaded bitmap or tiled image source.
+     * @return The width in pixels of the currently loaded bitmap or tiled image source.
+     */
+    public int getBitmapWidth()
+        {
+        return bmW;
+        }
+
+    /**
+     * Get the height in pixels of the currently loaded bitmap or tiled image source.
+     * @return The height in pixels of the currently loaded bitmap or tiled image source.
+     */
+    public int getBitmapHeight()
+        {
+        return bmH;
+        }
+
+    /**
+     * Start decoding, in the background, the tiles the view will need if it's panned by the given amount, and at points
+     * along the way there, so that they're ready when they come into view (e.g. during a fling). For an in-memory
+     * bitmap there's nothing to decode, so nothing to do.
+     * @param deltaX The predicted horizontal pan (in view pixels, as for pan()).
+     * @param deltaY The predicted vertical pan (in view pixels, as for pan()).
+     */
+    public void prefetchPan(float deltaX, float deltaY)
+        {
+        if (tiles == null || !engine.hasViewport()) return;
+        int sampleSize = engine.computeSampleSize();
+        float scaleFactor = engine.computeScaleFactor();
+        for (int i = 1; i <= PREFETCH_PATH_STEPS; i++)
+            {
+            float fraction = ((float)i)/PREFETCH_PATH_STEPS;
+            float dx = scaleFactor*deltaX*fraction;
+            float dy = scaleFactor*deltaY*fraction;
+            prefetchRegion(sampleSize, engine.getViewInBmLeft() + dx, engine.getViewInBmTop() + dy, engine.getViewInBmRight() + dx, engine.getViewInBmBottom() + dy, i);
+            }
+        }
+
+    /**
+     * Start preparing, in the background, the next pyramid level the view will need if the zoom carries on in the same
+     * direction about the focus point: the next finer level's tiles around the focus when zooming in, or the next
+     * coarser level when zooming out.
+     * @param zoomFactor The current zoom direction: greater than 1 for zooming in, less than 1 for zooming out.
+     * @param focusX The X co-ordinate of the zoom focus point (in view pixel co-ordinates).
+     * @param focusY The Y co-ordinate of the zoom focus point (in view pixel co-ordinates).
+     */
+    public void prefetchZoom(float zoomFactor, int focusX, int focusY)
+        {
+        if (!engine.hasViewport() || zoomFactor == 1.0f) return;
+        int sampleSize = engine.computeSampleSize();
+        int nextSampleSize = zoomFactor > 1.0f ? sampleSize/2 : sampleSize*2;
+        if (nextSampleSize < 1) return;
+        if (pyramid != null)
+            {
+            pyramid.prefetchLevel(nextSampleSize);
+            return;
+            }
+        if (tiles == null) return;
+        float scaleFactor = engine.computeScaleFactor();
+        float centerX = engine.getViewInBmLeft() + scaleFactor*focusX;
+        float centerY = engine.getViewInBmTop() + scaleFactor*focusY;
+        float zoom = zoomFactor > 1.0f ? 0.5f : 2.0f; // The relative size of the viewport by the time the next level's needed.
+        prefetchRegion(nextSampleSize, centerX - zoom*(centerX - engine.getViewInBmLeft()), centerY - zoom*(centerY - engine.getViewInBmTop()), centerX + zoom*(engine.getViewInBmRight() - centerX), centerY + zoom*(engine.getViewInBmBottom() - centerY), 0);
+        }
+
+    /**
+     * Cancel all background decoding started by prefetchPan() and prefetchZoom() and not yet under way.
+     */
+    public void cancelPrefetch()
+        {
+        if (tiles != null) tiles.cancelPrefetch();
+        }
+
+    // Request prefetches of the tiles covering a region of the bitmap, in order of the step they're needed by, then distance from the region's center.
+    private void prefetchRegion(int sampleSize, float left, float top, float right, float bottom, int step)
+        {
+        int tileSize = tiles.getTileSpan(sampleSize);
+        int firstCol = Math.max(0, (int)(left/tileSize));
+        int lastCol = Math.min((bmW - 1)/tileSize, (int)((right - 1)/tileSize));
+        int firstRow = Math.max(0, (int)(top/tileSize));
+        int lastRow = Math.min((bmH - 1)/tileSize, (int)((bottom - 1)/tileSize));
+        float centerCol = (left + right)/(2.0f*tileSize) - 0.5f;
+        float centerRow = (top + bottom)/(2.0f*tileSize) - 0.5f;
+        for (int row = firstRow; row <= lastRow; row++)
+            for (int col = firstCol; col <= lastCol; col++)
+                {
+                float dc = col - centerCol;
+                float dr = row - centerRow;
+                tiles.requestTile(sampleSize, col, row, TiledImageSource.PRIORITY_PREFETCH, step*PREFETCH_STEP_DISTANCE + dc*dc + dr*dr);
+                }
+        }
+
+    /**
+     * Release memory held by cached pyramid levels and decoded tiles. They're rebuilt as needed the next time the view draws.
+     * The view's MemoryBudget does this (and shrinks the caches less drastically) as the system reports memory pressure.
+     */
+    public void trimMemory()
+        {
+        if (pyramid != null) pyramid.clear();
+        if (tiles != null) tiles.clearCache();
+        releaseQueue.clear(); // Rather than pool what was just let go of.
+        if (scrollBlitter != null) scrollBlitter.release();
+        }
+
+    /**
+     * Set the pixel format images loaded by loadImage() are decoded to, and pyramid levels are built in. Greyscale
+     * images are held in ALPHA_8 bitmaps which the view draws as grey, so a bitmap returned by getBitmap() may need
+     * drawing through a colour filter to show as anything but a mask. Takes effect for the current image's pyramid
+     * levels straight away, and for images from the next load on.
+     * @param pixelFormat One of the values of the PanZoomBitmapView.PixelFormat enum. The default is PixelFormat.AUTO.
+     * @return The PanZoomBitmapView object on which this method is being called.
+     */
+    public PanZoomBitmapView setPixelFormat(PixelFormat pixelFormat)
+        {
+        if (pixelFormat == null) throw new IllegalArgumentException("pixelFormat must not be null");
+        if (pixelFormat == this.pixelFormat) return this;
+        this.pixelFormat = pixelFormat;
+        if (pyramid != null)
+            {
+            pyramid.release();
+            pyramid = new BitmapPyramid(bm, BitmapPyramid.DEFAULT_CACHE_BYTES, bitmapPool, releaseQueue, pixelFormat);
+            applyBudget();
+            invalidateImage();
+            }
+        return this;
+        }
+
+    /**
+     * Get the pixel format setting.
+     * @return The pixel format setting.
+     */
+    public PixelFormat getPixelFormat()
+        {
+        return pixelFormat;
+        }
+
+    /**
+     * Get how much memory the pixel format setting is saving: the bytes the image the view decoded, its cached pyramid
+     * levels and its cached tiles would take up in ARGB_8888, less what they do take up.
+     * @return The bytes saved.
+     */
+    public long getPixelFormatSavedBytes()
+        {
+        long saved = PixelFormats.savedBytes(preview);
+        if (ownsBm) saved += PixelFormats.savedBytes(bm);
+        if (pyramid != null) saved += pyramid.getSavedBytes();
+        if (tiles != null) saved += tiles.getSavedBytes();
+        return saved;
+        }
+
+    /**
+     * Set the policy choosing how the image is drawn while in motion and at rest.
+     * @param renderQualityPolicy The policy, e.g. RENDER_FILTER_AT_REST (the default) or RENDER_COARSE_IN_MOTION.
+     * @return The PanZoomBitmapView object on which this method is being called.
+     */
+    public PanZoomBitmapView setRenderQualityPolicy(RenderQualityPolicy renderQualityPolicy)
+        {
+        if (renderQualityPolicy == null) throw new IllegalArgumentException("renderQualityPolicy must not be null");
+        this.renderQualityPolicy = renderQualityPolicy;
+        invalidate();
+        return this;
+        }
+
+    /**
+     * Say whether or not the image is in motion, for the render quality policy. TouchPanZoomBitmapView does this for
+     * touch gestures and flings; call it around any other animated panning or zooming. Coming to rest redraws the view.
+     * @param inMotion Whether or not the image is being panned, flung or zoomed.
+     */
+    public void setInMotion(boolean inMotion)
+        {
+        if (inMotion == this.inMotion) return;
+        this.inMotion = inMotion;
+        if (!inMotion) invalidate();
+        }
+
+    /**
+     * Is the image in motion?
+     * @return True if the image is being panned, flung or zoomed, false if it's at rest.
+     */
+    public boolean isInMotion()
+        {
+        return inMotion;
+        }
+
+    /**
+     * Set the maximum zoom out, or how small can the image get in the view.
+     * @param mzo One of the values of the PanZoomBitmapView.MaxZoomOut enum.
+     * @return The PanZoomBitmapView object on which this method is being called.
+     */
+    public PanZoomBitmapView setMaxZoomOut(MaxZoomOut mzo)
+        {
+        engine.setMaxZoomOut(mzo.ordinal()); // The ViewportEngine.MAX_ZOOM_OUT_ constants match the MaxZoomOut ordinals.
+        return this;
+        }
+
+    /**
+     * Slide the bitmap image (if it's zoomed in enough that only part of the bitmap's showing).
+     * @param deltaX Amount to slide in the horizontal direction (in view pixel co-ordinates).
+     * @param deltaY Amount to slide in the vertical direction (in view pixel co-ordinates).
+     * @return True if there was any change to the contents of the view and false if the view remains unchanged (e.g. panning past the edge of the bitmap).
+     */
+    public boolean pan(int deltaX, int deltaY)
+        {
+        if (!hasLoadedBitmap()) return panned(false);
+        return panned(invalidateIf(engine.pan(deltaX, deltaY)));
+        }
+
+    /**
+     * Slide the bitmap image by fractions of a view pixel. Unless the view is in sub-pixel transform mode the deltas are rounded to whole view pixels.
+     * @param deltaX Amount to slide in the horizontal direction (in view pixel co-ordinates).
+     * @param deltaY Amount to slide in the vertical direction (in view pixel co-ordinates).
+     * @return True if there was any change to the contents of the view and false if the view remains unchanged (e.g. panning past the edge of the bitmap, or by less than the change epsilon).
+     */
+    public boolean pan(float deltaX, float deltaY)
+        {
+        if (!hasLoadedBitmap()) return panned(false);
+        return panned(invalidateIf(engine.pan(deltaX, deltaY)));
+        }
+
+    /**
+     * Switch sub-pixel transform mode on or off. In sub-pixel transform mode the part of the bitmap showing is held in
+     * floats rather than whole bitmap pixels, so small pans and zooms when zoomed in a long way move the image smoothly
+     * instead of being rounded away or jumping, and the view is only invalidated when the image moves on screen by more
+     * than the change epsilon.
+     * @param subPixel True to switch sub-pixel transform mode on, false to switch it off.
+     * @return The PanZoomBitmapView object on which this method is being called.
+     */
+    public PanZoomBitmapView setSubPixelTransform(boolean subPixel)
+        {
+        engine.setSubPixel(subPixel);
+        return this;
+        }
+
+    /**
+     * Is sub-pixel transform mode on?
+     * @return True if sub-pixel transform mode is on, false otherwise.
+     */
+    public boolean isSubPixelTransform()
+        {
+        return engine.isSubPixel();
+        }
+
+    /**
+     * Switch scroll-blit mode on or off. In scroll-blit mode, when the view is drawn on a software (not hardware
+     * accelerated) canvas, the last frame is kept offscreen and a pan shifts it and draws only the strips of the image
+     * it exposes, rather than drawing the whole view again from the bitmap; zooms still draw the whole view. The image
+     * is positioned to the nearest whole view pixel so that shifted frames line up. This costs two view sized ARGB_8888
+     * buffers, and is no help on hardware accelerated canvases, where it's ignored.
+     * @param scrollBlit True to switch scroll-blit mode on, false to switch it off (the default).
+     * @return The PanZoomBitmapView object on which this method is being called.
+     */
+    public PanZoomBitmapView setScrollBlit(boolean scrollBlit)
+        {
+        if (scrollBlit == (scrollBlitter != null)) return this;
+        if (scrollBlit)
+            scrollBlitter = new ScrollBlitter();
+        else
+            {
+            scrollBlitter.release();
+            scrollBlitter = null;
+            }
+        invalidate();
+        return this;
+        }
+
+    /**
+     * Is scroll-blit mode on?
+     * @return True if scroll-blit mode is on, false otherwise.
+     */
+    public boolean isScrollBlit()
+        {
+        return scrollBlitter != null;
+        }
+
+    /**
+     * Redraw the whole image at the next draw. Call this after changing the pixels of the bitmap passed to
+     * setImageBitmap(), which in scroll-blit mode would otherwise only show in the parts of the view a pan exposes.
+     */
+    public void invalidateImage()
+        {
+        if (scrollBlitter != null) scrollBlitter.invalidate();
+        invalidate();
+        }
+
+    /**
+     * Set where to count the view's draws, pans, zooms and cache hits (and, for a TouchPanZoomBitmapView, fling frames).
+     * With none set, nothing is counted or timed.
+     * @param metrics The metrics, which can be shared with other views, or null for none (the default).
+     * @return The PanZoomBitmapView object on which this method is being called.
+     */
+    public PanZoomBitmapView setMetrics(ViewMetrics metrics)
+        {
+        this.metrics = metrics;
+        return this;
+        }
+
+    /**
+     * Get where the view's draws, pans, zooms and cache hits are counted.
+     * @return The metrics, or null if there are none.
+     */
+    public ViewMetrics getMetrics()
+        {
+        return metrics;
+        }
+
+    /**
+     * Set the smallest movement of the image on screen that invalidates the view in sub-pixel transform mode. Smaller
+     * movements still accumulate, and invalidate the view once they add up to more than this.
+     * @param changeEpsilon The change epsilon (in view pixels). The default is ViewportEngine.DEFAULT_CHANGE_EPSILON.
+     * @return The PanZoomBitmapView object on which this method is being called.
+     */
+    public PanZoomBitmapView setChangeEpsilon(float changeEpsilon)
+        {
+        engine.setChangeEpsilon(changeEpsilon);
+        return this;
+        }
+
+    /**
+     * Zoom so that the bitmap image is the largest it can be and still fit the entire bitmap in the view.
+     * @return True if there was any change to the contents of the view and false if the view remains unchanged (e.g. if it was already zoomed to fit).
+     */
+    public boolean zoomToFit()
+        {
+        if (!hasLoadedBitmap()) return zoomed(false);
+        return zoomed(invalidateIf(engine.zoomToFit(getWidth(), getHeight())));
+        }
+
+    /**
+     * Test whether or not the bitmap is zoomed such that it's the largest it can be and still fit entirely inside the view.
+     * @return True if it's zoomed to fit, false otherwise.
+     */
+    public boolean isZoomedToFit()
+        {
+        if (!hasLoadedBitmap()) return false;
+        return engine.isZoomedToFit();
+        }
+
+    /**
+     * Zoom so that there's a 1 to 1 correspondence between pixels in the bitmap and pixels on the screen, and center on a point.
+     * @param centerX The X co-ordinate of the point to center on (in view pixel co-ordinates).
+     * @param centerY The Y co-ordinate of the point to center on (in view pixel co-ordinates).
+     * @return True if there was any change to the contents of the view and false if the view remains unchanged (e.g. if it was already positioned and zoomed to pixel 1 to 1).
+     */
+    public boolean zoomToPixel1To1(int centerX, int centerY)
+        {
+        if (!hasLoadedBitmap()) return zoomed(false);
+        return zoomed(invalidateIf(engine.zoomToPixel1To1(getWidth(), getHeight(), centerX, centerY)));
+        }
+
+    /**
+     * Zoom in or out about a point by the given zoom factor.
+     * @param zoomFactor The amount to zoom by.
+     * @param centerX The X co-ordinate of the center point of the zoom (in view pixel co-ordinates).
+     * @param centerY The Y co-ordinate of the center point of the zoom (in view pixel co-ordinates).
+     * @return True if there was any change to the contents of the view and false if the view remains unchanged (e.g. if it was already positioned and zoomed in or out to te max).
+     */
+    public boolean zoom(float zoomFactor, int centerX, int centerY)
+        {
+        if (!hasLoadedBitmap()) return zoomed(false);
+        return zoomed(invalidateIf(engine.zoom(getWidth(), getHeight(), zoomFactor, centerX, centerY)));
+        }
+
+    /**
+     * Zoom to a scale centered on a point, animated over the display frames to come. The animation is in motion for the
+     * render quality policy, and draws whatever pyramid level is already built while the one the end needs is built in
+     * the background. It replaces any animation under way, and TouchPanZoomBitmapView cancels it on a new touch. The
+     * scale is limited to the allowed zoom range, and the position kept in bounds, as for zoom() and pan().
+     * @param scaleFactor The scale to end at (bitmap pixels per view pixel, as for getViewportState()).
+     * @param centerX The X co-ordinate of the point to end centered on (in bitmap pixel co-ordinates).
+     * @param centerY The Y co-ordinate of the point to end centered on (in bitmap pixel co-ordinates).
+     * @param durationMillis How long the animation takes (in milliseconds), e.g. DEFAULT_ZOOM_DURATION_MILLIS, or 0 to jump straight there.
+     * @return True if the animation started (or, with no duration, the view changed), false if there's no image or view size to zoom.
+     */
+    public boolean zoomTo(float scaleFactor, float centerX, float centerY, long durationMillis)
+        {
+        return animateTo(scaleFactor, centerX, centerY, false, durationMillis, System.nanoTime());
+        }
+
+    /**
+     * Pan to center on a point, animated over the display frames to come, at the current scale. See zoomTo().
+     * @param centerX The X co-ordinate of the point to end centered on (in bitmap pixel co-ordinates).
+     * @param centerY The Y co-ordinate of the point to end centered on (in bitmap pixel co-ordinates).
+     * @param durationMillis How long the animation takes (in milliseconds), or 0 to jump straight there.
+     * @return True if the animation started (or, with no duration, the view changed), false if there's no image or view size to pan.
+     */
+    public boolean panTo(float centerX, float centerY, long durationMillis)
+        {
+        if (!layoutForMapping()) return false;
+        return animateTo(engine.computeScaleFactor(), centerX, centerY, false, durationMillis, System.nanoTime());
+        }
+
+    /**
+     * Zoom to fit, as zoomToFit() does, animated over the display frames to come. See zoomTo().
+     * @param durationMillis How long the animation takes (in milliseconds), or 0 to jump straight there.
+     * @return True if the animation started (or, with no duration, the view changed), false if there's no image or view size to zoom.
+     */
+    public boolean animateZoomToFit(long durationMillis)
+        {
+        return animateZoomToFit(durationMillis, System.nanoTime());
+        }
+
+    // Zoom to fit, animated from a start time (System.nanoTime() time base), e.g. that of the touch event that asked for it.
+    boolean animateZoomToFit(long durationMillis, long startNanos)
+        {
+        if (bmW <= 0 || bmH <= 0 || getWidth() <= 0 || getHeight() <= 0) return false;
+        float scaleFactor = Math.max(((float)bmW)/getWidth(), ((float)bmH)/getHeight());
+        return animateTo(scaleFactor, bmW/2.0f, bmH/2.0f, true, durationMillis, startNanos);
+        }
+
+    /**
+     * Zoom to pixel 1 to 1 centered on a point, as zoomToPixel1To1() does, animated over the display frames to come.
+     * See zoomTo().
+     * @param centerX The X co-ordinate of the point to center on (in view pixel co-ordinates).
+     * @param centerY The Y co-ordinate of the point to center on (in view pixel co-ordinates).
+     * @param durationMillis How long the animation takes (in milliseconds), or 0 to jump straight there.
+     * @return True if the animation started (or, with no duration, the view changed), false if there's no image or view size to zoom.
+     */
+    public boolean animateZoomToPixel1To1(int centerX, int centerY, long durationMillis)
+        {
+        return animateZoomToPixel1To1(centerX, centerY, durationMillis, System.nanoTime());
+        }
+
+    // Zoom to pixel 1 to 1, animated from a start time (System.nanoTime() time base), e.g. that of the touch event that asked for it.
+    boolean animateZoomToPixel1To1(int centerX, int centerY, long durationMillis, long startNanos)
+        {
+        if (!layoutForMapping()) return false;
+        float scaleFactor = engine.computeScaleFactor();
+        return animateTo(1.0f, engine.getCenterX() + scaleFactor*(centerX - getWidth()/2.0f), engine.getCenterY() + scaleFactor*(centerY - getHeight()/2.0f), false, durationMillis, startNanos);
+        }
+
+    /**
+     * Stop any animated zoom or pan under way, leaving the view where it's got to.
+     */
+    public void cancelZoomAnimation()
+        {
+        if (!zoomAnimation.isActive()) return;
+        zoomAnimation.stop();
+        setInMotion(false);
+        }
+
+    /**
+     * Is there an animated zoom or pan under way?
+     * @return True if there's an animation under way, false otherwise.
+     */
+    public boolean isZoomAnimating()
+        {
+        return zoomAnimation.isActive();
+        }
+
+    /**
+     * Set the interpolator for animated zooms and pans.
+     * @param zoomInterpolator The interpolator. The default is DEFAULT_ZOOM_INTERPOLATOR.
+     * @return The PanZoomBitmapView object on which this method is being called.
+     */
+    public PanZoomBitmapView setZoomInterpolator(TimeInterpolator zoomInterpolator)
+        {
+        if (zoomInterpolator == null) throw new IllegalArgumentException("zoomInterpolator must not be null");
+        this.zoomInterpolator = zoomInterpolator;
+        return this;
+        }
+
+    // Start animating to a viewport from a start time (System.nanoTime() time base), or with no duration jump straight there.
+    private boolean animateTo(float scaleFactor, float centerX, float centerY, boolean toFit, long durationMillis, long startNanos)
+        {
+        if (!layoutForMapping()) return false;
+        int w = getWidth();
+        int h = getHeight();
+        if (durationMillis <= 0)
+            {
+            cancelZoomAnimation();
+            return invalidateIf(toFit ? engine.zoomToFit(w, h) : engine.setViewport(w, h, centerX, centerY, scaleFactor));
+            }
+        zoomAnimation.start(engine.computeScaleFactor(), engine.getCenterX(), engine.getCenterY(), scaleFactor, centerX, centerY, toFit, startNanos, durationMillis*1000000L, zoomInterpolator);
+        setInMotion(true);
+        prefetchZoomTarget(scaleFactor, centerX, centerY);
+        scheduleAnimationFrame();
+        return true;
+        }
+
+    // Start building, in the background, the pyramid level or tiles the end of a zoom animation will show.
+    private void prefetchZoomTarget(float scaleFactor, float centerX, float centerY)
+        {
+        int maxSampleSize = bmW < bmH ? bmW : bmH;
+        int sampleSize = 1;
+        while (2*sampleSize <= scaleFactor && 2*sampleSize <= maxSampleSize) sampleSize *= 2;
+        if (pyramid != null)
+            pyramid.prefetchLevel(sampleSize);
+        else if (tiles != null)
+            {
+            float halfW = scaleFactor*getWidth()/2.0f;
+            float halfH = scaleFactor*getHeight()/2.0f;
+            prefetchRegion(sampleSize, centerX - halfW, centerY - halfH, centerX + halfW, centerY + halfH, 0);
+            }
+        }
+
+    /**
+     * Ask for a display frame to advance the zoom animation on. TouchPanZoomBitmapView folds these into its own frames.
+     */
+    void scheduleAnimationFrame()
+        {
+        if (animationFrameScheduled) return;
+        animationFrameScheduled = true;
+        Choreographer.getInstance().postFrameCallback(animationFrame);
+        }
+
+    /**
+     * Advance the zoom animation to a frame time, moving the viewport.
+     * @param frameTimeNanos The frame time (System.nanoTime() time base).
+     * @return True if there's more of the animation, so another frame's needed, false otherwise.
+     */
+    boolean stepZoomAnimation(long frameTimeNanos)
+        {
+        if (!zoomAnimation.isActive()) return false;
+        int w = getWidth();
+        int h = getHeight();
+        if (!hasLoadedBitmap() || w <= 0 || h <= 0)
+            {
+            cancelZoomAnimation();
+            return false;
+            }
+        boolean more = zoomAnimation.step(frameTimeNanos);
+        if (!more && zoomAnimation.isToFit())
+            invalidateIf(engine.zoomToFit(w, h)); // Exactly, so that isZoomedToFit() is true at the end.
+        else
+            invalidateIf(engine.setViewport(w, h, zoomAnimation.getCenterX(), zoomAnimation.getCenterY(), zoomAnimation.getScaleFactor()));
+        if (!more) setInMotion(false);
+        return more;
+        }
+
+    /**
+     * Add a layer of overlays to draw over the image, above any layers already added. A layer can be added to any number of views.
+     * @param layer The layer.
+     * @return The PanZoomBitmapView object on which this method is being called.
+     */
+    public PanZoomBitmapView addOverlayLayer(OverlayLayer layer)
+        {
+        if (overlayLayers.contains(layer)) return this;
+        overlayLayers.add(layer);
+        layer.attach(this);
+        invalidate();
+        return this;
+        }
+
+    /**
+     * Remove a layer of overlays.
+     * @param layer The layer.
+     * @return The PanZoomBitmapView object on which this method is being called.
+     */
+    public PanZoomBitmapView removeOverlayLayer(OverlayLayer layer)
+        {
+        if (overlayLayers.remove(layer))
+            {
+            layer.detach(this);
+            invalidate();
+            }
+        return this;
+        }
+
+    /**
+     * Find the topmost overlay at a point in the view, searching the visible layers from the top down.
+     * @param viewX The X co-ordinate of the point (in view pixel co-ordinates).
+     * @param viewY The Y co-ordinate of the point (in view pixel co-ordinates).
+     * @param slop How far off an overlay the point can be and still hit it (in view pixels), e.g. the touch slop.
+     * @return The overlay, or null if the point hits none.
+     */
+    public Overlay hitTestOverlays(float viewX, float viewY, float slop)
+        {
+        if (overlayLayers.isEmpty() || !layoutForMapping()) return null;
+        float scale = engine.getBmToViewScaleX();
+        float bmX = (viewX - engine.getBmToViewTranslateX())/scale;
+        float bmY = (viewY - engine.getBmToViewTranslateY())/engine.getBmToViewScaleY();
+        for (int i = overlayLayers.size() - 1; i >= 0; i--)
+            {
+            OverlayLayer layer = overlayLayers.get(i);
+            if (!layer.isVisible()) continue;
+            Overlay hit = layer.hitTest(bmX, bmY, slop/scale, scale);
+            if (hit != null) return hit;
+            }
+        return null;
+        }
+
+    /**
+     * Map points from bitmap pixel co-ordinates to view pixel co-ordinates, through the same transform onDraw() draws
+     * the image with, without allocating. Like android.graphics.Matrix.mapPoints(), src and dst can be the same array.
+     * @param dst Where to put the mapped points, as X, Y pairs.
+     * @param dstIndex The index in dst of the first mapped point's X co-ordinate.
+     * @param src The points to map, as X, Y pairs.
+     * @param srcIndex The index in src of the first point's X co-ordinate.
+     * @param pointCount The number of points (X, Y pairs) to map.
+     * @return True if the points were mapped, false if there's no image loaded or the view hasn't been laid out (dst is left unchanged).
+     */
+    public boolean mapBitmapToView(float[] dst, int dstIndex, float[] src, int srcIndex, int pointCount)
+        {
+        if (!layoutForMapping()) return false;
+        engine.mapBmToView(dst, dstIndex, src, srcIndex, pointCount);
+        return true;
+        }
+
+    /**
+     * Map points in place from bitmap pixel co-ordinates to view pixel co-ordinates, without allocating.
+     * @param pts The points, as X, Y pairs.
+     * @return True if the points were mapped, false if there's no image loaded or the view hasn't been laid out (pts is left unchanged).
+     */
+    public boolean mapBitmapToView(float[] pts)
+        {
+        return mapBitmapToView(pts, 0, pts, 0, pts.length/2);
+        }
+
+    /**
+     * Map points from view pixel co-ordinates to bitmap pixel co-ordinates, through the inverse of the transform
+     * onDraw() draws the image with, without allocating. Like android.graphics.Matrix.mapPoints(), src and dst can be
+     * the same array. Points outside the part of the view the image covers map outside the bitmap's bounds.
+     * @param dst Where to put the mapped points, as X, Y pairs.
+     * @param dstIndex The index in dst of the first mapped point's X co-ordinate.
+     * @param src The points to map, as X, Y pairs.
+     * @param srcIndex The index in src of the first point's X co-ordinate.
+     * @param pointCount The number of points (X, Y pairs) to map.
+     * @return True if the points were mapped, false if there's no image loaded or the view hasn't been laid out (dst is left unchanged).
+     */
+    public boolean mapViewToBitmap(float[] dst, int dstIndex, float[] src, int srcIndex, int pointCount)
+        {
+        if (!layoutForMapping()) return false;
+        engine.mapViewToBm(dst, dstIndex, src, srcIndex, pointCount);
+        return true;
+        }
+
+    /**
+     * Map points in place from view pixel co-ordinates to bitmap pixel co-ordinates, without allocating.
+     * @param pts The points, as X, Y pairs.
+     * @return True if the points were mapped, false if there's no image loaded or the view hasn't been laid out (pts is left unchanged).
+     */
+    public boolean mapViewToBitmap(float[] pts)
+        {
+        return mapViewToBitmap(pts, 0, pts, 0, pts.length/2);
+        }
+
+    // Bring the engine's transform up to date with the view's size and any pending viewport, as onDraw() does, if there's anything to map through.
+    private boolean layoutForMapping()
+        {
+        if (!hasLoadedBitmap() || getWidth() <= 0 || getHeight() <= 0) return false;
+        layoutFrame();
+        return true;
+        }
+
+    // Bring the engine's transform up to date with the view's size and any pending viewport, for the frame about to be
+    // drawn. Only when there's an image.
+    void layoutFrame()
+        {
+        applyPendingViewport();
+        engine.layout(getWidth(), getHeight());
+        }
+
+    /**
+     * Copy the viewport of the latest frame drawn, consistently, without locking or allocating. Unlike the rest of the
+     * view, this can be called on any thread.
+     * @param out Where to copy it.
+     * @return out.
+     */
+    public ViewportSnapshot getViewportSnapshot(ViewportSnapshot out)
+        {
+        return viewportPublisher.read(out);
+        }
+
+    /**
+     * Get the version of the viewport of the latest frame drawn, for checking cheaply whether it's changed since a
+     * snapshot was taken. Unlike the rest of the view, this can be called on any thread.
+     * @return The version.
+     */
+    public long getViewportVersion()
+        {
+        return viewportPublisher.getVersion();
+        }
+
+    /**
+     * Add a listener to be told when the viewport the view draws changes.
+     * @param listener The listener.
+     * @return The PanZoomBitmapView object on which this method is being called.
+     */
+    public PanZoomBitmapView addOnViewportChangeListener(OnViewportChangeListener listener)
+        {
+        if (!viewportListeners.contains(listener)) viewportListeners.add(listener);
+        return this;
+        }
+
+    /**
+     * Remove a listener added with addOnViewportChangeListener().
+     * @param listener The listener.
+     * @return The PanZoomBitmapView object on which this method is being called.
+     */
+    public PanZoomBitmapView removeOnViewportChangeListener(OnViewportChangeListener listener)
+        {
+        viewportListeners.remove(listener);
+        return this;
+        }
+
+    // Publish a frame's viewport for getViewportSnapshot(), and tell the listeners if it's changed.
+    private void publishViewport(ViewportEngine drawn, float scaleX, float scaleY, float translateX, float translateY)
+        {
+        if (!viewportPublisher.publish(getWidth(), getHeight(), drawn, scaleX, scaleY, translateX, translateY)) return;
+        long version = viewportPublisher.getVersion();
+        for (int i = 0; i < viewportListeners.size(); i++) viewportListeners.get(i).onViewportChanged(this, version);
+        }
+
+    /**
+     * Get the pan and zoom transform engine behind this view. It's shared, not a copy, so should only be read.
+     * @return The view's ViewportEngine.
+     */
+    public ViewportEngine getViewportEngine()
+        {
+        return engine;
+        }
+
+    private boolean invalidateIf(boolean changed)
+        {
+        if (changed) invalidate();
+        return changed;
+        }
+
+    // Count a pan for the metrics, if any, passing on whether or not it changed anything.
+    private boolean panned(boolean changed)
+        {
+        if (metrics != null) metrics.recordPan(changed);
+        return changed;
+        }
+
+    // Count a zoom for the metrics, if any, passing on whether or not it changed anything.
+    private boolean zoomed(boolean changed)
+        {
+        if (metrics != null) metrics.recordZoom(changed);
+        return changed;
+        }
+
+    public void invalidate()
+        {
+        if (metrics != null) metrics.recordInvalidate();
+        super.invalidate();
+        }
+
+    protected void onDraw(Canvas cvs)
+        {
+        super.onDraw(cvs);
+        releaseQueue.beginFrame();
+        if (!hasLoadedBitmap())
+            {
+            publishViewport(null, 0.0f, 0.0f, 0.0f, 0.0f);
+            return;
+            }
+        long drawStart = metrics != null ? System.nanoTime() : 0;
+        layoutFrame();
+        bmShowingR.set(engine.getBmShowingLeft(), engine.getBmShowingTop(), engine.getBmShowingRight(), engine.getBmShowingBottom());
+        boolean blit = scrollBlitter != null && !cvs.isHardwareAccelerated() && getWidth() > 0 && getHeight() > 0;
+        float scaleX = engine.getBmToViewScaleX();
+        float scaleY = engine.getBmToViewScaleY();
+        float translateX = blit ? Math.round(engine.getBmToViewTranslateX()) : engine.getBmToViewTranslateX(); // Whole pixels, so shifted frames line up.
+        float translateY = blit ? Math.round(engine.getBmToViewTranslateY()) : engine.getBmToViewTranslateY();
+        drawMatrix.setScale(scaleX, scaleY);
+        drawMatrix.postTranslate(translateX, translateY);
+        publishViewport(engine, scaleX, scaleY, translateX, translateY);
+        if (maxBitmapSize == 0)
+            {
+            maxBitmapSize = BitmapChunks.maxBitmapSize(cvs);
+            chunkIfOversized();
+            }
+        int zoomSampleSize = engine.computeSampleSize();
+        int sampleSize = Integer.highestOneBit(Math.max(1, renderQualityPolicy.getSampleSize(this, zoomSampleSize, inMotion)));
+        if (bm != null && tiles == null && sampleSize > zoomSampleSize && pyramid.getCachedLevel(sampleSize) == null)
+            {
+            pyramid.prefetchLevel(sampleSize); // Building a coarser level here would cost more than it saves.
+            sampleSize = zoomSampleSize;
+            }
+        if (bm != null && tiles == null && sampleSize > 1 && zoomAnimation.isActive() && pyramid.getCachedLevel(sampleSize) == null)
+            {
+            pyramid.prefetchLevel(sampleSize); // Building it here would stall the animation, so draw a coarser level that's built, if there is one.
+            for (int s = 2*sampleSize; s <= bmW && s <= bmH; s *= 2)
+                if (pyramid.getCachedLevel(s) != null)
+                    {
+                    sampleSize = s;
+                    break;
+                    }
+            }
+        if (bm != null && bm == chunkingBm && tiles == null)
+            {
+            while (bmW/sampleSize > maxBitmapSize || bmH/sampleSize > maxBitmapSize) sampleSize *= 2; // Until the chunks are ready, a level that can be drawn in one piece.
+            if (pyramid.getCachedLevel(sampleSize) == null)
+                {
+                pyramid.prefetchLevel(sampleSize);
+                for (int s = 2*sampleSize; s <= bmW && s <= bmH; s *= 2)
+                    if (pyramid.getCachedLevel(s) != null)
+                        {
+                        sampleSize = s;
+                        break;
+                        }
+                }
+            }
+        if (metrics != null && bm != null && tiles == null && sampleSize > 1) metrics.recordLevel(pyramid.getCachedLevel(sampleSize) != null);
+        boolean filter = renderQualityPolicy.isFilterBitmap(this, sampleSize, inMotion);
+        drawPaint = filter ? filterPaint : nearestPaint;
+        grayDrawPaint = filter ? grayFilterPaint : grayNearestPaint;
+        if (tiles != null) tiles.beginFrame();
+        if (blit)
+            drawExposed(cvs, sampleSize, filter, scaleX, scaleY, translateX, translateY);
+        else
+            {
+            int saveCount = cvs.save();
+            cvs.concat(drawMatrix);
+            drawImage(cvs, sampleSize);
+            cvs.restoreToCount(saveCount);
+            }
+        drawOverlays(cvs);
+        if (metrics != null) metrics.recordDraw(System.nanoTime() - drawStart);
+        }
+
+    // Draw bmShowingR of the image, with the canvas already transformed to bitmap pixel co-ordinates.
+    private void drawImage(Canvas cvs, int sampleSize)
+        {
+        if (tiles != null)
+            drawTiles(cvs, sampleSize);
+        else if (bm == null)
+            drawLevel(cvs, preview, bmShowingR.left, bmShowingR.top, bmShowingR.right, bmShowingR.bottom);
+        else if (bm == chunkingBm) // Still being copied into chunks, so draw whatever level that fits is built, if any.
+            {
+            Bitmap level = pyramid.getCachedLevel(sampleSize);
+            if (level != null && sampleSize > 1)
+                drawLevel(cvs, level, bmShowingR.left, bmShowingR.top, bmShowingR.right, bmShowingR.bottom);
+            else
+                frameComplete = false;
+            }
+        else if (bmChunks != null && (sampleSize == 1 || bmW/sampleSize > maxBitmapSize || bmH/sampleSize > maxBitmapSize)) // Levels too large to draw too.
+            bmChunks.draw(cvs, bmShowingR, paintFor(bm));
+        else if (sampleSize == 1)
+            cvs.drawBitmap(bm, bmShowingR, bmShowingR, paintFor(bm));
+        else
+            {
+            Bitmap level = pyramid.tryGetLevel(sampleSize);
+            if (level == null) // The loader thread's building a level, so rather than wait, draw the nearest one cached and try again next frame.
+                {
+                level = nearestCachedLevel(sampleSize);
+                pyramid.prefetchLevel(sampleSize);
+                frameComplete = false;
+                postInvalidateOnAnimation();
+                }
+            if (level == bm && bmChunks != null)
+                bmChunks.draw(cvs, bmShowingR, paintFor(bm));
+            else
+                drawLevel(cvs, level, bmShowingR.left, bmShowingR.top, bmShowingR.right, bmShowingR.bottom);
+            }
+        }
+
+    // Get the cached pyramid level nearest a sample size, coarser or finer, that can be drawn in one piece, or bm
+    // itself if there's none.
+    private Bitmap nearestCachedLevel(int sampleSize)
+        {
+        for (int d = 2; sampleSize/d >= 1 || sampleSize*d <= Math.min(bmW, bmH); d *= 2)
+            {
+            int finer = sampleSize/d;
+            if (finer > 1 && bmW/finer <= maxBitmapSize && bmH/finer <= maxBitmapSize)
+                {
+                Bitmap level = pyramid.getCachedLevel(finer);
+                if (level != null) return level;
+                }
+            Bitmap level = pyramid.getCachedLevel(sampleSize*d);
+            if (level != null) return level;
+            }
+        return bm;
+        }
+
+    // Draw a frame in scroll-blit mode: the last frame shifted by the pan since, with only the strips it exposes drawn
+    // from the image, bmShowingR narrowed to each in turn. Frames showing just the preview or stand-ins for tiles
+    // not yet decoded aren't kept for shifting, as the image will change under them.
+    private void drawExposed(Canvas cvs, int sampleSize, boolean filter, float scaleX, float scaleY, float translateX, float translateY)
+        {
+        Canvas frameCvs = scrollBlitter.beginFrame(getWidth(), getHeight(), scaleX, scaleY, translateX, translateY, sampleSize, filter);
+        int showingLeft = bmShowingR.left;
+        int showingTop = bmShowingR.top;
+        int showingRight = bmShowingR.right;
+        int showingBottom = bmShowingR.bottom;
+        frameComplete = bm != null || tiles != null;
+        for (int i = 0; i < scrollBlitter.getExposedCount(); i++)
+            {
+            Rect strip = scrollBlitter.getExposed(i);
+            // A level pixel of margin, so filtering at the strip's edges samples the same pixels as drawing the whole view would.
+            bmShowingR.left = Math.max(showingLeft, (int)Math.floor((strip.left - translateX)/scaleX) - sampleSize);
+            bmShowingR.top = Math.max(showingTop, (int)Math.floor((strip.top - translateY)/scaleY) - sampleSize);
+            bmShowingR.right = Math.min(showingRight, (int)Math.ceil((strip.right - translateX)/scaleX) + sampleSize);
+            bmShowingR.bottom = Math.min(showingBottom, (int)Math.ceil((strip.bottom - translateY)/scaleY) + sampleSize);
+            if (bmShowingR.left >= bmShowingR.right || bmShowingR.top >= bmShowingR.bottom) continue;
+            int saveCount = frameCvs.save();
+            frameCvs.clipRect(strip);
+            frameCvs.concat(drawMatrix);
+            drawImage(frameCvs, sampleSize);
+            frameCvs.restoreToCount(saveCount);
+            }
+        bmShowingR.set(showingLeft, showingTop, showingRight, showingBottom);
+        scrollBlitter.endFrame(cvs, frameComplete);
+        }
+
+    // Draw the overlay layers, with the canvas in view pixel co-ordinates, culled to the part of the bitmap's co-ordinate space the view covers.
+    private void drawOverlays(Canvas cvs)
+        {
+        if (overlayLayers.isEmpty()) return;
+        float scaleX = engine.getBmToViewScaleX();
+        float scaleY = engine.getBmToViewScaleY();
+        float left = -engine.getBmToViewTranslateX()/scaleX;
+        float top = -engine.getBmToViewTranslateY()/scaleY;
+        float right = left + getWidth()/scaleX;
+        float bottom = top + getHeight()/scaleY;
+        for (int i = 0; i < overlayLayers.size(); i++) overlayLayers.get(i).draw(cvs, drawMatrix, scaleX, left, top, right, bottom);
+        }
+
+    // The paint to draw a bitmap with this frame: ALPHA_8 bitmaps the view decoded hold greyscale images (see PixelFormats), not masks.
+    private Paint paintFor(Bitmap b)
+        {
+        return grayAlpha8 && b.getConfig() == Bitmap.Config.ALPHA_8 ? grayDrawPaint : drawPaint;
+        }
+
+    // Draw part of a subsampled copy of the image, with the canvas already transformed to bitmap pixel co-ordinates.
+    // The whole level pixels covering the part are drawn where they lie in the image, so drawing it in pieces (as
+    // scroll-blit mode does) gives the same result as drawing it whole.
+    private void drawLevel(Canvas cvs, Bitmap level, int left, int top, int right, int bottom)
+        {
+        int levelW = level.getWidth();
+        int levelH = level.getHeight();
+        levelSrcR.left = (int)(((long)left)*levelW/bmW);
+        levelSrcR.top = (int)(((long)top)*levelH/bmH);
+        levelSrcR.right = (int)((((long)right)*levelW + bmW - 1)/bmW);
+        levelSrcR.bottom = (int)((((long)bottom)*levelH + bmH - 1)/bmH);
+        float levelToBmX = ((float)bmW)/levelW;
+        float levelToBmY = ((float)bmH)/levelH;
+        tileDstR.set(levelSrcR.left*levelToBmX, levelSrcR.top*levelToBmY, levelSrcR.right*levelToBmX, levelSrcR.bottom*levelToBmY);
+        cvs.drawBitmap(level, levelSrcR, tileDstR, paintFor(level));
+        }
+
+    // Draw the tiles under bmShowingR, with the canvas already transformed to bitmap pixel co-ordinates. Tiles not yet
+    // decoded are requested from the tiled image source's workers, nearest the center of the view first, along with a
+    // margin of tiles around the view, and drawn from a coarser level or the preview meanwhile.
+    private void drawTiles(Canvas cvs, int sampleSize)
+        {
+        int tileSize = tiles.getTileSpan(sampleSize);
+        int firstCol = bmShowingR.left/tileSize;
+        int lastCol = (bmShowingR.right - 1)/tileSize;
+        int firstRow = bmShowingR.top/tileSize;
+        int lastRow = (bmShowingR.bottom - 1)/tileSize;
+        float centerCol = ((float)(bmShowingR.left + bmShowingR.right))/(2.0f*tileSize) - 0.5f;
+        float centerRow = ((float)(bmShowingR.top + bmShowingR.bottom))/(2.0f*tileSize) - 0.5f;
+        for (int row = firstRow; row <= lastRow; row++)
+            for (int col = firstCol; col <= lastCol; col++)
+                {
+                float dc = col - centerCol;
+                float dr = row - centerRow;
+                Bitmap tile = tiles.requestTile(sampleSize, col, row, TiledImageSource.PRIORITY_VISIBLE, dc*dc + dr*dr);
+                if (metrics != null) metrics.recordTile(tile != null);
+                int left = col*tileSize;
+                int top = row*tileSize;
+                int right = Math.min(left + tileSize, bmW);
+                int bottom = Math.min(top + tileSize, bmH);
+                if (tile != null)
+                    {
+                    tileDstR.set(left, top, right, bottom);
+                    cvs.drawBitmap(tile, null, tileDstR, paintFor(tile));
+                    }
+                else
+                    drawTileFallback(cvs, sampleSize, left, top, right, bottom);
+                }
+        for (int row = firstRow - 1; row <= lastRow + 1; row++)
+            for (int col = firstCol - 1; col <= lastCol + 1; col++)
+                if (row < firstRow || row > lastRow || col < firstCol || col > lastCol)
+                    {
+                    float dc = col - centerCol;
+                    float dr = row - centerRow;
+                    tiles.requestTile(sampleSize, col, row, TiledImageSource.PRIORITY_MARGIN, dc*dc + dr*dr);
+                    }
+        }
+
+    // Draw a region of the image whose tile isn't decoded yet from the nearest coarser level tile that is, or failing that the preview.
+    private void drawTileFallback(Canvas cvs, int sampleSize, int left, int top, int right, int bottom)
+        {
+        frameComplete = false;
+        int maxDimension = bmW > bmH ? bmW : bmH;
+        for (int coarser = 2*sampleSize; tiles.getTileSpan(coarser/2) < maxDimension; coarser *= 2)
+            {
+            int span = tiles.getTileSpan(coarser);
+            int col = left/span;
+            int row = top/span;
+            Bitmap tile = tiles.getCachedTile(coarser, col, row);
+            if (tile == null) continue;
+            int tileLeft = col*span;
+            int tileTop = row*span;
+            int tileW = Math.min(tileLeft + span, bmW) - tileLeft;
+            int tileH = Math.min(tileTop + span, bmH) - tileTop;
+            levelSrcR.left = (int)(((long)(left - tileLeft))*tile.getWidth()/tileW);
+            levelSrcR.top = (int)(((long)(top - tileTop))*tile.getHeight()/tileH);
+            levelSrcR.right = (int)(((long)(right - tileLeft))*tile.getWidth()/tileW);
+            levelSrcR.bottom = (int)(((long)(bottom - tileTop))*tile.getHeight()/tileH);
+            tileDstR.set(left, top, right, bottom);
+            cvs.drawBitmap(tile, levelSrcR, tileDstR, paintFor(tile));
+            return;
+            }
+        if (preview != null) drawLevel(cvs, preview, left, top, right, bottom);
+        }
+
+    // Sizes the caches to this view's share of the memory budget whenever it changes.
+    private class BudgetClient implements MemoryBudget.Client
+        {
+        public void onBudgetChanged(int maxBytes)
+            {
+            budgetBytes = maxBytes;
+            applyBudget();
+            }
+        }
+
+    // Redraws the image when one of its tiles has been decoded.
+    private class TileDecodedListener implements TiledImageSource.OnTileDecodedListener
+        {
+        public void onTileDecoded(TiledImageSource src)
+            {
+            if (src == tiles) invalidateImage();
+            }
+        }
+
+    // Shows what loadImage() decodes, if it is still the load in progress, and discards it otherwise.
+    private class LoaderCallback implements ImageLoader.Callback
+        {
+        public void onPreviewDecoded(ImageLoader.Request request, Bitmap preview, int width, int height)
+            {
+            if (request != loadRequest)
                 {
-                viewInBmR.left = bmW - w;
-                viewInBmR.right = bmW;
+                discardBitmap(preview);
+                return;
                 }
+            PanZoomBitmapView.this.preview = preview;
+            setImageSize(width, height);
+            invalidateImage();
+            }
+
+        public void onFullDecoded(ImageLoader.Request request, Bitmap bm, TiledImageSource tiles)
+            {
+            if (request != loadRequest)
+                {
+                if (bm != null) discardBitmap(bm);
+                if (tiles != null) tiles.recycle();
+                return;
+                }
+            loadRequest = null;
+            showDecoded(bm, tiles);
+            if (bm != null) // The preview's still useful for tiles not yet decoded.
+                {
+                poolBitmap(preview);
+                preview = null;
+                }
+            int w = bm != null ? bm.getWidth() : tiles.getWidth();
+            int h = bm != null ? bm.getHeight() : tiles.getHeight();
+            if (w != bmW || h != bmH) setImageSize(w, h); // Otherwise keep the viewport from the preview.
+            invalidateImage();
+            if (onImageLoadListener != null) onImageLoadListener.onImageLoaded(PanZoomBitmapView.this);
+            }
+
+        public void onDecodeFailed(ImageLoader.Request request, IOException e)
+            {
+            if (request != loadRequest) return;
+            loadRequest = null;
+            if (onImageLoadListener != null) onImageLoadListener.onImageLoadFailed(PanZoomBitmapView.this, e);
+            }
+        }
+
+    // Steps zoom animations once per display frame (see scheduleAnimationFrame()).
+    private class AnimationFrame implements Choreographer.FrameCallback
+        {
+        public void doFrame(long frameTimeNanos)
+            {
+            animationFrameScheduled = false;
+            if (stepZoomAnimation(frameTimeNanos)) scheduleAnimationFrame();
+            }
+        }
+
+    // Copies a bitmap too large to draw in one piece into chunks, on the loader thread, then hands the chunks to
+    // chunkCopyDone() on the UI thread. A failure leaves the image drawn from pyramid levels.
+    private class ChunkCopy implements Runnable
+        {
+        final Bitmap src;
+        final int chunkSize;
+        BitmapChunks chunks = null;     // The chunks, once copied, or null if they couldn't be.
+        boolean released = false;       // Whether or not the view let go of src during the copy (UI thread only).
+
+        ChunkCopy(Bitmap src, int chunkSize)
+            {
+            this.src = src;
+            this.chunkSize = chunkSize;
+            }
+
+        public void run()
+            {
+            try
+                {
+                chunks = new BitmapChunks(src, chunkSize);
+                }
+            catch (OutOfMemoryError e)
+                {
+                chunks = null;
+                }
+            catch (RuntimeException e)
+                {
+                chunks = null; // E.g. an app's own bitmap recycled under the copy.
+                }
+            post
+                (
+                new Runnable()
+                    {
+
+                    public void run()
+                        {
+                        chunkCopyDone(ChunkCopy.this);
+                        }
+
+                    }
+                );
             }
         }
     }
@@ -0,0 +1,217 @@
+package baydroid.android_pan_zoom_bitmap_view.util;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorMatrix;
+import android.graphics.ColorMatrixColorFilter;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.os.Build;
+
+
+
+/**
+ * Chooses the cheapest bitmap config that shows an image without visible loss: RGB_565 for opaque colour images, and
+ * for opaque greyscale images ALPHA_8, holding the grey level in the alpha channel and drawn through a colour filter
+ * that turns it back into grey. Images with transparency stay ARGB_8888.
+ */
+class PixelFormats
+    {
+    /**
+     * How far apart (out of 255) a pixel's red, green and blue can be for it to still count as grey, allowing for JPEG chroma noise.
+     */
+    static final int GRAY_TOLERANCE = 8;
+    /**
+     * The most pixels of a bitmap sampled to decide whether it's greyscale.
+     */
+    static final int MAX_SAMPLES = 64*1024;
+
+    /**
+     * Choose the config to decode an image to.
+     * @param format The view's pixel format setting.
+     * @param sample A subsampled copy of the image (e.g. the preview) to examine, or null if there's none.
+     * @param allowHardware Whether or not HARDWARE can be used (it can't for bitmaps that are pooled, cached on disk, or drawn into).
+     * @return The config.
+     */
+    static Bitmap.Config choose(PanZoomBitmapView.PixelFormat format, Bitmap sample, boolean allowHardware)
+        {
+        switch (format)
+            {
+            case ARGB_8888:
+                return Bitmap.Config.ARGB_8888;
+            case RGB_565:
+                return Bitmap.Config.RGB_565;
+            case HARDWARE:
+                if (allowHardware && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) return Bitmap.Config.HARDWARE;
+                break;
+            default:
+                break;
+            }
+        if (sample == null || isHardware(sample.getConfig())) return Bitmap.Config.ARGB_8888;
+        if (sample.getConfig() == Bitmap.Config.ALPHA_8) return Bitmap.Config.ALPHA_8; // Already greyscale.
+        if (sample.hasAlpha()) return Bitmap.Config.ARGB_8888;
+        return isGray(sample) ? Bitmap.Config.ALPHA_8 : Bitmap.Config.RGB_565;
+        }
+
+    /**
+     * Is a config HARDWARE? Safe on any platform: HARDWARE only exists from Android 8.0 on, and reading it earlier
+     * throws NoSuchFieldError.
+     * @param config The config, or null.
+     * @return True if the config is HARDWARE, false otherwise.
+     */
+    static boolean isHardware(Bitmap.Config config)
+        {
+        return config != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && config == Bitmap.Config.HARDWARE;
+        }
+
+    /**
+     * Is a bitmap greyscale? Up to MAX_SAMPLES pixels are examined, spread evenly over the bitmap.
+     * @param bm The bitmap.
+     * @return True if every pixel examined is grey, false otherwise.
+     */
+    static boolean isGray(Bitmap bm)
+        {
+        int w = bm.getWidth();
+        int h = bm.getHeight();
+        int step = 1;
+        while (((long)w/step)*(h/step) > MAX_SAMPLES) step++;
+        int[] rowPixels = new int[w];
+        for (int y = 0; y < h; y += step)
+            {
+            bm.getPixels(rowPixels, 0, w, 0, y, w, 1);
+            for (int x = 0; x < w; x += step)
+                {
+                int c = rowPixels[x];
+                int r = (c >> 16) & 0xFF;
+                int g = (c >> 8) & 0xFF;
+                int b = c & 0xFF;
+                if (Math.abs(r - g) > GRAY_TOLERANCE || Math.abs(g - b) > GRAY_TOLERANCE || Math.abs(r - b) > GRAY_TOLERANCE) return false;
+                }
+            }
+        return true;
+        }
+
+    /**
+     * Get the config to decode an image to before converting it to the config wanted, for configs decoders don't produce.
+     * @param config The config wanted.
+     * @return The config to decode to.
+     */
+    static Bitmap.Config decodeConfig(Bitmap.Config config)
+        {
+        return config == Bitmap.Config.ALPHA_8 ? Bitmap.Config.RGB_565 : config; // Decoders only produce ALPHA_8 for some greyscale-encoded images.
+        }
+
+    /**
+     * Convert a bitmap to the config wanted, if it isn't already. The converted bitmap is drawn into (so is built in a
+     * pooled bitmap if there is one), and the original is released to the pool or recycled.
+     * @param bm The bitmap.
+     * @param config The config wanted. Only ALPHA_8 is converted to; any other config leaves the bitmap as it is.
+     * @param pool The pool, or null for none.
+     * @return The converted bitmap, or bm if no conversion was needed.
+     */
+    static Bitmap convert(Bitmap bm, Bitmap.Config config, BitmapPool pool)
+        {
+        if (bm == null || config != Bitmap.Config.ALPHA_8 || bm.getConfig() == Bitmap.Config.ALPHA_8) return bm;
+        int w = bm.getWidth();
+        int h = bm.getHeight();
+        Bitmap gray = pool != null ? pool.get(w, h, Bitmap.Config.ALPHA_8) : null;
+        if (gray == null) gray = Bitmap.createBitmap(w, h, Bitmap.Config.ALPHA_8);
+        new Canvas(gray).drawBitmap(bm, 0, 0, newToGrayPaint(false));
+        if (pool != null)
+            pool.put(bm);
+        else
+            bm.recycle();
+        return gray;
+        }
+
+    /**
+     * Draw a bitmap scaled into another, converting it to the destination's config.
+     * @param src The bitmap to draw.
+     * @param dst The bitmap to draw into. Its previous contents are replaced.
+     */
+    static void drawScaled(Bitmap src, Bitmap dst)
+        {
+        Paint paint = dst.getConfig() == Bitmap.Config.ALPHA_8 && src.getConfig() != Bitmap.Config.ALPHA_8 ? newToGrayPaint(true) : new Paint(Paint.FILTER_BITMAP_FLAG);
+        paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+        new Canvas(dst).drawBitmap(src, null, new Rect(0, 0, dst.getWidth(), dst.getHeight()), paint);
+        }
+
+    /**
+     * Make a paint for drawing ALPHA_8 bitmaps made by convert() as the grey images they hold, rather than as masks.
+     * @param filter Whether or not to filter the bitmaps when drawing them scaled.
+     * @return The paint.
+     */
+    static Paint newGrayPaint(boolean filter)
+        {
+        Paint paint = new Paint();
+        paint.setFilterBitmap(filter);
+        paint.setColorFilter
+            (
+            new ColorMatrixColorFilter
+                (
+                new float[]
+                    {
+                    0.0f, 0.0f, 0.0f, 1.0f, 0.0f,  // Red, green and blue from the alpha channel, which holds the grey level.
+                    0.0f, 0.0f, 0.0f, 1.0f, 0.0f,
+                    0.0f, 0.0f, 0.0f, 1.0f, 0.0f,
+                    0.0f, 0.0f, 0.0f, 0.0f, 255.0f // Opaque.
+                    }
+                )
+            );
+        return paint;
+        }
+
+    /**
+     * Get the number of bytes a pixel takes in a config.
+     * @param config The config.
+     * @return The number of bytes per pixel.
+     */
+    static int bytesPerPixel(Bitmap.Config config)
+        {
+        switch (config)
+            {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            case RGBA_F16:
+                return 8;
+            default:
+                return 4;
+            }
+        }
+
+    /**
+     * Get how many bytes a bitmap saves over the same bitmap in ARGB_8888.
+     * @param bm The bitmap, or null.
+     * @return The bytes saved, 0 for none.
+     */
+    static long savedBytes(Bitmap bm)
+        {
+        if (bm == null || bm.isRecycled() || bm.getConfig() == null || isHardware(bm.getConfig())) return 0;
+        return Math.max(0L, ((long)bm.getWidth())*bm.getHeight()*(4 - bytesPerPixel(bm.getConfig())));
+        }
+
+    // A paint which draws a colour bitmap's luminance into an ALPHA_8 bitmap's alpha channel.
+    private static Paint newToGrayPaint(boolean filter)
+        {
+        ColorMatrix cm = new ColorMatrix
+            (
+            new float[]
+                {
+                0.0f, 0.0f, 0.0f, 0.0f, 0.0f,
+                0.0f, 0.0f, 0.0f, 0.0f, 0.0f,
+                0.0f, 0.0f, 0.0f, 0.0f, 0.0f,
+                0.299f, 0.587f, 0.114f, 0.0f, 0.0f // Rec. 601 luma.
+                }
+            );
+        Paint paint = new Paint();
+        paint.setFilterBitmap(filter);
+        paint.setColorFilter(new ColorMatrixColorFilter(cm));
+        paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+        return paint;
+        }
+    }
@@ -0,0 +1,131 @@
+package baydroid.android_pan_zoom_bitmap_view.util;
+
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+
+
+
+/**
+ * An overlay drawing a polygon whose vertices are in bitmap pixel co-ordinates, so it scales with the zoom. When
+ * zoomed out, vertices closer on screen than SIMPLIFY_DISTANCE to the last vertex drawn are skipped.
+ */
+public class PolygonOverlay extends Overlay
+    {
+    /**
+     * Vertices closer than this on screen to the previous vertex drawn are skipped (in view pixels).
+     */
+    public static final float SIMPLIFY_DISTANCE = 1.0f;
+
+    private static final Path path = new Path();        // Overlays are only drawn on the UI thread, so share these.
+    private static float[] viewPoints = new float[64];  // The vertices mapped to the view.
+
+    private final float[] points;
+    private Paint fillPaint;
+    private Paint strokePaint;
+
+    /**
+     * Create a polygon.
+     * @param points The vertices, as X, Y pairs (in bitmap pixel co-ordinates). The array is used, not copied, so don't change it afterwards.
+     * @param fillPaint The paint to fill the polygon with, or null not to fill it. It can be shared by any number of polygons.
+     * @param strokePaint The paint to outline the polygon with, or null not to outline it. It can be shared by any number of polygons.
+     */
+    public PolygonOverlay(float[] points, Paint fillPaint, Paint strokePaint)
+        {
+        super(min(checked(points), 0), min(points, 1), max(points, 0), max(points, 1));
+        this.points = points;
+        this.fillPaint = fillPaint;
+        this.strokePaint = strokePaint;
+        }
+
+    /**
+     * Change the paints the polygon's drawn with. Invalidate the view to see the change. While the polygon's in a
+     * layer, the stroke width mustn't grow (see Overlay.getScreenExtent()).
+     * @param fillPaint The paint to fill the polygon with, or null not to fill it.
+     * @param strokePaint The paint to outline the polygon with, or null not to outline it.
+     */
+    public void setPaints(Paint fillPaint, Paint strokePaint)
+        {
+        this.fillPaint = fillPaint;
+        this.strokePaint = strokePaint;
+        }
+
+    public void draw(Canvas cvs, Matrix bmToView, float scale)
+        {
+        int n = points.length;
+        if (viewPoints.length < n) viewPoints = new float[Math.max(n, 2*viewPoints.length)];
+        bmToView.mapPoints(viewPoints, 0, points, 0, n/2);
+        path.rewind();
+        float lastX = viewPoints[0];
+        float lastY = viewPoints[1];
+        path.moveTo(lastX, lastY);
+        for (int i = 2; i < n; i += 2)
+            {
+            float x = viewPoints[i];
+            float y = viewPoints[i + 1];
+            if (Math.abs(x - lastX) < SIMPLIFY_DISTANCE && Math.abs(y - lastY) < SIMPLIFY_DISTANCE) continue;
+            path.lineTo(x, y);
+            lastX = x;
+            lastY = y;
+            }
+        path.close();
+        if (fillPaint != null) cvs.drawPath(path, fillPaint);
+        if (strokePaint != null) cvs.drawPath(path, strokePaint);
+        }
+
+    public boolean hitTest(float bmX, float bmY, float slop, float scale)
+        {
+        if (!super.hitTest(bmX, bmY, slop, scale)) return false;
+        float edgeSlop = slop + (strokePaint != null ? strokePaint.getStrokeWidth()/(2.0f*scale) : 0.0f);
+        boolean inside = false;
+        int n = points.length;
+        for (int i = 0, j = n - 2; i < n; j = i, i += 2)
+            {
+            float xi = points[i];
+            float yi = points[i + 1];
+            float xj = points[j];
+            float yj = points[j + 1];
+            if ((yi > bmY) != (yj > bmY) && bmX < (xj - xi)*(bmY - yi)/(yj - yi) + xi) inside = !inside;
+            if (distanceToSegmentSquared(bmX, bmY, xi, yi, xj, yj) <= edgeSlop*edgeSlop) return true;
+            }
+        return inside && fillPaint != null;
+        }
+
+    public float getScreenExtent()
+        {
+        return strokePaint != null ? strokePaint.getStrokeWidth()/2.0f : 0.0f;
+        }
+
+    private static float[] checked(float[] points)
+        {
+        if (points.length < 6 || (points.length & 1) != 0) throw new IllegalArgumentException("A polygon needs at least 3 X, Y pairs");
+        return points;
+        }
+
+    private static float distanceToSegmentSquared(float px, float py, float x1, float y1, float x2, float y2)
+        {
+        float dx = x2 - x1;
+        float dy = y2 - y1;
+        float lengthSquared = dx*dx + dy*dy;
+        float t = lengthSquared > 0.0f ? ((px - x1)*dx + (py - y1)*dy)/lengthSquared : 0.0f;
+        t = t < 0.0f ? 0.0f : (t > 1.0f ? 1.0f : t);
+        float ex = x1 + t*dx - px;
+        float ey = y1 + t*dy - py;
+        return ex*ex + ey*ey;
+        }
+
+    private static float min(float[] points, int offset)
+        {
+        float m = points[offset];
+        for (int i = offset + 2; i < points.length; i += 2) m = Math.min(m, points[i]);
+        return m;
+        }
+
+    private static float max(float[] points, int offset)
+        {
+        float m = points[offset];
+        for (int i = offset + 2; i < points.length; i += 2) m = Math.max(m, points[i]);
+        return m;
+        }
+    }
@@ -0,0 +1,148 @@
+package baydroid.android_pan_zoom_bitmap_view.util;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+
+
+
+/**
+ * Offscreen frame buffers for scroll-blit drawing on software canvases: the last frame is kept and, when the image has
+ * only been panned by whole view pixels since, shifted into a second buffer so that only the strips the pan exposed
+ * need drawing from the image. Anything else (a zoom, a change of sample size or filtering, a new image, a frame drawn
+ * with stand-ins for tiles not yet decoded) means the whole frame's drawn again.
+ * <p>
+ * The buffers are ARGB_8888 and the size of the view, two of them, so this trades 8 bytes per view pixel for the fill
+ * cost of redrawing the whole view on every pan.
+ */
+class ScrollBlitter
+    {
+    private Bitmap front = null;              // The last frame.
+    private Bitmap back = null;               // Where the next frame is built.
+    private final Canvas backCanvas = new Canvas();
+    private final Paint copyPaint = new Paint(); // For shifting the last frame, replacing what's in the back buffer.
+    private final Paint clearPaint = new Paint(); // For clearing the exposed strips.
+    private boolean valid = false;            // Whether or not the last frame can be shifted to build the next.
+    private float scaleX;                     // The bitmap to view transform and drawing settings of the last frame.
+    private float scaleY;
+    private float translateX;
+    private float translateY;
+    private int sampleSize;
+    private boolean filter;
+    private final Rect[] exposed = { new Rect(), new Rect() }; // The strips of the next frame to draw (in view pixel co-ordinates).
+    private int exposedCount = 0;
+
+    ScrollBlitter()
+        {
+        copyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+        clearPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
+        }
+
+    /**
+     * Start building a frame in the back buffer: the last frame shifted by the pan since, if it can be, with the strips
+     * left to draw cleared. The translation should be whole view pixels, or the shifted frame won't line up with the strips.
+     * @param w The view width.
+     * @param h The view height.
+     * @param scaleX The horizontal scale of the bitmap to view transform.
+     * @param scaleY The vertical scale of the bitmap to view transform.
+     * @param translateX The horizontal translation of the bitmap to view transform (in whole view pixels).
+     * @param translateY The vertical translation of the bitmap to view transform (in whole view pixels).
+     * @param sampleSize The pyramid level or tile sample size the frame is drawn from.
+     * @param filter Whether or not the frame is drawn filtered.
+     * @return The canvas on the back buffer, in view pixel co-ordinates, to draw getExposed() rects on.
+     */
+    Canvas beginFrame(int w, int h, float scaleX, float scaleY, float translateX, float translateY, int sampleSize, boolean filter)
+        {
+        if (front == null || front.getWidth() != w || front.getHeight() != h)
+            {
+            release();
+            front = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+            back = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+            }
+        backCanvas.setBitmap(back);
+        int dx = Math.round(translateX - this.translateX);
+        int dy = Math.round(translateY - this.translateY);
+        exposedCount = 0;
+        if (valid && scaleX == this.scaleX && scaleY == this.scaleY && sampleSize == this.sampleSize && filter == this.filter && Math.abs(dx) < w && Math.abs(dy) < h)
+            {
+            backCanvas.drawBitmap(front, dx, dy, copyPaint);
+            if (dx > 0)
+                exposed[exposedCount++].set(0, 0, dx, h);
+            else if (dx < 0)
+                exposed[exposedCount++].set(w + dx, 0, w, h);
+            if (dy > 0)
+                exposed[exposedCount++].set(0, 0, w, dy);
+            else if (dy < 0)
+                exposed[exposedCount++].set(0, h + dy, w, h);
+            }
+        else
+            exposed[exposedCount++].set(0, 0, w, h);
+        for (int i = 0; i < exposedCount; i++)
+            {
+            Rect r = exposed[i];
+            backCanvas.drawRect(r.left, r.top, r.right, r.bottom, clearPaint);
+            }
+        this.scaleX = scaleX;
+        this.scaleY = scaleY;
+        this.translateX = translateX;
+        this.translateY = translateY;
+        this.sampleSize = sampleSize;
+        this.filter = filter;
+        return backCanvas;
+        }
+
+    /**
+     * @return The number of strips of the frame being built left to draw: 0 if the image hasn't moved, 1 or 2 after a pan, 1 (the whole view) otherwise.
+     */
+    int getExposedCount()
+        {
+        return exposedCount;
+        }
+
+    /**
+     * @param i The index of the strip, from 0 to getExposedCount() - 1.
+     * @return The strip (in view pixel co-ordinates). It's reused, so shouldn't be kept.
+     */
+    Rect getExposed(int i)
+        {
+        return exposed[i];
+        }
+
+    /**
+     * Finish building a frame, and draw it.
+     * @param cvs The view's canvas, in view pixel co-ordinates.
+     * @param complete Whether or not the frame shows the image as it will stay (e.g. no tiles were drawn from stand-ins), so that the next frame can be built from it.
+     */
+    void endFrame(Canvas cvs, boolean complete)
+        {
+        Bitmap b = front;
+        front = back;
+        back = b;
+        valid = complete;
+        cvs.drawBitmap(front, 0.0f, 0.0f, null);
+        }
+
+    /**
+     * Have the next frame drawn in full, e.g. because the image has changed.
+     */
+    void invalidate()
+        {
+        valid = false;
+        }
+
+    /**
+     * Let go of the frame buffers. They're allocated again by the next call to beginFrame().
+     */
+    void release()
+        {
+        backCanvas.setBitmap(null);
+        if (front != null) front.recycle();
+        if (back != null) back.recycle();
+        front = null;
+        back = null;
+        valid = false;
+        }
+    }
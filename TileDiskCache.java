@@ -0,0 +1,387 @@
+package baydroid.android_pan_zoom_bitmap_view.util;
+
+import android.graphics.Bitmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+
+/**
+ * A persistent, size bounded, on-disk cache of decoded tiles, so that reopening an image doesn't mean decoding it
+ * again. Tiles are keyed by the image's identity (e.g. a hash of its content, or of its file's path, size and
+ * modification time), the sample size (pyramid level) and the tile's column and row.
+ * <p>
+ * Tiles are stored as raw pixels behind a small header, and read back by memory mapping the file and copying the
+ * pixels straight into a bitmap, with no decompression. Each file is written in full under a temporary name then
+ * renamed, so a crash never leaves a partial tile behind. When the cache grows past its byte budget the least recently
+ * used entries are deleted. All methods are thread safe.
+ */
+public class TileDiskCache
+    {
+    private static final int MAGIC = 0x505A5431; // "PZT1"
+    private static final int HEADER_BYTES = 32;
+    private static final String TILE_SUFFIX = ".tile";
+    private static final String SIZE_SUFFIX = ".size";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final Bitmap.Config[] CONFIGS = { Bitmap.Config.ARGB_8888, Bitmap.Config.RGB_565, Bitmap.Config.ALPHA_8 }; // Stored by index.
+
+    private final File dir;                                                                  // Where the cache files live.
+    private final long maxBytes;                                                             // The byte budget.
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<String, Long>(64, 0.75f, true); // File name to size, least recently used first.
+    private long totalBytes = 0;                                                             // Sum of the sizes in index.
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Open a disk cache, creating its directory if need be. Files left by an interrupted write are deleted.
+     * @param dir The directory to keep the cache in, used for nothing else (e.g. a subdirectory of Context.getCacheDir()).
+     * @param maxBytes The maximum number of bytes to keep on disk.
+     * @throws IOException If the directory can't be created.
+     */
+    public TileDiskCache(File dir, long maxBytes) throws IOException
+        {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Can't create " + dir);
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        ArrayList<File> entries = new ArrayList<File>();
+        for (File f : files)
+            {
+            if (f.getName().endsWith(TEMP_SUFFIX))
+                f.delete();
+            else if (f.getName().endsWith(TILE_SUFFIX) || f.getName().endsWith(SIZE_SUFFIX))
+                entries.add(f);
+            }
+        Collections.sort
+            (
+            entries,
+            new Comparator<File>()
+                {
+
+                public int compare(File f1, File f2)
+                    {
+                    long m1 = f1.lastModified();
+                    long m2 = f2.lastModified();
+                    return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+                    }
+
+                }
+            );
+        for (int i = 0; i < entries.size(); i++)
+            {
+            File f = entries.get(i);
+            index.put(f.getName(), f.length());
+            totalBytes += f.length();
+            }
+        trim();
+        }
+
+    /**
+     * Get a cached tile.
+     * @param contentKey Identifies the image's content, e.g. a hash of the image file.
+     * @param sampleSize The tile's sample size.
+     * @param col The tile's column.
+     * @param row The tile's row.
+     * @return The tile, or null if it isn't in the cache.
+     */
+    public Bitmap getTile(String contentKey, int sampleSize, int col, int row)
+        {
+        return getTile(contentKey, sampleSize, col, row, null);
+        }
+
+    /**
+     * Get a cached tile, reading it into a pooled bitmap if there's a suitable one.
+     * @param contentKey Identifies the image's content, e.g. a hash of the image file.
+     * @param sampleSize The tile's sample size.
+     * @param col The tile's column.
+     * @param row The tile's row.
+     * @param pool The pool to take the tile's bitmap from, or null to allocate a new one.
+     * @return The tile, or null if it isn't in the cache.
+     */
+    public Bitmap getTile(String contentKey, int sampleSize, int col, int row, BitmapPool pool)
+        {
+        String name = tileName(contentKey, sampleSize, col, row);
+        File f;
+        synchronized (this)
+            {
+            if (index.get(name) == null)
+                {
+                misses++;
+                return null;
+                }
+            hits++;
+            f = new File(dir, name);
+            }
+        f.setLastModified(System.currentTimeMillis()); // So the LRU order survives a restart.
+        try
+            {
+            RandomAccessFile raf = new RandomAccessFile(f, "r");
+            try
+                {
+                FileChannel ch = raf.getChannel();
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                if (buf.remaining() < HEADER_BYTES || buf.getInt() != MAGIC) throw new IOException("Bad header");
+                int w = buf.getInt();
+                int h = buf.getInt();
+                int config = buf.getInt();
+                int bytes = buf.getInt();
+                if (w <= 0 || h <= 0 || config < 0 || config >= CONFIGS.length || HEADER_BYTES + (long)bytes != ch.size()) throw new IOException("Bad header");
+                Bitmap tile = pool != null ? pool.get(w, h, CONFIGS[config]) : null;
+                if (tile == null) tile = Bitmap.createBitmap(w, h, CONFIGS[config]);
+                if (tile.getByteCount() != bytes)
+                    {
+                    if (pool != null) pool.put(tile);
+                    throw new IOException("Bad pixel data size");
+                    }
+                buf.position(HEADER_BYTES);
+                tile.copyPixelsFromBuffer(buf);
+                return tile;
+                }
+            finally
+                {
+                raf.close();
+                }
+            }
+        catch (IOException e)
+            {
+            remove(name);
+            return null;
+            }
+        catch (RuntimeException e)
+            {
+            remove(name);
+            return null;
+            }
+        }
+
+    /**
+     * Put a tile in the cache, replacing any tile already cached under the same key.
+     * @param contentKey Identifies the image's content, e.g. a hash of the image file.
+     * @param sampleSize The tile's sample size.
+     * @param col The tile's column.
+     * @param row The tile's row.
+     * @param tile The tile. Tiles in configs other than ARGB_8888, RGB_565 and ALPHA_8 aren't cached.
+     */
+    public void putTile(String contentKey, int sampleSize, int col, int row, Bitmap tile)
+        {
+        int config = -1;
+        for (int i = 0; i < CONFIGS.length; i++)
+            if (tile.getConfig() == CONFIGS[i]) config = i;
+        if (config < 0) return;
+        String name = tileName(contentKey, sampleSize, col, row);
+        int bytes = tile.getByteCount();
+        File tmp = new File(dir, name + "." + Thread.currentThread().getId() + TEMP_SUFFIX);
+        try
+            {
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try
+                {
+                MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + (long)bytes);
+                buf.putInt(MAGIC).putInt(tile.getWidth()).putInt(tile.getHeight()).putInt(config).putInt(bytes);
+                buf.position(HEADER_BYTES);
+                tile.copyPixelsToBuffer(buf);
+                buf.force();
+                }
+            finally
+                {
+                raf.close();
+                }
+            commit(tmp, name);
+            }
+        catch (IOException e)
+            {
+            tmp.delete();
+            }
+        catch (RuntimeException e)
+            {
+            tmp.delete();
+            }
+        }
+
+    /**
+     * Get the cached size of an image, so that it can be shown from cached tiles without first opening a decoder.
+     * @param contentKey Identifies the image's content.
+     * @param size Receives the width and height (in bitmap pixels) in its first two elements.
+     * @return True if the size was cached, false otherwise.
+     */
+    public boolean getImageSize(String contentKey, int[] size)
+        {
+        int[] record = new int[3];
+        if (!readImageRecord(contentKey, record)) return false;
+        size[0] = record[0];
+        size[1] = record[1];
+        return true;
+        }
+
+    /**
+     * Get the config cached with an image's size, which its tiles were decoded to.
+     * @param contentKey Identifies the image's content.
+     * @return The config, or null if there's none cached.
+     */
+    public Bitmap.Config getImageTileConfig(String contentKey)
+        {
+        int[] record = new int[3];
+        if (!readImageRecord(contentKey, record) || record[2] < 0 || record[2] >= CONFIGS.length) return null;
+        return CONFIGS[record[2]];
+        }
+
+    /**
+     * Cache the size of an image.
+     * @param contentKey Identifies the image's content.
+     * @param width The image width (in bitmap pixels).
+     * @param height The image height (in bitmap pixels).
+     */
+    public void putImageSize(String contentKey, int width, int height)
+        {
+        putImageSize(contentKey, width, height, null);
+        }
+
+    /**
+     * Cache the size of an image, and the config its tiles are decoded to.
+     * @param contentKey Identifies the image's content.
+     * @param width The image width (in bitmap pixels).
+     * @param height The image height (in bitmap pixels).
+     * @param tileConfig The tile config, or null for the decoder's choice. Configs other than ARGB_8888, RGB_565 and ALPHA_8 are stored as null.
+     */
+    public void putImageSize(String contentKey, int width, int height, Bitmap.Config tileConfig)
+        {
+        int config = -1;
+        for (int i = 0; i < CONFIGS.length; i++)
+            if (tileConfig == CONFIGS[i]) config = i;
+        String name = contentKey + SIZE_SUFFIX;
+        File tmp = new File(dir, name + "." + Thread.currentThread().getId() + TEMP_SUFFIX);
+        try
+            {
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try
+                {
+                raf.writeInt(MAGIC);
+                raf.writeInt(width);
+                raf.writeInt(height);
+                raf.writeInt(config);
+                raf.getFD().sync();
+                }
+            finally
+                {
+                raf.close();
+                }
+            commit(tmp, name);
+            }
+        catch (IOException e)
+            {
+            tmp.delete();
+            }
+        }
+
+    // Read an image's cached width, height and tile config index (-1 if none, as in records from before the config was stored).
+    private boolean readImageRecord(String contentKey, int[] record)
+        {
+        String name = contentKey + SIZE_SUFFIX;
+        synchronized (this)
+            {
+            if (index.get(name) == null) return false;
+            }
+        try
+            {
+            RandomAccessFile raf = new RandomAccessFile(new File(dir, name), "r");
+            try
+                {
+                if (raf.readInt() != MAGIC) throw new IOException("Bad header");
+                record[0] = raf.readInt();
+                record[1] = raf.readInt();
+                record[2] = raf.length() >= 16 ? raf.readInt() : -1;
+                return record[0] > 0 && record[1] > 0;
+                }
+            finally
+                {
+                raf.close();
+                }
+            }
+        catch (IOException e)
+            {
+            remove(name);
+            return false;
+            }
+        }
+
+    /**
+     * @return The number of getTile() calls which found the tile in the cache.
+     */
+    public synchronized long getHitCount()
+        {
+        return hits;
+        }
+
+    /**
+     * @return The number of getTile() calls which didn't find the tile in the cache.
+     */
+    public synchronized long getMissCount()
+        {
+        return misses;
+        }
+
+    /**
+     * @return The number of bytes the cache currently holds on disk.
+     */
+    public synchronized long getSizeBytes()
+        {
+        return totalBytes;
+        }
+
+    /**
+     * Delete everything in the cache.
+     */
+    public synchronized void clear()
+        {
+        for (String name : index.keySet()) new File(dir, name).delete();
+        index.clear();
+        totalBytes = 0;
+        }
+
+    private static String tileName(String contentKey, int sampleSize, int col, int row)
+        {
+        return contentKey + "_" + sampleSize + "_" + col + "_" + row + TILE_SUFFIX;
+        }
+
+    // Rename a completely written temporary file to its final name (atomic on the same file system), and index it.
+    private synchronized void commit(File tmp, String name) throws IOException
+        {
+        File f = new File(dir, name);
+        if (!tmp.renameTo(f)) throw new IOException("Can't rename " + tmp);
+        Long old = index.put(name, f.length());
+        if (old != null) totalBytes -= old;
+        totalBytes += f.length();
+        trim();
+        }
+
+    private synchronized void remove(String name)
+        {
+        Long old = index.remove(name);
+        if (old != null) totalBytes -= old;
+        new File(dir, name).delete();
+        }
+
+    // Must hold the monitor.
+    private void trim()
+        {
+        Iterator<Map.Entry<String, Long>> it = index.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext())
+            {
+            Map.Entry<String, Long> e = it.next();
+            new File(dir, e.getKey()).delete();
+            totalBytes -= e.getValue();
+            it.remove();
+            }
+        }
+    }
@@ -0,0 +1,1062 @@
+package baydroid.android_pan_zoom_bitmap_view.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LongSparseArray;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+/**
+ * An image source for PanZoomBitmapView which decodes square tiles of the image on demand using a BitmapRegionDecoder,
+ * so that only the tiles under the visible part of the view are ever held in memory. Decoded tiles are kept in an LRU
+ * cache with a byte budget. Tiles are keyed by primitive longs, so looking them up and requesting them each frame
+ * doesn't allocate.
+ * <p>
+ * Tiles can be decoded at any power-of-two sample size (pyramid level). A tile at sample size S covers tileSize*S by
+ * tileSize*S bitmap pixels but is decoded to roughly tileSize by tileSize pixels, so zoomed out views decode and draw
+ * no more pixels than they show.
+ * <p>
+ * Tiles requested with requestTile() are decoded in the background by a bounded pool of worker threads, each with its
+ * own decoder where a DecoderFactory makes that possible. Queued requests are decoded in priority order, and requests
+ * not renewed during a frame (because the tiles have scrolled out of view) are cancelled before they start.
+ * <p>
+ * With a TileDiskCache set, tiles are read from disk when they've been decoded before (even by an earlier run of the
+ * app), and written to disk when they're decoded. With a BitmapPool set, tiles are decoded into pooled bitmaps and
+ * returned to the pool when they're evicted from the cache.
+ */
+public class TiledImageSource
+    {
+    /**
+     * The default width and height of a tile (in bitmap pixels).
+     */
+    public static final int DEFAULT_TILE_SIZE = 512;
+    /**
+     * The default byte budget for the decoded tile cache.
+     */
+    public static final int DEFAULT_CACHE_BYTES = 32*1024*1024;
+    /**
+     * The default maximum number of tile requests waiting to be decoded.
+     */
+    public static final int DEFAULT_QUEUE_DEPTH = 64;
+    /**
+     * Priority class for tiles in view, which are decoded before any others.
+     */
+    public static final int PRIORITY_VISIBLE = 0;
+    /**
+     * Priority class for tiles just outside the view.
+     */
+    public static final int PRIORITY_MARGIN = 1;
+    /**
+     * Priority class for tiles predicted to be needed soon (e.g. along the path of a fling). Unlike requests in the
+     * higher priority classes, these aren't cancelled for not being renewed every frame, only by cancelPrefetch().
+     */
+    public static final int PRIORITY_PREFETCH = 2;
+
+    /**
+     * Makes BitmapRegionDecoders for the image, so that each worker thread can decode tiles with its own.
+     */
+    public interface DecoderFactory
+        {
+        BitmapRegionDecoder newDecoder() throws IOException;
+        }
+
+    /**
+     * Callback for when background decoded tiles become available. Called on the UI thread.
+     */
+    public interface OnTileDecodedListener
+        {
+        void onTileDecoded(TiledImageSource src);
+        }
+
+    private static final Handler uiHandler = new Handler(Looper.getMainLooper());
+
+    private final DecoderFactory factory;                              // Makes more decoders, or null if there's only the one.
+    private final int width;                                           // Image width in pixels.
+    private final int height;                                          // Image height in pixels.
+    private final int tileSize;                                        // Tile width and height in pixels.
+    private final TileCache cache;                                     // The decoded tiles.
+    private final Rect decodeR = new Rect();                           // The region of the image being decoded by getTile() (in bitmap pixel co-ordinates).
+    private final BitmapFactory.Options opts = new BitmapFactory.Options(); // Options for getTile().
+    private final ArrayList<BitmapRegionDecoder> idleDecoders = new ArrayList<BitmapRegionDecoder>(); // Decoders not in use. Guarded by lock.
+    private final Object lock = new Object();
+    private final PriorityQueue<TileRequest> queue = new PriorityQueue<TileRequest>(); // Requests waiting for a worker. Guarded by lock.
+    private final LongSparseArray<TileRequest> requests = new LongSparseArray<TileRequest>(); // Requests queued or being decoded, by tile key. Guarded by lock.
+    private final ArrayList<TileRequest> dropping = new ArrayList<TileRequest>(); // Requests being dropped from the queue, reused so frames don't allocate. Guarded by lock.
+    private final AtomicLong tilesDecoded = new AtomicLong();          // Tiles decoded by the workers.
+    private final AtomicLong decodeNanos = new AtomicLong();           // Time the workers have spent decoding, summed over all workers.
+    private int decoderCount;                                          // Decoders created so far. Guarded by lock.
+    private int workerCount;                                           // Number of worker threads.
+    private int queueDepth = DEFAULT_QUEUE_DEPTH;                      // Maximum number of queued requests.
+    private Thread[] workers = null;                                   // The worker threads, started on the first requestTile().
+    private int frame = 0;                                             // Incremented by beginFrame(). Guarded by lock.
+    private long sequence = 0;                                         // Orders requests of equal priority. Guarded by lock.
+    private boolean recycled = false;                                  // Guarded by lock.
+    private OnTileDecodedListener onTileDecodedListener = null;
+    private volatile TileDiskCache diskCache = null;                   // Persistent tile cache, or null for none.
+    private volatile String contentKey = null;                         // Identifies the image in diskCache.
+    private volatile BitmapPool pool = null;                           // Where tiles are decoded into and evicted to, or null for none.
+    private volatile BitmapReleaseQueue releaseQueue = null;           // Holds evicted tiles back from the pool until they're off screen, or null to pool them straight away.
+    private volatile Bitmap.Config tileConfig = null;                  // The config tiles are decoded to, or null for the decoder's choice.
+
+    /**
+     * Create a tiled image source for an image file, using the default tile size and cache byte budget.
+     * @param path The path of the image file (JPEG or PNG).
+     * @throws IOException If the image can't be opened or its format isn't supported.
+     */
+    public TiledImageSource(final String path) throws IOException
+        {
+        this
+            (
+            new DecoderFactory()
+                {
+
+                public BitmapRegionDecoder newDecoder() throws IOException
+                    {
+                    return newRegionDecoder(path);
+                    }
+
+                },
+            DEFAULT_TILE_SIZE,
+            DEFAULT_CACHE_BYTES,
+            defaultWorkerCount()
+            );
+        }
+
+    /**
+     * Create a tiled image source for an image stream, using the default tile size and cache byte budget. As a stream
+     * can only be read once, tiles are decoded one at a time by a single decoder.
+     * @param is The stream to read the image (JPEG or PNG) from. The caller is responsible for closing it.
+     * @throws IOException If the image can't be read or its format isn't supported.
+     */
+    public TiledImageSource(InputStream is) throws IOException
+        {
+        this(newRegionDecoder(is), DEFAULT_TILE_SIZE, DEFAULT_CACHE_BYTES);
+        }
+
+    /**
+     * Create a tiled image source with a single decoder, so a single worker thread.
+     * @param decoder The region decoder to decode tiles with. The TiledImageSource takes ownership of it.
+     * @param tileSize The width and height of a tile (in bitmap pixels).
+     * @param cacheBytes The maximum number of bytes of decoded tiles to hold in memory.
+     */
+    public TiledImageSource(BitmapRegionDecoder decoder, int tileSize, int cacheBytes)
+        {
+        if (tileSize <= 0) throw new IllegalArgumentException("tileSize must be positive");
+        factory = null;
+        this.tileSize = tileSize;
+        width = decoder.getWidth();
+        height = decoder.getHeight();
+        cache = new TileCache(cacheBytes);
+        idleDecoders.add(decoder);
+        decoderCount = 1;
+        workerCount = 1;
+        }
+
+    /**
+     * Create a tiled image source which decodes tiles in parallel, each worker thread with its own decoder.
+     * @param factory Makes the decoders.
+     * @param tileSize The width and height of a tile (in bitmap pixels).
+     * @param cacheBytes The maximum number of bytes of decoded tiles to hold in memory.
+     * @param workerCount The number of worker threads.
+     * @throws IOException If the first decoder can't be made.
+     */
+    public TiledImageSource(DecoderFactory factory, int tileSize, int cacheBytes, int workerCount) throws IOException
+        {
+        if (tileSize <= 0) throw new IllegalArgumentException("tileSize must be positive");
+        if (workerCount <= 0) throw new IllegalArgumentException("workerCount must be positive");
+        this.factory = factory;
+        this.tileSize = tileSize;
+        BitmapRegionDecoder decoder = factory.newDecoder();
+        width = decoder.getWidth();
+        height = decoder.getHeight();
+        cache = new TileCache(cacheBytes);
+        idleDecoders.add(decoder);
+        decoderCount = 1;
+        this.workerCount = workerCount;
+        }
+
+    /**
+     * Create a tiled image source of known size which makes no decoder until a tile that isn't in the disk cache is
+     * needed, so that an image whose tiles are all on disk is shown without the cost of opening a decoder.
+     * @param factory Makes the decoders.
+     * @param width The width in pixels of the image.
+     * @param height The height in pixels of the image.
+     * @param tileSize The width and height of a tile (in bitmap pixels).
+     * @param cacheBytes The maximum number of bytes of decoded tiles to hold in memory.
+     * @param workerCount The number of worker threads.
+     */
+    public TiledImageSource(DecoderFactory factory, int width, int height, int tileSize, int cacheBytes, int workerCount)
+        {
+        if (width <= 0 || height <= 0) throw new IllegalArgumentException("width and height must be positive");
+        if (tileSize <= 0) throw new IllegalArgumentException("tileSize must be positive");
+        if (workerCount <= 0) throw new IllegalArgumentException("workerCount must be positive");
+        this.factory = factory;
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        cache = new TileCache(cacheBytes);
+        decoderCount = 0;
+        this.workerCount = workerCount;
+        }
+
+    /**
+     * Make a region decoder for an image file, with the overload Android 12 added where there is one, as the older one
+     * is deprecated.
+     * @param path The path of the image file.
+     * @return The decoder.
+     * @throws IOException If the image can't be opened or its format isn't supported.
+     */
+    @SuppressWarnings("deprecation") // newInstance(String, boolean), only called before Android 12.
+    static BitmapRegionDecoder newRegionDecoder(String path) throws IOException
+        {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) return BitmapRegionDecoder.newInstance(path);
+        return BitmapRegionDecoder.newInstance(path, false);
+        }
+
+    /**
+     * Make a region decoder for an image stream, with the overload Android 12 added where there is one, as the older
+     * one is deprecated.
+     * @param is The stream to read the image from. The caller is responsible for closing it.
+     * @return The decoder.
+     * @throws IOException If the image can't be read or its format isn't supported.
+     */
+    @SuppressWarnings("deprecation") // newInstance(InputStream, boolean), only called before Android 12.
+    static BitmapRegionDecoder newRegionDecoder(InputStream is) throws IOException
+        {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) return BitmapRegionDecoder.newInstance(is);
+        return BitmapRegionDecoder.newInstance(is, false);
+        }
+
+    /**
+     * The default number of worker threads: one less than the number of cores, so as to leave one for the UI thread, but at least 1 and at most 4.
+     * @return The default number of worker threads.
+     */
+    public static int defaultWorkerCount()
+        {
+        int n = Runtime.getRuntime().availableProcessors() - 1;
+        return n < 1 ? 1 : (n > 4 ? 4 : n);
+        }
+
+    /**
+     * Get the width in pixels of the image.
+     * @return The width in pixels of the image.
+     */
+    public int getWidth()
+        {
+        return width;
+        }
+
+    /**
+     * Get the height in pixels of the image.
+     * @return The height in pixels of the image.
+     */
+    public int getHeight()
+        {
+        return height;
+        }
+
+    /**
+     * Get the width and height of a tile.
+     * @return The width and height of a tile (in bitmap pixels). Tiles along the right and bottom edges of the image may be smaller.
+     */
+    public int getTileSize()
+        {
+        return tileSize;
+        }
+
+    /**
+     * Get the width and height a tile covers at a given sample size.
+     * @param sampleSize The sample size (a power of 2).
+     * @return The width and height a tile covers (in bitmap pixels).
+     */
+    public int getTileSpan(int sampleSize)
+        {
+        return tileSize*sampleSize;
+        }
+
+    /**
+     * Get the number of worker threads.
+     * @return The number of worker threads.
+     */
+    public int getWorkerCount()
+        {
+        return workerCount;
+        }
+
+    /**
+     * Set the maximum number of tile requests waiting to be decoded. When the queue's full, the lowest priority request is dropped.
+     * @param queueDepth The maximum number of queued requests.
+     * @return The TiledImageSource object on which this method is being called.
+     */
+    public TiledImageSource setQueueDepth(int queueDepth)
+        {
+        if (queueDepth <= 0) throw new IllegalArgumentException("queueDepth must be positive");
+        synchronized (lock)
+            {
+            this.queueDepth = queueDepth;
+            while (queue.size() > queueDepth) dropLowestPriority();
+            }
+        return this;
+        }
+
+    /**
+     * Set the listener told when background decoded tiles become available.
+     * @param onTileDecodedListener The listener, or null for none.
+     */
+    public void setOnTileDecodedListener(OnTileDecodedListener onTileDecodedListener)
+        {
+        this.onTileDecodedListener = onTileDecodedListener;
+        }
+
+    /**
+     * Set the persistent cache to read tiles from before decoding them, and to write decoded tiles to. Tiles are
+     * stored under the given key, which must identify the image's content (not just its name), e.g. a hash of the
+     * image file. The tile size is part of the key too, so sources with different tile sizes can share a cache.
+     * @param diskCache The cache, or null for none.
+     * @param contentKey Identifies the image's content.
+     * @return The TiledImageSource object on which this method is being called.
+     */
+    public TiledImageSource setDiskCache(TileDiskCache diskCache, String contentKey)
+        {
+        this.contentKey = contentKey + "_" + tileSize;
+        this.diskCache = diskCache;
+        return this;
+        }
+
+    /**
+     * Set the config tiles are decoded to, e.g. RGB_565 for opaque images or ALPHA_8 for greyscale ones (see
+     * PanZoomBitmapView.PixelFormat). The config is part of the disk cache key, so tiles cached in another config
+     * aren't used. Tiles already decoded keep their config.
+     * @param tileConfig The config, or null for the decoder's choice (the default). HARDWARE isn't allowed.
+     * @return The TiledImageSource object on which this method is being called.
+     */
+    public TiledImageSource setTileConfig(Bitmap.Config tileConfig)
+        {
+        if (PixelFormats.isHardware(tileConfig)) throw new IllegalArgumentException("HARDWARE tiles aren't supported");
+        this.tileConfig = tileConfig;
+        return this;
+        }
+
+    /**
+     * Get the config tiles are decoded to.
+     * @return The config, or null for the decoder's choice.
+     */
+    public Bitmap.Config getTileConfig()
+        {
+        return tileConfig;
+        }
+
+    /**
+     * Get how many bytes the cached tiles save over the same tiles in ARGB_8888.
+     * @return The bytes saved.
+     */
+    public long getSavedBytes()
+        {
+        return cache.getSavedBytes();
+        }
+
+    /**
+     * Get the persistent tile cache.
+     * @return The cache, or null if there's none.
+     */
+    public TileDiskCache getDiskCache()
+        {
+        return diskCache;
+        }
+
+    /**
+     * Set a pool of bitmaps to decode tiles into, and to put tiles in when they're evicted from the cache. Evicted tiles
+     * must not be held on to or drawn afterwards.
+     * @param pool The pool, or null for none.
+     * @return The TiledImageSource object on which this method is being called.
+     */
+    public TiledImageSource setBitmapPool(BitmapPool pool)
+        {
+        this.pool = pool;
+        return this;
+        }
+
+    // Set by the view showing the tiles, so that evicted tiles aren't pooled while the last frame drawn may still show them.
+    void setReleaseQueue(BitmapReleaseQueue releaseQueue)
+        {
+        this.releaseQueue = releaseQueue;
+        }
+
+    /**
+     * Get the pool of bitmaps tiles are decoded into.
+     * @return The pool, or null if there's none.
+     */
+    public BitmapPool getBitmapPool()
+        {
+        return pool;
+        }
+
+    /**
+     * Get a tile, decoding it on the calling thread if it isn't already in the cache.
+     * @param sampleSize The sample size (a power of 2) to decode the tile at, 1 for full resolution.
+     * @param col The column of the tile, counting tiles of getTileSpan(sampleSize) bitmap pixels.
+     * @param row The row of the tile, counting tiles of getTileSpan(sampleSize) bitmap pixels.
+     * @return The tile's bitmap, or null if the tile couldn't be decoded.
+     */
+    public Bitmap getTile(int sampleSize, int col, int row)
+        {
+        if (!isInImage(sampleSize, col, row)) return null;
+        long key = tileKey(sampleSize, col, row);
+        Bitmap tile = cache.get(key);
+        if (tile == null)
+            {
+            tile = readDiskTile(sampleSize, col, row);
+            if (tile == null)
+                {
+                BitmapRegionDecoder decoder = takeDecoder();
+                if (decoder == null) return null;
+                try
+                    {
+                    setDecodeRegion(decodeR, sampleSize, col, row);
+                    tile = decodeTile(decoder, decodeR, opts, sampleSize);
+                    }
+                finally
+                    {
+                    returnDecoder(decoder);
+                    }
+                writeDiskTile(sampleSize, col, row, tile);
+                }
+            if (tile != null) cache.put(key, tile);
+            }
+        return tile;
+        }
+
+    /**
+     * Get a tile if it's in the cache, without decoding it.
+     * @param sampleSize The sample size (a power of 2).
+     * @param col The column of the tile, counting tiles of getTileSpan(sampleSize) bitmap pixels.
+     * @param row The row of the tile, counting tiles of getTileSpan(sampleSize) bitmap pixels.
+     * @return The tile's bitmap, or null if it's not in the cache.
+     */
+    public Bitmap getCachedTile(int sampleSize, int col, int row)
+        {
+        if (!isInImage(sampleSize, col, row)) return null;
+        return cache.get(tileKey(sampleSize, col, row));
+        }
+
+    /**
+     * Start a new frame of tile requests. Requests still queued from earlier frames and not renewed by requestTile()
+     * before the next call to beginFrame() are cancelled then.
+     */
+    public void beginFrame()
+        {
+        synchronized (lock)
+            {
+            frame++;
+            if (queue.isEmpty()) return;
+            for (int i = 0; i < requests.size(); i++) // Not over queue, whose iterator allocates.
+                {
+                TileRequest r = requests.valueAt(i);
+                if (r.queued && r.frame < frame - 1 && r.priorityClass < PRIORITY_PREFETCH) dropping.add(r);
+                }
+            dropQueued();
+            }
+        }
+
+    /**
+     * Cancel all the queued PRIORITY_PREFETCH (or lower priority) requests.
+     */
+    public void cancelPrefetch()
+        {
+        synchronized (lock)
+            {
+            if (queue.isEmpty()) return;
+            for (int i = 0; i < requests.size(); i++)
+                {
+                TileRequest r = requests.valueAt(i);
+                if (r.queued && r.priorityClass >= PRIORITY_PREFETCH) dropping.add(r);
+                }
+            dropQueued();
+            }
+        }
+
+    /**
+     * Get a tile if it's in the cache, otherwise request that it be decoded in the background (renewing any request
+     * for it already queued). The OnTileDecodedListener is told when it's available.
+     * @param sampleSize The sample size (a power of 2).
+     * @param col The column of the tile, counting tiles of getTileSpan(sampleSize) bitmap pixels.
+     * @param row The row of the tile, counting tiles of getTileSpan(sampleSize) bitmap pixels.
+     * @param priorityClass PRIORITY_VISIBLE, PRIORITY_MARGIN, PRIORITY_PREFETCH, or a larger number for lower priority still.
+     * @param distance The tile's distance from the point of most interest, usually the center of the view (in any
+     * consistent units). Within a priority class, nearer tiles are decoded first.
+     * @return The tile's bitmap, or null if it's not in the cache.
+     */
+    public Bitmap requestTile(int sampleSize, int col, int row, int priorityClass, float distance)
+        {
+        if (!isInImage(sampleSize, col, row)) return null;
+        long key = tileKey(sampleSize, col, row);
+        Bitmap tile = cache.get(key);
+        if (tile != null) return tile;
+        synchronized (lock)
+            {
+            if (recycled) return null;
+            startWorkers();
+            TileRequest r = requests.get(key);
+            if (r != null)
+                {
+                r.frame = frame;
+                if (r.queued && (priorityClass < r.priorityClass || (priorityClass == r.priorityClass && distance < r.distance)))
+                    {
+                    queue.remove(r);
+                    r.priorityClass = priorityClass;
+                    r.distance = distance;
+                    queue.add(r);
+                    }
+                return null;
+                }
+            if (queue.size() >= queueDepth && !dropLowerPriorityThan(priorityClass, distance)) return null;
+            r = new TileRequest(key, sampleSize, col, row, priorityClass, distance, frame, sequence++);
+            requests.put(key, r);
+            queue.add(r);
+            lock.notify();
+            }
+        return null;
+        }
+
+    /**
+     * Get the number of tiles decoded by the worker threads.
+     * @return The number of tiles decoded.
+     */
+    public long getTilesDecoded()
+        {
+        return tilesDecoded.get();
+        }
+
+    /**
+     * Get the time spent decoding tiles, summed over all the worker threads.
+     * @return The time spent decoding (in nanoseconds).
+     */
+    public long getDecodeNanos()
+        {
+        return decodeNanos.get();
+        }
+
+    /**
+     * Get the decoding throughput of an individual worker thread (so of a core, while there are no more workers than cores).
+     * @return The average number of tiles a worker decodes per second of decoding.
+     */
+    public float getTilesPerSecondPerWorker()
+        {
+        long nanos = decodeNanos.get();
+        return nanos == 0 ? 0.0f : tilesDecoded.get()*1.0e9f/nanos;
+        }
+
+    /**
+     * Change the byte budget for the decoded tile cache, evicting tiles if need be.
+     * @param cacheBytes The maximum number of bytes of decoded tiles to hold in memory.
+     */
+    public void setCacheBytes(int cacheBytes)
+        {
+        cache.resize(cacheBytes);
+        }
+
+    /**
+     * Get the byte budget for the decoded tile cache.
+     * @return The maximum number of bytes of decoded tiles held in memory.
+     */
+    public int getCacheBytes()
+        {
+        return cache.maxSize();
+        }
+
+    /**
+     * Get the number of bytes of decoded tiles held in memory.
+     * @return The bytes held, at most getCacheBytes().
+     */
+    public int getCachedBytes()
+        {
+        return cache.size();
+        }
+
+    /**
+     * Discard all the decoded tiles.
+     */
+    public void clearCache()
+        {
+        cache.evictAll();
+        }
+
+    /**
+     * Discard all the decoded tiles and queued requests, stop the worker threads and release the decoders. The
+     * TiledImageSource can't be used after this.
+     */
+    public void recycle()
+        {
+        synchronized (lock)
+            {
+            recycled = true;
+            queue.clear();
+            requests.clear();
+            for (int i = 0; i < idleDecoders.size(); i++) idleDecoders.get(i).recycle(); // Decoders in use are recycled when they're returned.
+            idleDecoders.clear();
+            lock.notifyAll();
+            }
+        cache.evictAll();
+        }
+
+    private boolean isInImage(int sampleSize, int col, int row)
+        {
+        int span = tileSize*sampleSize;
+        return col >= 0 && row >= 0 && col*span < width && row*span < height;
+        }
+
+    private void setDecodeRegion(Rect r, int sampleSize, int col, int row)
+        {
+        int span = tileSize*sampleSize;
+        int left = col*span;
+        int top = row*span;
+        r.set(left, top, Math.min(left + span, width), Math.min(top + span, height));
+        }
+
+    // Must hold lock.
+    private void startWorkers()
+        {
+        if (workers != null) return;
+        workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++)
+            {
+            workers[i] = new Thread(new Worker(), "TiledImageSource worker " + i);
+            workers[i].setDaemon(true);
+            workers[i].setPriority(Thread.NORM_PRIORITY - 1);
+            workers[i].start();
+            }
+        }
+
+    // Must hold lock. Makes room for a request by dropping the lowest priority one, if it's lower priority than the request.
+    private boolean dropLowerPriorityThan(int priorityClass, float distance)
+        {
+        TileRequest lowest = findLowestPriority();
+        if (lowest == null || lowest.priorityClass < priorityClass || (lowest.priorityClass == priorityClass && lowest.distance <= distance)) return false;
+        queue.remove(lowest);
+        requests.remove(lowest.key);
+        return true;
+        }
+
+    // Must hold lock. Removes the requests gathered in dropping from the queue (which can't be done while iterating over it).
+    private void dropQueued()
+        {
+        for (int i = 0; i < dropping.size(); i++)
+            {
+            TileRequest r = dropping.get(i);
+            queue.remove(r);
+            requests.remove(r.key);
+            }
+        dropping.clear();
+        }
+
+    // Must hold lock.
+    private void dropLowestPriority()
+        {
+        TileRequest lowest = findLowestPriority();
+        if (lowest == null) return;
+        queue.remove(lowest);
+        requests.remove(lowest.key);
+        }
+
+    // Must hold lock.
+    private TileRequest findLowestPriority()
+        {
+        TileRequest lowest = null;
+        for (int i = 0; i < requests.size(); i++)
+            {
+            TileRequest r = requests.valueAt(i);
+            if (r.queued && (lowest == null || r.compareTo(lowest) > 0)) lowest = r;
+            }
+        return lowest;
+        }
+
+    // Take an idle decoder, making a new one if there are none idle and the factory allows, or waiting for one to be returned.
+    private BitmapRegionDecoder takeDecoder()
+        {
+        boolean make = false;
+        synchronized (lock)
+            {
+            while (!recycled)
+                {
+                if (!idleDecoders.isEmpty()) return idleDecoders.remove(idleDecoders.size() - 1);
+                if (factory != null && decoderCount < workerCount + 1) // One more than the workers, for getTile() on the UI thread.
+                    {
+                    decoderCount++;
+                    make = true;
+                    break;
+                    }
+                try
+                    {
+                    lock.wait();
+                    }
+                catch (InterruptedException e)
+                    {
+                    Thread.currentThread().interrupt();
+                    return null;
+                    }
+                }
+            }
+        if (!make) return null;
+        try
+            {
+            return factory.newDecoder();
+            }
+        catch (IOException e)
+            {
+            synchronized (lock)
+                {
+                decoderCount--;
+                }
+            return null;
+            }
+        }
+
+    private void returnDecoder(BitmapRegionDecoder decoder)
+        {
+        synchronized (lock)
+            {
+            if (recycled)
+                decoder.recycle();
+            else
+                {
+                idleDecoders.add(decoder);
+                lock.notifyAll();
+                }
+            }
+        }
+
+    private void deliver(final TileRequest r, final Bitmap tile)
+        {
+        uiHandler.post
+            (
+            new Runnable()
+                {
+
+                public void run()
+                    {
+                    boolean discard;
+                    synchronized (lock)
+                        {
+                        if (requests.get(r.key) == r) requests.remove(r.key);
+                        discard = recycled;
+                        }
+                    if (tile == null) return;
+                    if (discard)
+                        {
+                        BitmapPool p = pool;
+                        if (p != null) p.put(tile);
+                        return;
+                        }
+                    cache.put(r.key, tile);
+                    if (onTileDecodedListener != null) onTileDecodedListener.onTileDecoded(TiledImageSource.this);
+                    }
+
+                }
+            );
+        }
+
+    // Decode a tile, into a pooled bitmap if there's a suitable one.
+    private Bitmap decodeTile(BitmapRegionDecoder decoder, Rect r, BitmapFactory.Options o, int sampleSize)
+        {
+        Bitmap.Config config = tileConfig;
+        o.inSampleSize = sampleSize;
+        o.inPreferredConfig = config != null ? PixelFormats.decodeConfig(config) : Bitmap.Config.ARGB_8888;
+        BitmapPool p = pool;
+        if (p == null) return PixelFormats.convert(decoder.decodeRegion(r, o), config, null);
+        p.prepare(o, (r.width() + sampleSize - 1)/sampleSize, (r.height() + sampleSize - 1)/sampleSize);
+        Bitmap tile;
+        try
+            {
+            tile = decoder.decodeRegion(r, o);
+            }
+        catch (IllegalArgumentException e) // The pooled bitmap didn't suit the decoder after all.
+            {
+            p.putBack(o);
+            tile = decoder.decodeRegion(r, o);
+            }
+        if (tile == null)
+            p.putBack(o);
+        else
+            o.inBitmap = null;
+        return PixelFormats.convert(tile, config, p);
+        }
+
+    private Bitmap readDiskTile(int sampleSize, int col, int row)
+        {
+        TileDiskCache dc = diskCache;
+        return dc == null ? null : dc.getTile(diskKey(), sampleSize, col, row, pool);
+        }
+
+    private void writeDiskTile(int sampleSize, int col, int row, Bitmap tile)
+        {
+        TileDiskCache dc = diskCache;
+        if (dc != null && tile != null) dc.putTile(diskKey(), sampleSize, col, row, tile);
+        }
+
+    private String diskKey()
+        {
+        Bitmap.Config config = tileConfig;
+        return config != null ? contentKey + "_" + config.name() : contentKey;
+        }
+
+    private static long tileKey(int sampleSize, int col, int row)
+        {
+        return (((long)Integer.numberOfTrailingZeros(sampleSize)) << 58) | (((long)col) << 29) | row;
+        }
+
+    private class Worker implements Runnable
+        {
+        private final BitmapFactory.Options workerOpts = new BitmapFactory.Options();
+        private final Rect workerDecodeR = new Rect();
+
+        public void run()
+            {
+            while (true)
+                {
+                TileRequest r;
+                synchronized (lock)
+                    {
+                    while (!recycled && queue.isEmpty())
+                        {
+                        try
+                            {
+                            lock.wait();
+                            }
+                        catch (InterruptedException e)
+                            {
+                            return;
+                            }
+                        }
+                    if (recycled) return;
+                    r = queue.poll();
+                    r.queued = false;
+                    }
+                Bitmap tile = null;
+                try
+                    {
+                    tile = readDiskTile(r.sampleSize, r.col, r.row);
+                    if (tile == null) tile = decode(r);
+                    }
+                catch (RuntimeException e) // E.g. a corrupt region or disk cache file. The tile's left out, and can be requested again.
+                    {
+                    putBackPooled();
+                    }
+                catch (OutOfMemoryError e)
+                    {
+                    putBackPooled();
+                    }
+                finally
+                    {
+                    deliver(r, tile); // Which also removes the request, even if the tile couldn't be had.
+                    }
+                }
+            }
+
+        // Decode a tile that isn't on disk, and write it to disk. Returns null if there's no decoder: the source has been
+        // recycled, or a decoder couldn't be made (the image may have gone), so carry on with tiles from disk.
+        private Bitmap decode(TileRequest r)
+            {
+            BitmapRegionDecoder decoder = takeDecoder();
+            if (decoder == null) return null;
+            Bitmap tile;
+            long start = System.nanoTime();
+            try
+                {
+                setDecodeRegion(workerDecodeR, r.sampleSize, r.col, r.row);
+                tile = decodeTile(decoder, workerDecodeR, workerOpts, r.sampleSize);
+                }
+            finally
+                {
+                returnDecoder(decoder);
+                }
+            decodeNanos.addAndGet(System.nanoTime() - start);
+            tilesDecoded.incrementAndGet();
+            writeDiskTile(r.sampleSize, r.col, r.row, tile);
+            return tile;
+            }
+
+        // Return the pooled bitmap a failed decode was given.
+        private void putBackPooled()
+            {
+            BitmapPool p = pool;
+            if (p != null)
+                p.putBack(workerOpts);
+            else
+                workerOpts.inBitmap = null;
+            }
+        }
+
+    private static class TileRequest implements Comparable<TileRequest>
+        {
+        final long key;
+        final int sampleSize;
+        final int col;
+        final int row;
+        final long sequence;
+        int priorityClass;
+        float distance;
+        int frame;              // The last frame in which the tile was requested.
+        boolean queued = true;  // False once a worker has taken the request.
+
+        TileRequest(long key, int sampleSize, int col, int row, int priorityClass, float distance, int frame, long sequence)
+            {
+            this.key = key;
+            this.sampleSize = sampleSize;
+            this.col = col;
+            this.row = row;
+            this.priorityClass = priorityClass;
+            this.distance = distance;
+            this.frame = frame;
+            this.sequence = sequence;
+            }
+
+        public int compareTo(TileRequest other)
+            {
+            if (priorityClass != other.priorityClass) return priorityClass < other.priorityClass ? -1 : 1;
+            if (distance != other.distance) return distance < other.distance ? -1 : 1;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+            }
+        }
+
+    // An LRU cache of decoded tiles with a byte budget, keyed by primitive longs, and reusing its entries, so that
+    // neither looking tiles up nor caching them allocates once it's warmed up. Evicted tiles are released holding the
+    // cache's monitor, which is safe as neither the pool nor the release queue calls back into the cache.
+    private class TileCache
+        {
+        private final LongSparseArray<TileEntry> entries = new LongSparseArray<TileEntry>();
+        private final TileEntry lru = new TileEntry(); // The head of a circular list of the entries, least recently used first.
+        private TileEntry spare = null;                // Entries no longer in use, for reuse, linked through next.
+        private int maxSize;                           // The byte budget.
+        private int size = 0;                          // The bytes of tiles held.
+
+        TileCache(int maxSize)
+            {
+            this.maxSize = maxSize;
+            lru.prev = lru.next = lru;
+            }
+
+        synchronized Bitmap get(long key)
+            {
+            TileEntry e = entries.get(key);
+            if (e == null) return null;
+            unlink(e);
+            linkLast(e);
+            return e.tile;
+            }
+
+        synchronized void put(long key, Bitmap tile)
+            {
+            TileEntry e = entries.get(key);
+            if (e != null)
+                {
+                size -= e.tile.getByteCount();
+                if (e.tile != tile) release(e.tile);
+                unlink(e);
+                }
+            else
+                {
+                if (spare != null)
+                    {
+                    e = spare;
+                    spare = e.next;
+                    }
+                else
+                    e = new TileEntry();
+                e.key = key;
+                entries.put(key, e);
+                }
+            e.tile = tile;
+            size += tile.getByteCount();
+            linkLast(e);
+            trimToSize(maxSize);
+            }
+
+        synchronized void resize(int maxSize)
+            {
+            this.maxSize = maxSize;
+            trimToSize(maxSize);
+            }
+
+        synchronized int maxSize()
+            {
+            return maxSize;
+            }
+
+        synchronized int size()
+            {
+            return size;
+            }
+
+        synchronized void evictAll()
+            {
+            trimToSize(-1);
+            }
+
+        synchronized long getSavedBytes()
+            {
+            long saved = 0;
+            for (TileEntry e = lru.next; e != lru; e = e.next) saved += PixelFormats.savedBytes(e.tile);
+            return saved;
+            }
+
+        // Must hold the monitor.
+        private void trimToSize(int max)
+            {
+            while (size > max && lru.next != lru)
+                {
+                TileEntry e = lru.next;
+                unlink(e);
+                entries.remove(e.key);
+                size -= e.tile.getByteCount();
+                release(e.tile);
+                e.tile = null;
+                e.next = spare;
+                spare = e;
+                }
+            }
+
+        private void release(Bitmap tile)
+            {
+            BitmapPool p = pool;
+            BitmapReleaseQueue q = releaseQueue;
+            if (p == null) return;
+            if (q != null)
+                q.release(tile, p);
+            else
+                p.put(tile);
+            }
+
+        private void unlink(TileEntry e)
+            {
+            e.prev.next = e.next;
+            e.next.prev = e.prev;
+            }
+
+        private void linkLast(TileEntry e)
+            {
+            e.prev = lru.prev;
+            e.next = lru;
+            lru.prev.next = e;
+            lru.prev = e;
+            }
+        }
+
+    private static class TileEntry
+        {
+        long key;
+        Bitmap tile;
+        TileEntry prev;
+        TileEntry next;
+        }
+    }
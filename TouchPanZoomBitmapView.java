@@ -2,24 +2,58 @@ package baydroid.android_pan_zoom_bitmap_view.util;
 
 import android.content.Context;
 import android.util.AttributeSet;
+import android.view.Choreographer;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
+import android.view.ViewConfiguration;
 
 
 
-public class TouchPanZoomBitmapView extends PanZoomBitmapView implements Runnable
+public class TouchPanZoomBitmapView extends PanZoomBitmapView implements Choreographer.FrameCallback, Runnable
     {
-    private static final int   FRAME_INTERVAL_MILLIS = 30;
-    private static final float MOMENTUM_SCALE        = 0.03f;
-    private static final float MOMENTUM_DELTA        = 10.0f;
+    /**
+     * Callback for when a fling comes to an end.
+     */
+    public interface OnFlingEndListener
+        {
+        /**
+         * Called when a fling comes to an end, whether it came to rest, reached the edge of the bitmap, or was stopped by a new touch.
+         * @param view The view that was flinging.
+         */
+        void onFlingEnd(TouchPanZoomBitmapView view);
+        }
+
+    /**
+     * Callback for taps on overlays.
+     */
+    public interface OnOverlayTapListener
+        {
+        /**
+         * Called when the user taps an overlay (the topmost, if several are under the tap).
+         * @param view The view that was tapped.
+         * @param overlay The overlay.
+         */
+        void onOverlayTap(TouchPanZoomBitmapView view, Overlay overlay);
+        }
 
-    private ScaleGestureDetector sgd            = null;
-    private GestureDetector      gd             = null;
-    private float                momentumX      = 0.0f;
-    private float                momentumY      = 0.0f;
-    private float                momentumDeltaX = 0.0f;
-    private float                momentumDeltaY = 0.0f;
+    private ScaleGestureDetector sgd                = null;
+    private GestureDetector      gd                 = null;
+    private FlingEngine          fling              = new FlingEngine();
+    private OnFlingEndListener   onFlingEndListener = null;
+    private OnOverlayTapListener onOverlayTapListener = null;
+    private float                tapSlop            = 0.0f;  // How far off an overlay a tap can be and still hit it (in view pixels).
+    private boolean              frameScheduled     = false; // Whether or not doFrame() is posted to the Choreographer.
+    private float                pendingPanX        = 0.0f;  // Scrolling and flinging accumulated since the last frame, not yet panned (in view pixels).
+    private float                pendingPanY        = 0.0f;
+    private float                pendingZoom        = 1.0f;  // Scaling accumulated since the last frame, not yet zoomed.
+    private int                  pendingFocusX      = 0;     // The most recent scaling focus point (in view pixel co-ordinates).
+    private int                  pendingFocusY      = 0;
+    private long                 lastFlingFrameNanos = 0;    // The time of the fling's last frame, for the metrics, or 0 before its first.
+    private GestureTrace         gestureTrace       = null;  // Where touch events and frames are being recorded, or null for nowhere.
+    private boolean              replaying          = false; // Whether or not a GestureTrace is driving the view, standing in for the Choreographer.
+    private long                 doubleTapZoomMillis = DEFAULT_ZOOM_DURATION_MILLIS; // How long double tap zooms are animated for.
+    private long                 touchEventNanos    = 0;     // The time of the touch event being handled, which starts any double tap zoom.
 
     public TouchPanZoomBitmapView(Context ctx)
         {
@@ -41,6 +75,7 @@ public class TouchPanZoomBitmapView extends PanZoomBitmapView implements Runnabl
 
     private void init(Context ctx)
         {
+        tapSlop = ViewConfiguration.get(ctx).getScaledTouchSlop();
         sgd = new ScaleGestureDetector
             (
             ctx,
@@ -49,8 +84,13 @@ public class TouchPanZoomBitmapView extends PanZoomBitmapView implements Runnabl
 
                 public boolean onScale(ScaleGestureDetector detector)
                     {
-                    momentumX = momentumY = momentumDeltaX = momentumDeltaY = 0.0f;
-                    zoom(detector.getScaleFactor(), (int)detector.getFocusX(), (int)detector.getFocusY());
+                    stopFling();
+                    setInMotion(true);
+                    pendingZoom *= detector.getScaleFactor();
+                    pendingFocusX = (int)detector.getFocusX();
+                    pendingFocusY = (int)detector.getFocusY();
+                    prefetchZoom(detector.getScaleFactor(), pendingFocusX, pendingFocusY);
+                    scheduleFrame();
                     return true;
                     }
 
@@ -62,42 +102,52 @@ public class TouchPanZoomBitmapView extends PanZoomBitmapView implements Runnabl
             new GestureDetector.SimpleOnGestureListener()
                 {
 
+                public boolean onSingleTapConfirmed(MotionEvent e)
+                    {
+                    if (onOverlayTapListener == null) return false;
+                    Overlay overlay = hitTestOverlays(e.getX(), e.getY(), tapSlop);
+                    if (overlay == null) return false;
+                    onOverlayTapListener.onOverlayTap(TouchPanZoomBitmapView.this, overlay);
+                    return true;
+                    }
+
                 public boolean onDoubleTap(MotionEvent e1)
                     {
-                    momentumX = momentumY = momentumDeltaX = momentumDeltaY = 0.0f;
+                    stopFling();
+                    applyPendingGestures();
                     if (isZoomedToFit())
-                        zoomToPixel1To1((int)e1.getX(), (int)e1.getY());
+                        animateZoomToPixel1To1((int)e1.getX(), (int)e1.getY(), doubleTapZoomMillis, touchEventNanos);
                     else
-                        zoomToFit();
+                        animateZoomToFit(doubleTapZoomMillis, touchEventNanos);
                     return true;
                     }
 
                 public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY)
                     {
-                    momentumX = momentumY = momentumDeltaX = momentumDeltaY = 0.0f;
-                    pan((int)distanceX, (int)distanceY);
+                    stopFling();
+                    setInMotion(true);
+                    pendingPanX += distanceX;
+                    pendingPanY += distanceY;
+                    scheduleFrame();
                     return true;
                     }
 
                 public boolean onFling(MotionEvent e1, MotionEvent e2, float velocityX, float velocityY)
                     {
-                    momentumX = -MOMENTUM_SCALE*velocityX;
-                    if ((int)momentumX == 0) momentumX = 0.0f;
-                    momentumY = -MOMENTUM_SCALE*velocityY;
-                    if ((int)momentumY == 0) momentumY = 0.0f;
-                    if (momentumX != 0.0f || momentumY != 0.0f)
+                    stopFling();
+                    if (fling.start(-velocityX, -velocityY, e2.getEventTime()*1000000L)) // Event times share the frame times' clock, and replay deterministically.
                         {
-                        float h = (float)Math.sqrt(velocityX*velocityX + velocityY*velocityY);
-                        momentumDeltaX = MOMENTUM_DELTA*velocityX/h;
-                        momentumDeltaY = MOMENTUM_DELTA*velocityY/h;
-                        getHandler().postDelayed(TouchPanZoomBitmapView.this, FRAME_INTERVAL_MILLIS);
+                        setInMotion(true);
+                        prefetchPan(fling.getRemainingDeltaX(), fling.getRemainingDeltaY());
+                        scheduleFrame();
                         }
                     return true;
                     }
 
                 public boolean onDown(MotionEvent e)
                     {
-                    momentumX = momentumY = momentumDeltaX = momentumDeltaY = 0.0f;
+                    stopFling();
+                    cancelPrefetch();
                     return super.onDown(e);
                     }
 
@@ -105,47 +155,207 @@ public class TouchPanZoomBitmapView extends PanZoomBitmapView implements Runnabl
             );
         }
 
+    /**
+     * Set a listener to be told when flings come to an end.
+     * @param onFlingEndListener The listener, or null for none.
+     * @return The TouchPanZoomBitmapView object on which this method is being called.
+     */
+    public TouchPanZoomBitmapView setOnFlingEndListener(OnFlingEndListener onFlingEndListener)
+        {
+        this.onFlingEndListener = onFlingEndListener;
+        return this;
+        }
+
+    /**
+     * Set a listener to be told when the user taps an overlay.
+     * @param onOverlayTapListener The listener, or null for none.
+     * @return The TouchPanZoomBitmapView object on which this method is being called.
+     */
+    public TouchPanZoomBitmapView setOnOverlayTapListener(OnOverlayTapListener onOverlayTapListener)
+        {
+        this.onOverlayTapListener = onOverlayTapListener;
+        return this;
+        }
+
+    /**
+     * Set how quickly flings slow down.
+     * @param deceleration The deceleration (in view pixels per second per second). The default is FlingEngine.DEFAULT_DECELERATION.
+     * @return The TouchPanZoomBitmapView object on which this method is being called.
+     */
+    public TouchPanZoomBitmapView setFlingDeceleration(float deceleration)
+        {
+        fling.setDeceleration(deceleration);
+        return this;
+        }
+
+    /**
+     * Is there a fling in progress?
+     * @return True if there's a fling in progress, false otherwise.
+     */
+    public boolean isFlinging()
+        {
+        return fling.isActive();
+        }
+
+    /**
+     * Stop any fling in progress.
+     */
+    public void stopFling()
+        {
+        if (fling.isActive()) endFling();
+        }
+
+    /**
+     * Apply the scrolling and scaling accumulated from touch events since the last frame, then advance any fling in
+     * progress to the frame time. Called by the Choreographer once per display frame while there's anything to do, so
+     * that however many touch events arrive in a frame, the view is only panned, zoomed and invalidated once.
+     * @param frameTimeNanos The frame time (System.nanoTime() time base).
+     */
+    public void doFrame(long frameTimeNanos)
+        {
+        frameScheduled = false;
+        if (gestureTrace != null && !replaying) gestureTrace.recordFrame(frameTimeNanos);
+        boolean flinging = fling.isActive();
+        boolean more = false;
+        if (flinging)
+            {
+            ViewMetrics metrics = getMetrics();
+            if (metrics != null && lastFlingFrameNanos != 0) metrics.recordFlingFrame(frameTimeNanos - lastFlingFrameNanos);
+            lastFlingFrameNanos = frameTimeNanos;
+            more = fling.step(frameTimeNanos);
+            pendingPanX += fling.getStepDeltaX();
+            pendingPanY += fling.getStepDeltaY();
+            }
+        if (!applyPendingGestures()) more = false; // Reached the edge of the bitmap.
+        if (more)
+            scheduleFrame();
+        else if (flinging)
+            endFling();
+        if (stepZoomAnimation(frameTimeNanos)) scheduleFrame();
+        }
+
+    /**
+     * Advance any fling in progress (and apply any pending gestures) to the current time, as a frame would. Flings
+     * used to be stepped by posting the view itself as a Runnable; they're now stepped by the Choreographer, so there's
+     * no need to call this.
+     * @deprecated Flings advance by themselves once per display frame (see doFrame()).
+     */
+    @Deprecated
     public void run()
         {
-        if ((momentumX != 0.0f || momentumY != 0.0f) && pan((int)momentumX, (int)momentumY))
+        if (frameScheduled && !replaying) Choreographer.getInstance().removeFrameCallback(this); // doFrame() posts another if there's more to do.
+        doFrame(System.nanoTime());
+        }
+
+    private void scheduleFrame()
+        {
+        if (frameScheduled) return;
+        frameScheduled = true;
+        if (!replaying) Choreographer.getInstance().postFrameCallback(this);
+        }
+
+    void scheduleAnimationFrame()
+        {
+        scheduleFrame(); // One frame callback for gestures, flings and animations, which GestureTrace replays.
+        }
+
+    /**
+     * Set how long double tap zooms (between zoomed to fit and pixel 1 to 1) are animated for.
+     * @param doubleTapZoomMillis The duration (in milliseconds), or 0 to jump straight there. The default is DEFAULT_ZOOM_DURATION_MILLIS.
+     * @return The TouchPanZoomBitmapView object on which this method is being called.
+     */
+    public TouchPanZoomBitmapView setDoubleTapZoomDuration(long doubleTapZoomMillis)
+        {
+        this.doubleTapZoomMillis = doubleTapZoomMillis;
+        return this;
+        }
+
+    /**
+     * Record the touch events the view handles, and the frames it animates them on, for replaying later (see
+     * GestureTrace). Starting to record into a trace discards anything recorded in it before.
+     * @param gestureTrace The trace to record into, or null to stop recording.
+     * @return The TouchPanZoomBitmapView object on which this method is being called.
+     */
+    public TouchPanZoomBitmapView setGestureTrace(GestureTrace gestureTrace)
+        {
+        if (gestureTrace != null && gestureTrace != this.gestureTrace) gestureTrace.begin(getWidth(), getHeight());
+        this.gestureTrace = gestureTrace;
+        return this;
+        }
+
+    /**
+     * Get the trace the view's recording into.
+     * @return The trace, or null if the view isn't recording.
+     */
+    public GestureTrace getGestureTrace()
+        {
+        return gestureTrace;
+        }
+
+    // While replaying, GestureTrace.replay() calls doFrame() with the recorded frame times in place of the Choreographer.
+    void setReplaying(boolean replaying)
+        {
+        this.replaying = replaying;
+        if (!replaying && frameScheduled) Choreographer.getInstance().postFrameCallback(this); // Carry on live from where the replay left off.
+        }
+
+    boolean isFrameScheduled()
+        {
+        return frameScheduled;
+        }
+
+    // Returns false if the view refused a pan of a whole view pixel or more, which means it's reached the edge of the bitmap.
+    private boolean applyPendingGestures()
+        {
+        if (pendingZoom != 1.0f)
             {
-            momentumX = reduceMomentum(momentumX, momentumDeltaX);
-            momentumY = reduceMomentum(momentumY, momentumDeltaY);
-            if (momentumX != 0.0f || momentumY != 0.0f)
-                {
-                getHandler().postDelayed(this, FRAME_INTERVAL_MILLIS);
-                return;
-                }
+            zoom(pendingZoom, pendingFocusX, pendingFocusY);
+            pendingZoom = 1.0f;
+            }
+        float deltaX = pendingPanX;
+        float deltaY = pendingPanY;
+        if (!isSubPixelTransform())
+            {
+            deltaX = (int)deltaX; // Keep the fractions of a pixel for next time, rather than losing them.
+            deltaY = (int)deltaY;
             }
-        momentumX = momentumY = momentumDeltaX = momentumDeltaY = 0.0f;
+        pendingPanX -= deltaX;
+        pendingPanY -= deltaY;
+        if (deltaX == 0.0f && deltaY == 0.0f) return true;
+        return pan(deltaX, deltaY) || (Math.abs(deltaX) < 1.0f && Math.abs(deltaY) < 1.0f);
+        }
+
+    private void endFling()
+        {
+        fling.stop();
+        lastFlingFrameNanos = 0;
+        setInMotion(false);
+        if (onFlingEndListener != null) onFlingEndListener.onFlingEnd(this);
         }
 
-    private float reduceMomentum(float m, float deltaM)
+    protected void onDetachedFromWindow()
         {
-        if (deltaM != 0.0f && m != 0.0f)
+        stopFling();
+        if (frameScheduled)
             {
-            m += deltaM;
-            if ((int)m == 0)
-                m = 0.0f;
-            else
-                {
-                if (deltaM > 0.0f)
-                    {
-                    if (m > 0.0f) m = 0.0f;
-                    }
-                else
-                    {
-                    if (m < 0.0f) m = 0.0f;
-                    }
-                }
+            Choreographer.getInstance().removeFrameCallback(this);
+            frameScheduled = false;
             }
-        return m;
+        pendingPanX = pendingPanY = 0.0f;
+        pendingZoom = 1.0f;
+        setInMotion(false);
+        super.onDetachedFromWindow();
         }
 
     public boolean onTouchEvent(MotionEvent ev)
         {
+        if (gestureTrace != null && !replaying) gestureTrace.recordMotion(ev);
+        int action = ev.getActionMasked();
+        touchEventNanos = ev.getEventTime()*1000000L; // Not e1's, the first tap's, in onDoubleTap(). Replays deterministically, as for flings.
+        if (action == MotionEvent.ACTION_DOWN) cancelZoomAnimation(); // Before the gesture detectors, as a double tap starts one.
         boolean processed = sgd.onTouchEvent(ev);
         processed = gd.onTouchEvent(ev) || processed;
+        if ((action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) && !fling.isActive() && !isZoomAnimating()) setInMotion(false); // Otherwise at the end of the fling or animation.
         return processed || super.onTouchEvent(ev);
         }
     }
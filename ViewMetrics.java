@@ -0,0 +1,333 @@
+package baydroid.android_pan_zoom_bitmap_view.util;
+
+
+
+/**
+ * Performance counters for PanZoomBitmapViews, for sampling into telemetry: how long onDraw() takes, how many frames
+ * are drawn for the invalidates requested, how many pan() and zoom() calls change nothing, how steadily flings are
+ * animated, and how often the image, pyramid level and tile caches have what's wanted. Set one on a view with
+ * PanZoomBitmapView.setMetrics(); one can be shared by several views to total them.
+ * <p>
+ * Recording only adds to counters, so costs a few nanoseconds and allocates nothing. Durations and intervals go in
+ * histograms with fixed buckets (see getBucketUpperNanos()). Counters keep counting until reset(), so sample them then
+ * reset, or difference successive samples. Must only be used on the UI thread.
+ */
+public class ViewMetrics
+    {
+    /**
+     * The number of histogram buckets.
+     */
+    public static final int BUCKET_COUNT = 11;
+    /**
+     * The default target interval between fling frames: 60 frames per second.
+     */
+    public static final long DEFAULT_TARGET_FRAME_NANOS = 16666667L;
+
+    private static final long[] BUCKET_UPPER_NANOS = { 1000000L, 2000000L, 4000000L, 8000000L, 12000000L, 16666667L, 20000000L, 33333333L, 50000000L, 100000000L, Long.MAX_VALUE };
+
+    private long targetFrameNanos = DEFAULT_TARGET_FRAME_NANOS;
+    private long framesDrawn = 0;
+    private long drawNanos = 0;            // Total time in onDraw().
+    private long maxDrawNanos = 0;
+    private final long[] drawHistogram = new long[BUCKET_COUNT];
+    private long invalidates = 0;
+    private long pans = 0;
+    private long noOpPans = 0;
+    private long zooms = 0;
+    private long noOpZooms = 0;
+    private long flingFrames = 0;          // Fling frames with an interval since the one before.
+    private long flingLateFrames = 0;      // Fling frames more than half a target interval late.
+    private long flingSkippedFrames = 0;   // Target intervals passed with no fling frame.
+    private long maxFlingFrameNanos = 0;
+    private final long[] flingHistogram = new long[BUCKET_COUNT];
+    private long imageCacheHits = 0;
+    private long imageCachePreloadHits = 0;
+    private long imageCacheMisses = 0;
+    private long levelHits = 0;
+    private long levelMisses = 0;
+    private long tileHits = 0;
+    private long tileMisses = 0;
+
+    /**
+     * Get the upper bound of a histogram bucket. Each bucket counts the durations above the previous bucket's upper
+     * bound, up to and including its own: 1, 2, 4, 8, 12, 16.7, 20, 33.3, 50 and 100 milliseconds, then the rest.
+     * @param bucket The bucket, from 0 to BUCKET_COUNT - 1.
+     * @return The bucket's upper bound (in nanoseconds), Long.MAX_VALUE for the last.
+     */
+    public static long getBucketUpperNanos(int bucket)
+        {
+        return BUCKET_UPPER_NANOS[bucket];
+        }
+
+    /**
+     * Set the interval fling frames are expected at, the display's refresh interval, to judge them late against.
+     * @param targetFrameNanos The interval (in nanoseconds). The default is DEFAULT_TARGET_FRAME_NANOS.
+     * @return The ViewMetrics object on which this method is being called.
+     */
+    public ViewMetrics setTargetFrameNanos(long targetFrameNanos)
+        {
+        if (targetFrameNanos <= 0) throw new IllegalArgumentException("targetFrameNanos must be positive");
+        this.targetFrameNanos = targetFrameNanos;
+        return this;
+        }
+
+    /**
+     * @return The interval fling frames are expected at (in nanoseconds).
+     */
+    public long getTargetFrameNanos()
+        {
+        return targetFrameNanos;
+        }
+
+    /**
+     * Zero all the counters and histograms.
+     */
+    public void reset()
+        {
+        framesDrawn = drawNanos = maxDrawNanos = invalidates = 0;
+        pans = noOpPans = zooms = noOpZooms = 0;
+        flingFrames = flingLateFrames = flingSkippedFrames = maxFlingFrameNanos = 0;
+        imageCacheHits = imageCachePreloadHits = imageCacheMisses = levelHits = levelMisses = tileHits = tileMisses = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) drawHistogram[i] = flingHistogram[i] = 0;
+        }
+
+    /**
+     * @return The number of frames drawn (calls to onDraw() with an image to draw).
+     */
+    public long getFramesDrawn()
+        {
+        return framesDrawn;
+        }
+
+    /**
+     * @return The total time spent in onDraw() (in nanoseconds).
+     */
+    public long getDrawNanos()
+        {
+        return drawNanos;
+        }
+
+    /**
+     * @return The longest time spent in one call to onDraw() (in nanoseconds).
+     */
+    public long getMaxDrawNanos()
+        {
+        return maxDrawNanos;
+        }
+
+    /**
+     * @param bucket The bucket, from 0 to BUCKET_COUNT - 1.
+     * @return The number of frames whose onDraw() took as long as the bucket covers.
+     */
+    public long getDrawCount(int bucket)
+        {
+        return drawHistogram[bucket];
+        }
+
+    /**
+     * @return The number of invalidates requested. Several in one display frame are drawn as one frame, so comparing this with getFramesDrawn() shows how much invalidating is wasted.
+     */
+    public long getInvalidates()
+        {
+        return invalidates;
+        }
+
+    /**
+     * @return The number of calls to pan().
+     */
+    public long getPans()
+        {
+        return pans;
+        }
+
+    /**
+     * @return The number of calls to pan() that changed nothing (returned false).
+     */
+    public long getNoOpPans()
+        {
+        return noOpPans;
+        }
+
+    /**
+     * @return The number of calls to zoom(), zoomToFit() and zoomToPixel1To1().
+     */
+    public long getZooms()
+        {
+        return zooms;
+        }
+
+    /**
+     * @return The number of calls to zoom(), zoomToFit() and zoomToPixel1To1() that changed nothing (returned false).
+     */
+    public long getNoOpZooms()
+        {
+        return noOpZooms;
+        }
+
+    /**
+     * @return The number of fling frames timed (all but the first of each fling).
+     */
+    public long getFlingFrames()
+        {
+        return flingFrames;
+        }
+
+    /**
+     * @return The number of fling frames which came more than half a target interval late.
+     */
+    public long getFlingLateFrames()
+        {
+        return flingLateFrames;
+        }
+
+    /**
+     * @return The number of target intervals which passed during flings without a frame (dropped frames).
+     */
+    public long getFlingSkippedFrames()
+        {
+        return flingSkippedFrames;
+        }
+
+    /**
+     * @return The longest interval between fling frames (in nanoseconds).
+     */
+    public long getMaxFlingFrameNanos()
+        {
+        return maxFlingFrameNanos;
+        }
+
+    /**
+     * @param bucket The bucket, from 0 to BUCKET_COUNT - 1.
+     * @return The number of fling frames whose interval since the frame before was as long as the bucket covers.
+     */
+    public long getFlingFrameCount(int bucket)
+        {
+        return flingHistogram[bucket];
+        }
+
+    /**
+     * @return The number of images loadImage() found decoded in the view's ImageCache.
+     */
+    public long getImageCacheHits()
+        {
+        return imageCacheHits;
+        }
+
+    /**
+     * @return The number of images loadImage() found being preloaded by the view's ImageCache, or with only their preview decoded.
+     */
+    public long getImageCachePreloadHits()
+        {
+        return imageCachePreloadHits;
+        }
+
+    /**
+     * @return The number of images loadImage() had to decode from scratch, with an ImageCache set.
+     */
+    public long getImageCacheMisses()
+        {
+        return imageCacheMisses;
+        }
+
+    /**
+     * @return The number of frames drawn from a subsampled pyramid level that was already built.
+     */
+    public long getLevelHits()
+        {
+        return levelHits;
+        }
+
+    /**
+     * @return The number of frames which had to build the subsampled pyramid level they're drawn from.
+     */
+    public long getLevelMisses()
+        {
+        return levelMisses;
+        }
+
+    /**
+     * @return The number of visible tiles drawn which were already decoded.
+     */
+    public long getTileHits()
+        {
+        return tileHits;
+        }
+
+    /**
+     * @return The number of visible tiles not yet decoded when drawn, and drawn from a coarser tile or the preview instead.
+     */
+    public long getTileMisses()
+        {
+        return tileMisses;
+        }
+
+    void recordDraw(long nanos)
+        {
+        framesDrawn++;
+        drawNanos += nanos;
+        if (nanos > maxDrawNanos) maxDrawNanos = nanos;
+        drawHistogram[bucketOf(nanos)]++;
+        }
+
+    void recordInvalidate()
+        {
+        invalidates++;
+        }
+
+    void recordPan(boolean changed)
+        {
+        pans++;
+        if (!changed) noOpPans++;
+        }
+
+    void recordZoom(boolean changed)
+        {
+        zooms++;
+        if (!changed) noOpZooms++;
+        }
+
+    void recordFlingFrame(long intervalNanos)
+        {
+        flingFrames++;
+        if (intervalNanos > maxFlingFrameNanos) maxFlingFrameNanos = intervalNanos;
+        flingHistogram[bucketOf(intervalNanos)]++;
+        if (2*intervalNanos > 3*targetFrameNanos)
+            {
+            flingLateFrames++;
+            flingSkippedFrames += (intervalNanos + targetFrameNanos/2)/targetFrameNanos - 1;
+            }
+        }
+
+    void recordImageCache(boolean hit, boolean preload)
+        {
+        if (hit)
+            imageCacheHits++;
+        else if (preload)
+            imageCachePreloadHits++;
+        else
+            imageCacheMisses++;
+        }
+
+    void recordLevel(boolean hit)
+        {
+        if (hit)
+            levelHits++;
+        else
+            levelMisses++;
+        }
+
+    void recordTile(boolean hit)
+        {
+        if (hit)
+            tileHits++;
+        else
+            tileMisses++;
+        }
+
+    private static int bucketOf(long nanos)
+        {
+        int i = 0;
+        while (nanos > BUCKET_UPPER_NANOS[i]) i++;
+        return i;
+        }
+    }
@@ -0,0 +1,986 @@
+package baydroid.android_pan_zoom_bitmap_view.util;
+
+
+
+/**
+ * The pan and zoom transform math behind PanZoomBitmapView, free of any dependency on android.view or android.graphics
+ * so that it can also be used (and benchmarked) from headless code on a plain JVM.
+ * <p>
+ * The viewport is the frame of the view mapped into the bitmap's co-ordinate space. All the state is held in primitive
+ * fields, and no method allocates. Rectangles are half open, as with android.graphics.Rect: right and bottom are exclusive.
+ * <p>
+ * By default the viewport is held in whole bitmap pixels. In sub-pixel mode it's held in floats instead, so that small
+ * pans and zooms when zoomed in a long way aren't rounded away, and changes are only reported when they move the image
+ * on screen by more than the change epsilon. The int viewport is then the float viewport rounded.
+ */
+public class ViewportEngine
+    {
+    /**
+     * Maximum zoom out such that the image occupies approximately 1/8th of the view linearly.
+     */
+    public static final int MAX_ZOOM_OUT_BY8 = 0;
+    /**
+     * Maximum zoom out such that the entire image just fits in the view.
+     */
+    public static final int MAX_ZOOM_OUT_FITS = 1;
+    /**
+     * Maximum zoom out to whichever of MAX_ZOOM_OUT_FITS or pixel 1-to-1 makes the image appear smallest in the view.
+     */
+    public static final int MAX_ZOOM_OUT_FITS_OR_1TO1 = 2;
+
+    private static final int MIN_BM_RECT_DIMENSION = 32;
+    private static final int RESIZE_SLOP = 2;
+
+    /**
+     * The default change epsilon for sub-pixel mode (in view pixels).
+     */
+    public static final float DEFAULT_CHANGE_EPSILON = 0.05f;
+
+    private int bmW = -1;                      // Bitmap width in pixels.
+    private int bmH = -1;                      // Bitmap height in pixels.
+    private int mzo = MAX_ZOOM_OUT_BY8;        // Maximum allowed zoom out, one of the MAX_ZOOM_OUT_ constants.
+    private int minViewInBmDimension = -1;     // Minimum height or width of the viewport (in bitmap pixels).
+    private int layoutViewW = 0;               // The view width (in view pixels) at the time the viewport was computed.
+    private int layoutViewH = 0;               // The view height (in view pixels) at the time the viewport was computed.
+    private boolean hasViewport = false;       // Whether or not the viewport has been computed since the bitmap was set.
+    private int viewInBmLeft;                  // The frame of the view mapped into the bitmap's co-ordinate space (in bitmap pixel co-ordinates).
+    private int viewInBmTop;
+    private int viewInBmRight;
+    private int viewInBmBottom;
+    private int prevLeft;                      // The viewport as before a call to zoom() or pan() etc. Used for checking to see if anything changed during the call.
+    private int prevTop;
+    private int prevRight;
+    private int prevBottom;
+    private int bmShowingLeft;                 // The part of the bitmap showing (in bitmap pixel co-ordinates).
+    private int bmShowingTop;
+    private int bmShowingRight;
+    private int bmShowingBottom;
+    private int viewShowingLeft;               // The part of the view showing the bitmap (in view pixel co-ordinates).
+    private int viewShowingTop;
+    private int viewShowingRight;
+    private int viewShowingBottom;
+    private boolean subPixel = false;                       // Whether or not the viewport is held in floats.
+    private float changeEpsilon = DEFAULT_CHANGE_EPSILON;   // The smallest on screen movement (in view pixels) reported as a change in sub-pixel mode.
+    private float viewInBmLeftF;                            // The sub-pixel mode viewport (in bitmap pixel co-ordinates).
+    private float viewInBmTopF;
+    private float viewInBmRightF;
+    private float viewInBmBottomF;
+    private float reportedLeftF;                            // The sub-pixel mode viewport as at the last reported change.
+    private float reportedTopF;
+    private float reportedRightF;
+    private float reportedBottomF;
+    private float bmToViewScaleX;                           // The bitmap to view transform as of the last call to layout(): viewX = bmX*bmToViewScaleX + bmToViewTranslateX.
+    private float bmToViewScaleY;
+    private float bmToViewTranslateX;
+    private float bmToViewTranslateY;
+
+    /**
+     * Set the size of the bitmap. This discards the viewport, which is recomputed to zoom to fit on the next call to layout() or zoomToFit().
+     * @param bmW The bitmap width in pixels, or -1 for no bitmap.
+     * @param bmH The bitmap height in pixels, or -1 for no bitmap.
+     */
+    public void setBitmapSize(int bmW, int bmH)
+        {
+        hasViewport = false;
+        this.bmW = bmW;
+        this.bmH = bmH;
+        if (bmW > 0 && bmH > 0)
+            {
+            minViewInBmDimension = MIN_BM_RECT_DIMENSION > bmW ? bmW : MIN_BM_RECT_DIMENSION;
+            if (minViewInBmDimension > bmH) minViewInBmDimension = bmH;
+            }
+        }
+
+    /**
+     * @return The bitmap width in pixels, or -1 if there's no bitmap.
+     */
+    public int getBitmapWidth()
+        {
+        return bmW;
+        }
+
+    /**
+     * @return The bitmap height in pixels, or -1 if there's no bitmap.
+     */
+    public int getBitmapHeight()
+        {
+        return bmH;
+        }
+
+    /**
+     * Set the maximum zoom out.
+     * @param mzo One of the MAX_ZOOM_OUT_ constants.
+     */
+    public void setMaxZoomOut(int mzo)
+        {
+        this.mzo = mzo;
+        }
+
+    /**
+     * Switch sub-pixel mode on or off. The current viewport is kept.
+     * @param subPixel True to hold the viewport in floats, false to hold it in whole bitmap pixels.
+     */
+    public void setSubPixel(boolean subPixel)
+        {
+        if (subPixel && !this.subPixel)
+            {
+            viewInBmLeftF = reportedLeftF = viewInBmLeft;
+            viewInBmTopF = reportedTopF = viewInBmTop;
+            viewInBmRightF = reportedRightF = viewInBmRight;
+            viewInBmBottomF = reportedBottomF = viewInBmBottom;
+            }
+        this.subPixel = subPixel;
+        }
+
+    /**
+     * Is sub-pixel mode on?
+     * @return True if the viewport is held in floats, false if it's held in whole bitmap pixels.
+     */
+    public boolean isSubPixel()
+        {
+        return subPixel;
+        }
+
+    /**
+     * Set the smallest on screen movement reported as a change in sub-pixel mode. Smaller movements still accumulate
+     * in the viewport, and are reported once they add up to more than this.
+     * @param changeEpsilon The change epsilon (in view pixels).
+     */
+    public void setChangeEpsilon(float changeEpsilon)
+        {
+        this.changeEpsilon = changeEpsilon;
+        }
+
+    /**
+     * Has the viewport been computed since the bitmap was set?
+     * @return True if there's a viewport, false otherwise.
+     */
+    public boolean hasViewport()
+        {
+        return hasViewport;
+        }
+
+    /**
+     * Slide the viewport.
+     * @param deltaX Amount to slide in the horizontal direction (in view pixels).
+     * @param deltaY Amount to slide in the vertical direction (in view pixels).
+     * @return True if the viewport changed, false otherwise.
+     */
+    public boolean pan(int deltaX, int deltaY)
+        {
+        if (!hasViewport) return false;
+        if (subPixel) return pan((float)deltaX, (float)deltaY);
+        savePrevious();
+        float scaleFactor = computeScaleFactor();
+        int dx = Math.round(scaleFactor*((float)deltaX));
+        int dy = Math.round(scaleFactor*((float)deltaY));
+        viewInBmLeft += dx;
+        viewInBmRight += dx;
+        viewInBmTop += dy;
+        viewInBmBottom += dy;
+        tidyPosition();
+        return changedSincePrevious();
+        }
+
+    /**
+     * Slide the viewport by fractions of a view pixel. Outside sub-pixel mode the deltas are rounded to whole view pixels.
+     * @param deltaX Amount to slide in the horizontal direction (in view pixels).
+     * @param deltaY Amount to slide in the vertical direction (in view pixels).
+     * @return True if the viewport changed, false otherwise.
+     */
+    public boolean pan(float deltaX, float deltaY)
+        {
+        if (!hasViewport) return false;
+        if (!subPixel) return pan(Math.round(deltaX), Math.round(deltaY));
+        float scaleFactor = computeScaleFactorF();
+        viewInBmLeftF += scaleFactor*deltaX;
+        viewInBmRightF += scaleFactor*deltaX;
+        viewInBmTopF += scaleFactor*deltaY;
+        viewInBmBottomF += scaleFactor*deltaY;
+        tidyPositionF();
+        return changedSinceReportedF();
+        }
+
+    /**
+     * Zoom so that the bitmap is the largest it can be and still fit entirely in the view.
+     * @param viewW The view width (in view pixels).
+     * @param viewH The view height (in view pixels).
+     * @return True if the viewport changed (or was computed for the first time), false otherwise.
+     */
+    public boolean zoomToFit(int viewW, int viewH)
+        {
+        if (bmW <= 0 || bmH <= 0) return false;
+        boolean firstTime = !hasViewport;
+        savePrevious();
+        zoomToFitNoCheck(viewW, viewH);
+        if (subPixel)
+            {
+            boolean changed = changedSinceReportedF();
+            return firstTime || changed;
+            }
+        return firstTime || changedSincePrevious();
+        }
+
+    private void zoomToFitNoCheck(int viewW, int viewH)
+        {
+        hasViewport = true;
+        layoutViewW = viewW;
+        layoutViewH = viewH;
+        float heightToWidth = ((float)layoutViewH)/((float)layoutViewW);
+        if (subPixel)
+            {
+            if (layoutViewH*bmW > bmH*layoutViewW)
+                {
+                float h = heightToWidth*bmW;
+                viewInBmLeftF = 0.0f;
+                viewInBmRightF = bmW;
+                viewInBmTopF = -(h - bmH)/2.0f;
+                viewInBmBottomF = viewInBmTopF + h;
+                }
+            else
+                {
+                float w = bmH/heightToWidth;
+                viewInBmTopF = 0.0f;
+                viewInBmBottomF = bmH;
+                viewInBmLeftF = -(w - bmW)/2.0f;
+                viewInBmRightF = viewInBmLeftF + w;
+                }
+            roundViewport();
+            }
+        else if (layoutViewH*bmW > bmH*layoutViewW)
+            {
+            viewInBmLeft = 0;
+            viewInBmRight = bmW;
+            int h = Math.round(heightToWidth*bmW);
+            viewInBmTop = -(h - bmH)/2;
+            viewInBmBottom = viewInBmTop + h;
+            }
+        else
+            {
+            viewInBmTop = 0;
+            viewInBmBottom = bmH;
+            int w = Math.round(bmH/heightToWidth);
+            viewInBmLeft = -(w - bmW)/2;
+            viewInBmRight = viewInBmLeft + w;
+            }
+        }
+
+    /**
+     * Is the viewport such that the bitmap is the largest it can be and still fit entirely in the view?
+     * @return True if it's zoomed to fit, false otherwise.
+     */
+    public boolean isZoomedToFit()
+        {
+        if (!hasViewport) return false;
+        if (viewInBmLeft == 0 && viewInBmRight == bmW && viewInBmBottom - viewInBmTop >= bmH) return true;
+        if (viewInBmTop == 0 && viewInBmBottom == bmH && viewInBmRight - viewInBmLeft >= bmW) return true;
+        return false;
+        }
+
+    /**
+     * Zoom so that there's a 1 to 1 correspondence between bitmap pixels and view pixels, and center on a point.
+     * @param viewW The view width (in view pixels).
+     * @param viewH The view height (in view pixels).
+     * @param centerX The X co-ordinate of the point to center on (in view pixel co-ordinates).
+     * @param centerY The Y co-ordinate of the point to center on (in view pixel co-ordinates).
+     * @return True if the viewport changed, false otherwise.
+     */
+    public boolean zoomToPixel1To1(int viewW, int viewH, int centerX, int centerY)
+        {
+        if (!hasViewport) return false;
+        layoutViewW = viewW;
+        layoutViewH = viewH;
+        if (mzo == MAX_ZOOM_OUT_FITS && (bmW <= layoutViewW && bmH <= layoutViewH)) return zoomToFit(viewW, viewH);
+        if (subPixel)
+            {
+            float scaleFactor = computeScaleFactorF();
+            float centerXF = viewInBmLeftF + scaleFactor*centerX;
+            float centerYF = viewInBmTopF + scaleFactor*centerY;
+            viewInBmLeftF = centerXF - layoutViewW/2.0f;
+            viewInBmRightF = viewInBmLeftF + layoutViewW;
+            viewInBmTopF = centerYF - layoutViewH/2.0f;
+            viewInBmBottomF = viewInBmTopF + layoutViewH;
+            tidyPositionF();
+            return changedSinceReportedF();
+            }
+        savePrevious();
+        float scaleFactor = computeScaleFactor();
+        centerX = Math.round(scaleFactor*((float)centerX)) + viewInBmLeft;
+        centerY = Math.round(scaleFactor*((float)centerY)) + viewInBmTop;
+        viewInBmLeft = centerX - layoutViewW/2;
+        viewInBmRight = viewInBmLeft + layoutViewW;
+        viewInBmTop = centerY - layoutViewH/2;
+        viewInBmBottom = viewInBmTop + layoutViewH;
+        tidyPosition();
+        return changedSincePrevious();
+        }
+
+    /**
+     * Zoom in or out about a point.
+     * @param viewW The view width (in view pixels).
+     * @param viewH The view height (in view pixels).
+     * @param zoomFactor The amount to zoom by.
+     * @param centerX The X co-ordinate of the center point of the zoom (in view pixel co-ordinates).
+     * @param centerY The Y co-ordinate of the center point of the zoom (in view pixel co-ordinates).
+     * @return True if the viewport changed, false otherwise.
+     */
+    public boolean zoom(int viewW, int viewH, float zoomFactor, int centerX, int centerY)
+        {
+        if (!hasViewport) return false;
+        if (subPixel) return zoomF(viewW, viewH, zoomFactor, centerX, centerY);
+        savePrevious();
+        layoutViewW = viewW;
+        layoutViewH = viewH;
+        float heightToWidth = ((float)layoutViewH)/((float)layoutViewW);
+        int maxW = computeMaxW(heightToWidth);
+        int maxH = computeMaxH(heightToWidth);
+        int oldH = viewInBmBottom - viewInBmTop;
+        int oldW = viewInBmRight - viewInBmLeft;
+        int newH;
+        int newW;
+        if (oldH > oldW)
+            {
+            newH = Math.round(oldH/zoomFactor);
+            if (newH > maxH) newH = maxH;
+            if (newH < minViewInBmDimension) newH = minViewInBmDimension;
+            newW = Math.round(newH/heightToWidth);
+            }
+        else
+            {
+            newW = Math.round(oldW/zoomFactor);
+            if (newW > maxW) newW = maxW;
+            if (newW < minViewInBmDimension) newW = minViewInBmDimension;
+            newH = Math.round(newW*heightToWidth);
+            }
+        float scaleFactor = computeScaleFactor();
+        centerX = Math.round(scaleFactor*((float)centerX)) + viewInBmLeft;
+        centerY = Math.round(scaleFactor*((float)centerY)) + viewInBmTop;
+        viewInBmLeft = centerX - (newW*(centerX - viewInBmLeft))/oldW;
+        viewInBmRight = viewInBmLeft + newW;
+        viewInBmTop = centerY - (newH*(centerY - viewInBmTop))/oldH;
+        viewInBmBottom = viewInBmTop + newH;
+        tidyPosition();
+        return changedSincePrevious();
+        }
+
+    private boolean zoomF(int viewW, int viewH, float zoomFactor, float centerX, float centerY)
+        {
+        float scaleFactor = computeScaleFactorF();
+        layoutViewW = viewW;
+        layoutViewH = viewH;
+        float heightToWidth = ((float)layoutViewH)/((float)layoutViewW);
+        int maxW = computeMaxW(heightToWidth);
+        int maxH = computeMaxH(heightToWidth);
+        float oldW = viewInBmRightF - viewInBmLeftF;
+        float oldH = viewInBmBottomF - viewInBmTopF;
+        float newW;
+        float newH;
+        if (oldH > oldW)
+            {
+            newH = oldH/zoomFactor;
+            if (newH > maxH) newH = maxH;
+            if (newH < minViewInBmDimension) newH = minViewInBmDimension;
+            newW = newH/heightToWidth;
+            }
+        else
+            {
+            newW = oldW/zoomFactor;
+            if (newW > maxW) newW = maxW;
+            if (newW < minViewInBmDimension) newW = minViewInBmDimension;
+            newH = newW*heightToWidth;
+            }
+        float centerXF = viewInBmLeftF + scaleFactor*centerX;
+        float centerYF = viewInBmTopF + scaleFactor*centerY;
+        viewInBmLeftF = centerXF - newW*(centerXF - viewInBmLeftF)/oldW;
+        viewInBmRightF = viewInBmLeftF + newW;
+        viewInBmTopF = centerYF - newH*(centerYF - viewInBmTopF)/oldH;
+        viewInBmBottomF = viewInBmTopF + newH;
+        tidyPositionF();
+        return changedSinceReportedF();
+        }
+
+    /**
+     * Move the viewport to be centered on a point at a scale, e.g. to restore a viewport saved with getCenterX(),
+     * getCenterY() and computeScaleFactor(). The scale is limited to the allowed zoom range, and the position kept in
+     * bounds, as for zoom() and pan().
+     * @param viewW The view width (in view pixels).
+     * @param viewH The view height (in view pixels).
+     * @param centerX The X co-ordinate of the point to center on (in bitmap pixel co-ordinates).
+     * @param centerY The Y co-ordinate of the point to center on (in bitmap pixel co-ordinates).
+     * @param scaleFactor The scale (bitmap pixels per view pixel).
+     * @return True if the viewport changed (or was computed for the first time), false otherwise.
+     */
+    public boolean setViewport(int viewW, int viewH, float centerX, float centerY, float scaleFactor)
+        {
+        if (bmW <= 0 || bmH <= 0 || viewW <= 0 || viewH <= 0 || !(scaleFactor > 0.0f)) return false;
+        boolean firstTime = !hasViewport;
+        int left = viewInBmLeft; // The viewport is rebuilt from zoomed to fit, so what changed is judged against it as it was before.
+        int top = viewInBmTop;
+        int right = viewInBmRight;
+        int bottom = viewInBmBottom;
+        float reportedLeft = reportedLeftF;
+        float reportedTop = reportedTopF;
+        float reportedRight = reportedRightF;
+        float reportedBottom = reportedBottomF;
+        zoomToFit(viewW, viewH);
+        layout(viewW, viewH); // Outside sub-pixel mode, the scale factor comes from the layout.
+        zoom(viewW, viewH, computeScaleFactor()/scaleFactor, viewW/2, viewH/2);
+        layout(viewW, viewH);
+        float scale = computeScaleFactor();
+        pan((centerX - getCenterX())/scale, (centerY - getCenterY())/scale);
+        if (subPixel)
+            {
+            reportedLeftF = reportedLeft;
+            reportedTopF = reportedTop;
+            reportedRightF = reportedRight;
+            reportedBottomF = reportedBottom;
+            boolean changed = changedSinceReportedF();
+            return firstTime || changed;
+            }
+        return firstTime || viewInBmLeft != left || viewInBmTop != top || viewInBmRight != right || viewInBmBottom != bottom;
+        }
+
+    /**
+     * @return The X co-ordinate of the center of the viewport (in bitmap pixel co-ordinates).
+     */
+    public float getCenterX()
+        {
+        return subPixel ? (viewInBmLeftF + viewInBmRightF)/2.0f : (viewInBmLeft + viewInBmRight)/2.0f;
+        }
+
+    /**
+     * @return The Y co-ordinate of the center of the viewport (in bitmap pixel co-ordinates).
+     */
+    public float getCenterY()
+        {
+        return subPixel ? (viewInBmTopF + viewInBmBottomF)/2.0f : (viewInBmTop + viewInBmBottom)/2.0f;
+        }
+
+    /**
+     * Bring the viewport up to date with the view size, keeping the same center point and zoom factor if the view size
+     * changed (or zooming to fit if there's no viewport yet), then compute which part of the bitmap shows in which part of the view.
+     * @param viewW The view width (in view pixels).
+     * @param viewH The view height (in view pixels).
+     */
+    public void layout(int viewW, int viewH)
+        {
+        if (bmW <= 0 || bmH <= 0) return;
+        if (subPixel)
+            {
+            layoutF(viewW, viewH);
+            return;
+            }
+        if (!hasViewport)
+            zoomToFitNoCheck(viewW, viewH);
+        else if (layoutViewW != viewW || layoutViewH != viewH)
+            {
+            layoutViewW = viewW;
+            layoutViewH = viewH;
+            float scaleFactor = computeScaleFactor();
+            int w = Math.round(scaleFactor*((float)viewW));
+            int h = Math.round(scaleFactor*((float)viewH));
+            float heightToWidth = ((float)viewH)/((float)viewW);
+            int maxW = computeMaxW(heightToWidth);
+            int maxH = computeMaxH(heightToWidth);
+            if (w < minViewInBmDimension)
+                {
+                w = minViewInBmDimension;
+                h = Math.round(heightToWidth*w);
+                }
+            else if (w > maxW)
+                {
+                w = maxW;
+                h = Math.round(heightToWidth*w);
+                }
+            if (h < minViewInBmDimension)
+                {
+                h = minViewInBmDimension;
+                w = Math.round(h/heightToWidth);
+                }
+            else if (h > maxH)
+                {
+                h = maxH;
+                w = Math.round(h/heightToWidth);
+                }
+            if ((bmW - RESIZE_SLOP <= w && w <= bmW + RESIZE_SLOP && h >= bmH - RESIZE_SLOP) || (bmH - RESIZE_SLOP <= h && h <= bmH + RESIZE_SLOP && w >= bmW - RESIZE_SLOP))
+                zoomToFitNoCheck(viewW, viewH);
+            else
+                {
+                int centerX = (viewInBmLeft + viewInBmRight)/2;
+                int centerY = (viewInBmTop + viewInBmBottom)/2;
+                viewInBmLeft = centerX - w/2;
+                viewInBmRight = viewInBmLeft + w;
+                viewInBmTop = centerY - h/2;
+                viewInBmBottom = viewInBmTop + h;
+                tidyPosition();
+                }
+            }
+        if (viewInBmRight > bmW)
+            {
+            bmShowingLeft = 0;
+            bmShowingRight = bmW;
+            int w = (viewW*bmW)/(viewInBmRight - viewInBmLeft);
+            viewShowingLeft = (viewW - w)/2;
+            viewShowingRight = viewShowingLeft + w;
+            }
+        else
+            {
+            bmShowingLeft = viewInBmLeft;
+            bmShowingRight = viewInBmRight;
+            viewShowingLeft = 0;
+            viewShowingRight = viewW;
+            }
+        if (viewInBmBottom > bmH)
+            {
+            bmShowingTop = 0;
+            bmShowingBottom = bmH;
+            int h = (viewH*bmH)/(viewInBmBottom - viewInBmTop);
+            viewShowingTop = (viewH - h)/2;
+            viewShowingBottom = viewShowingTop + h;
+            }
+        else
+            {
+            bmShowingTop = viewInBmTop;
+            bmShowingBottom = viewInBmBottom;
+            viewShowingTop = 0;
+            viewShowingBottom = viewH;
+            }
+        bmToViewScaleX = ((float)(viewShowingRight - viewShowingLeft))/((float)(bmShowingRight - bmShowingLeft));
+        bmToViewScaleY = ((float)(viewShowingBottom - viewShowingTop))/((float)(bmShowingBottom - bmShowingTop));
+        bmToViewTranslateX = viewShowingLeft - bmShowingLeft*bmToViewScaleX;
+        bmToViewTranslateY = viewShowingTop - bmShowingTop*bmToViewScaleY;
+        }
+
+    private void layoutF(int viewW, int viewH)
+        {
+        if (!hasViewport)
+            {
+            zoomToFitNoCheck(viewW, viewH);
+            reportedLeftF = viewInBmLeftF;
+            reportedTopF = viewInBmTopF;
+            reportedRightF = viewInBmRightF;
+            reportedBottomF = viewInBmBottomF;
+            }
+        else if (layoutViewW != viewW || layoutViewH != viewH)
+            {
+            float scaleFactor = computeScaleFactorF();
+            layoutViewW = viewW;
+            layoutViewH = viewH;
+            float w = scaleFactor*viewW;
+            float h = scaleFactor*viewH;
+            float heightToWidth = ((float)viewH)/((float)viewW);
+            int maxW = computeMaxW(heightToWidth);
+            int maxH = computeMaxH(heightToWidth);
+            if (w < minViewInBmDimension)
+                {
+                w = minViewInBmDimension;
+                h = heightToWidth*w;
+                }
+            else if (w > maxW)
+                {
+                w = maxW;
+                h = heightToWidth*w;
+                }
+            if (h < minViewInBmDimension)
+                {
+                h = minViewInBmDimension;
+                w = h/heightToWidth;
+                }
+            else if (h > maxH)
+                {
+                h = maxH;
+                w = h/heightToWidth;
+                }
+            if ((bmW - RESIZE_SLOP <= w && w <= bmW + RESIZE_SLOP && h >= bmH - RESIZE_SLOP) || (bmH - RESIZE_SLOP <= h && h <= bmH + RESIZE_SLOP && w >= bmW - RESIZE_SLOP))
+                zoomToFitNoCheck(viewW, viewH);
+            else
+                {
+                float centerX = (viewInBmLeftF + viewInBmRightF)/2.0f;
+                float centerY = (viewInBmTopF + viewInBmBottomF)/2.0f;
+                viewInBmLeftF = centerX - w/2.0f;
+                viewInBmRightF = viewInBmLeftF + w;
+                viewInBmTopF = centerY - h/2.0f;
+                viewInBmBottomF = viewInBmTopF + h;
+                tidyPositionF();
+                }
+            roundViewport();
+            }
+        float scale = viewW/(viewInBmRightF - viewInBmLeftF);
+        bmToViewScaleX = scale;
+        bmToViewScaleY = scale;
+        bmToViewTranslateX = -viewInBmLeftF*scale;
+        bmToViewTranslateY = -viewInBmTopF*scale;
+        bmShowingLeft = Math.max(0, (int)Math.floor(viewInBmLeftF));
+        bmShowingTop = Math.max(0, (int)Math.floor(viewInBmTopF));
+        bmShowingRight = Math.min(bmW, (int)Math.ceil(viewInBmRightF));
+        bmShowingBottom = Math.min(bmH, (int)Math.ceil(viewInBmBottomF));
+        viewShowingLeft = Math.round(bmShowingLeft*scale + bmToViewTranslateX);
+        viewShowingTop = Math.round(bmShowingTop*scale + bmToViewTranslateY);
+        viewShowingRight = Math.round(bmShowingRight*scale + bmToViewTranslateX);
+        viewShowingBottom = Math.round(bmShowingBottom*scale + bmToViewTranslateY);
+        }
+
+    /**
+     * Get the number of bitmap pixels per view pixel, as of the last call to layout().
+     * @return The number of bitmap pixels per view pixel.
+     */
+    public float computeScaleFactor()
+        {
+        if (subPixel) return computeScaleFactorF();
+        int bmShowingW = bmShowingRight - bmShowingLeft;
+        int bmShowingH = bmShowingBottom - bmShowingTop;
+        if (bmShowingH > bmShowingW)
+            return ((float)bmShowingH)/((float)(viewShowingBottom - viewShowingTop));
+        else
+            return ((float)bmShowingW)/((float)(viewShowingRight - viewShowingLeft));
+        }
+
+    /**
+     * Get the largest power of 2 sample size that still gives at least one bitmap pixel per view pixel, as of the last call to layout().
+     * @return The sample size.
+     */
+    public int computeSampleSize()
+        {
+        float scaleFactor = computeScaleFactor();
+        int maxSampleSize = bmW < bmH ? bmW : bmH;
+        int sampleSize = 1;
+        while (2*sampleSize <= scaleFactor && 2*sampleSize <= maxSampleSize) sampleSize *= 2;
+        return sampleSize;
+        }
+
+    /**
+     * @return The horizontal scale of the bitmap to view transform as of the last call to layout() (view pixels per bitmap pixel).
+     */
+    public float getBmToViewScaleX()
+        {
+        return bmToViewScaleX;
+        }
+
+    /**
+     * @return The vertical scale of the bitmap to view transform as of the last call to layout() (view pixels per bitmap pixel).
+     */
+    public float getBmToViewScaleY()
+        {
+        return bmToViewScaleY;
+        }
+
+    /**
+     * @return The horizontal translation of the bitmap to view transform as of the last call to layout() (in view pixels).
+     */
+    public float getBmToViewTranslateX()
+        {
+        return bmToViewTranslateX;
+        }
+
+    /**
+     * @return The vertical translation of the bitmap to view transform as of the last call to layout() (in view pixels).
+     */
+    public float getBmToViewTranslateY()
+        {
+        return bmToViewTranslateY;
+        }
+
+    /**
+     * Map points from bitmap pixel co-ordinates to view pixel co-ordinates through the bitmap to view transform as of
+     * the last call to layout(), without allocating. Like android.graphics.Matrix.mapPoints(), src and dst can be the
+     * same array, even with overlapping ranges.
+     * @param dst Where to put the mapped points, as X, Y pairs.
+     * @param dstIndex The index in dst of the first mapped point's X co-ordinate.
+     * @param src The points to map, as X, Y pairs.
+     * @param srcIndex The index in src of the first point's X co-ordinate.
+     * @param pointCount The number of points (X, Y pairs) to map.
+     */
+    public void mapBmToView(float[] dst, int dstIndex, float[] src, int srcIndex, int pointCount)
+        {
+        mapPoints(dst, dstIndex, src, srcIndex, pointCount, bmToViewScaleX, bmToViewScaleY, bmToViewTranslateX, bmToViewTranslateY);
+        }
+
+    /**
+     * Map points from view pixel co-ordinates to bitmap pixel co-ordinates through the inverse of the bitmap to view
+     * transform as of the last call to layout(), without allocating. Like android.graphics.Matrix.mapPoints(), src
+     * and dst can be the same array, even with overlapping ranges.
+     * @param dst Where to put the mapped points, as X, Y pairs.
+     * @param dstIndex The index in dst of the first mapped point's X co-ordinate.
+     * @param src The points to map, as X, Y pairs.
+     * @param srcIndex The index in src of the first point's X co-ordinate.
+     * @param pointCount The number of points (X, Y pairs) to map.
+     */
+    public void mapViewToBm(float[] dst, int dstIndex, float[] src, int srcIndex, int pointCount)
+        {
+        float scaleX = 1.0f/bmToViewScaleX;
+        float scaleY = 1.0f/bmToViewScaleY;
+        mapPoints(dst, dstIndex, src, srcIndex, pointCount, scaleX, scaleY, -bmToViewTranslateX*scaleX, -bmToViewTranslateY*scaleY);
+        }
+
+    // Scale then translate X, Y pairs, walking backwards when dst overlaps src further on so no point's overwritten before it's read.
+    static void mapPoints(float[] dst, int dstIndex, float[] src, int srcIndex, int pointCount, float scaleX, float scaleY, float translateX, float translateY)
+        {
+        int n = 2*pointCount;
+        if (dst == src && dstIndex > srcIndex)
+            {
+            for (int i = n - 2; i >= 0; i -= 2)
+                {
+                float x = src[srcIndex + i];
+                float y = src[srcIndex + i + 1];
+                dst[dstIndex + i] = x*scaleX + translateX;
+                dst[dstIndex + i + 1] = y*scaleY + translateY;
+                }
+            }
+        else
+            {
+            for (int i = 0; i < n; i += 2)
+                {
+                float x = src[srcIndex + i];
+                float y = src[srcIndex + i + 1];
+                dst[dstIndex + i] = x*scaleX + translateX;
+                dst[dstIndex + i + 1] = y*scaleY + translateY;
+                }
+            }
+        }
+
+    /**
+     * @return The left edge of the viewport (the frame of the view mapped into the bitmap's co-ordinate space, in bitmap pixel co-ordinates).
+     */
+    public int getViewInBmLeft()
+        {
+        return viewInBmLeft;
+        }
+
+    /**
+     * @return The top edge of the viewport (the frame of the view mapped into the bitmap's co-ordinate space, in bitmap pixel co-ordinates).
+     */
+    public int getViewInBmTop()
+        {
+        return viewInBmTop;
+        }
+
+    /**
+     * @return The right edge of the viewport (the frame of the view mapped into the bitmap's co-ordinate space, in bitmap pixel co-ordinates).
+     */
+    public int getViewInBmRight()
+        {
+        return viewInBmRight;
+        }
+
+    /**
+     * @return The bottom edge of the viewport (the frame of the view mapped into the bitmap's co-ordinate space, in bitmap pixel co-ordinates).
+     */
+    public int getViewInBmBottom()
+        {
+        return viewInBmBottom;
+        }
+
+    /**
+     * @return The left edge of the part of the bitmap showing as of the last call to layout() (in bitmap pixel co-ordinates).
+     */
+    public int getBmShowingLeft()
+        {
+        return bmShowingLeft;
+        }
+
+    /**
+     * @return The top edge of the part of the bitmap showing as of the last call to layout() (in bitmap pixel co-ordinates).
+     */
+    public int getBmShowingTop()
+        {
+        return bmShowingTop;
+        }
+
+    /**
+     * @return The right edge of the part of the bitmap showing as of the last call to layout() (in bitmap pixel co-ordinates).
+     */
+    public int getBmShowingRight()
+        {
+        return bmShowingRight;
+        }
+
+    /**
+     * @return The bottom edge of the part of the bitmap showing as of the last call to layout() (in bitmap pixel co-ordinates).
+     */
+    public int getBmShowingBottom()
+        {
+        return bmShowingBottom;
+        }
+
+    /**
+     * @return The left edge of the part of the view showing the bitmap as of the last call to layout() (in view pixel co-ordinates).
+     */
+    public int getViewShowingLeft()
+        {
+        return viewShowingLeft;
+        }
+
+    /**
+     * @return The top edge of the part of the view showing the bitmap as of the last call to layout() (in view pixel co-ordinates).
+     */
+    public int getViewShowingTop()
+        {
+        return viewShowingTop;
+        }
+
+    /**
+     * @return The right edge of the part of the view showing the bitmap as of the last call to layout() (in view pixel co-ordinates).
+     */
+    public int getViewShowingRight()
+        {
+        return viewShowingRight;
+        }
+
+    /**
+     * @return The bottom edge of the part of the view showing the bitmap as of the last call to layout() (in view pixel co-ordinates).
+     */
+    public int getViewShowingBottom()
+        {
+        return viewShowingBottom;
+        }
+
+    private void savePrevious()
+        {
+        prevLeft = viewInBmLeft;
+        prevTop = viewInBmTop;
+        prevRight = viewInBmRight;
+        prevBottom = viewInBmBottom;
+        }
+
+    private boolean changedSincePrevious()
+        {
+        return viewInBmLeft != prevLeft || viewInBmTop != prevTop || viewInBmRight != prevRight || viewInBmBottom != prevBottom;
+        }
+
+    private float computeScaleFactorF()
+        {
+        return (viewInBmRightF - viewInBmLeftF)/layoutViewW;
+        }
+
+    // Report a change only if some edge of the viewport has moved more than changeEpsilon view pixels since the last
+    // reported change. Either way the int viewport is brought up to date.
+    private boolean changedSinceReportedF()
+        {
+        roundViewport();
+        float maxDelta = Math.max(Math.max(Math.abs(viewInBmLeftF - reportedLeftF), Math.abs(viewInBmTopF - reportedTopF)), Math.max(Math.abs(viewInBmRightF - reportedRightF), Math.abs(viewInBmBottomF - reportedBottomF)));
+        if (maxDelta/computeScaleFactorF() <= changeEpsilon) return false;
+        reportedLeftF = viewInBmLeftF;
+        reportedTopF = viewInBmTopF;
+        reportedRightF = viewInBmRightF;
+        reportedBottomF = viewInBmBottomF;
+        return true;
+        }
+
+    private void roundViewport()
+        {
+        viewInBmLeft = Math.round(viewInBmLeftF);
+        viewInBmTop = Math.round(viewInBmTopF);
+        viewInBmRight = Math.round(viewInBmRightF);
+        viewInBmBottom = Math.round(viewInBmBottomF);
+        }
+
+    private int computeMaxW(float heightToWidth)
+        {
+        int effectiveMZO = mzo;
+        if (effectiveMZO == MAX_ZOOM_OUT_FITS_OR_1TO1 && (bmW >= layoutViewW || bmH >= layoutViewH)) effectiveMZO = MAX_ZOOM_OUT_FITS;
+        switch (effectiveMZO)
+            {
+            case MAX_ZOOM_OUT_BY8:          return 8*bmW;
+            case MAX_ZOOM_OUT_FITS:         return layoutViewH*bmW > layoutViewW*bmH ? bmW : Math.round(bmH/heightToWidth);
+            case MAX_ZOOM_OUT_FITS_OR_1TO1: return layoutViewW;
+            }
+        return -1;
+        }
+
+    private int computeMaxH(float heightToWidth)
+        {
+        int effectiveMZO = mzo;
+        if (effectiveMZO == MAX_ZOOM_OUT_FITS_OR_1TO1 && (bmW >= layoutViewW || bmH >= layoutViewH)) effectiveMZO = MAX_ZOOM_OUT_FITS;
+        switch (effectiveMZO)
+            {
+            case MAX_ZOOM_OUT_BY8:          return 8*bmH;
+            case MAX_ZOOM_OUT_FITS:         return layoutViewH*bmW > layoutViewW*bmH ? Math.round(heightToWidth*bmW) : bmH;
+            case MAX_ZOOM_OUT_FITS_OR_1TO1: return layoutViewH;
+            }
+        return -1;
+        }
+
+    private void tidyPosition()
+        {
+        int h = viewInBmBottom - viewInBmTop;
+        if (h >= bmH)
+            {
+            viewInBmTop = -(h - bmH)/2;
+            viewInBmBottom = viewInBmTop + h;
+            }
+        else
+            {
+            if (viewInBmTop < 0)
+                {
+                viewInBmTop = 0;
+                viewInBmBottom = h;
+                }
+            else if (viewInBmBottom > bmH)
+                {
+                viewInBmTop = bmH - h;
+                viewInBmBottom = bmH;
+                }
+            }
+        int w = viewInBmRight - viewInBmLeft;
+        if (w >= bmW)
+            {
+            viewInBmLeft = -(w - bmW)/2;
+            viewInBmRight = viewInBmLeft + w;
+            }
+        else
+            {
+            if (viewInBmLeft < 0)
+                {
+                viewInBmLeft = 0;
+                viewInBmRight = w;
+                }
+            else if (viewInBmRight > bmW)
+                {
+                viewInBmLeft = bmW - w;
+                viewInBmRight = bmW;
+                }
+            }
+        }
+
+    private void tidyPositionF()
+        {
+        float h = viewInBmBottomF - viewInBmTopF;
+        if (h >= bmH)
+            {
+            viewInBmTopF = -(h - bmH)/2.0f;
+            viewInBmBottomF = viewInBmTopF + h;
+            }
+        else
+            {
+            if (viewInBmTopF < 0.0f)
+                {
+                viewInBmTopF = 0.0f;
+                viewInBmBottomF = h;
+                }
+            else if (viewInBmBottomF > bmH)
+                {
+                viewInBmTopF = bmH - h;
+                viewInBmBottomF = bmH;
+                }
+            }
+        float w = viewInBmRightF - viewInBmLeftF;
+        if (w >= bmW)
+            {
+            viewInBmLeftF = -(w - bmW)/2.0f;
+            viewInBmRightF = viewInBmLeftF + w;
+            }
+        else
+            {
+            if (viewInBmLeftF < 0.0f)
+                {
+                viewInBmLeftF = 0.0f;
+                viewInBmRightF = w;
+                }
+            else if (viewInBmRightF > bmW)
+                {
+                viewInBmLeftF = bmW - w;
+                viewInBmRightF = bmW;
+                }
+            }
+        }
+    }
@@ -0,0 +1,141 @@
+package baydroid.android_pan_zoom_bitmap_view.util;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+
+
+/**
+ * Publishes a view's viewport from the UI thread for reading on any thread, as a sequence lock: the version is made
+ * odd while the values are being written and even again once they're all written, and readers retry if the version
+ * was odd or changed while they copied the values. The values are held in an AtomicIntegerArray (floats as their
+ * bits) so that every write and read is volatile, which keeps readers from seeing them out of order with the version.
+ * Publishing only writes when the viewport has changed, and nothing allocates.
+ */
+class ViewportPublisher
+    {
+    private static final int VIEW_W = 0;        // Indexes into values.
+    private static final int VIEW_H = 1;
+    private static final int BM_W = 2;
+    private static final int BM_H = 3;
+    private static final int SCALE_X = 4;
+    private static final int SCALE_Y = 5;
+    private static final int TRANSLATE_X = 6;
+    private static final int TRANSLATE_Y = 7;
+    private static final int VIEW_IN_BM = 8;    // Left, top, right, bottom.
+    private static final int BM_SHOWING = 12;
+    private static final int VIEW_SHOWING = 16;
+    private static final int VALUE_COUNT = 20;
+
+    private volatile long sequence = 0;         // Twice the version, plus 1 while publishing.
+    private final AtomicIntegerArray values = new AtomicIntegerArray(VALUE_COUNT);
+    private final int[] next = new int[VALUE_COUNT]; // The values being published (UI thread only).
+
+    ViewportPublisher()
+        {
+        values.set(BM_W, -1);
+        values.set(BM_H, -1);
+        }
+
+    /**
+     * Publish the viewport of a frame, if it's changed. Must only be called on one thread (the UI thread).
+     * @param viewW The view width.
+     * @param viewH The view height.
+     * @param engine The engine, laid out for the frame, or null if there's no image.
+     * @param scaleX The horizontal scale of the bitmap to view transform the frame's drawn through.
+     * @param scaleY The vertical scale of the bitmap to view transform the frame's drawn through.
+     * @param translateX The horizontal translation of the bitmap to view transform the frame's drawn through.
+     * @param translateY The vertical translation of the bitmap to view transform the frame's drawn through.
+     * @return True if the viewport changed, so was published, false otherwise.
+     */
+    boolean publish(int viewW, int viewH, ViewportEngine engine, float scaleX, float scaleY, float translateX, float translateY)
+        {
+        next[VIEW_W] = viewW;
+        next[VIEW_H] = viewH;
+        if (engine == null)
+            {
+            for (int i = BM_W; i < VALUE_COUNT; i++) next[i] = 0;
+            next[BM_W] = -1;
+            next[BM_H] = -1;
+            }
+        else
+            {
+            next[BM_W] = engine.getBitmapWidth();
+            next[BM_H] = engine.getBitmapHeight();
+            next[SCALE_X] = Float.floatToRawIntBits(scaleX);
+            next[SCALE_Y] = Float.floatToRawIntBits(scaleY);
+            next[TRANSLATE_X] = Float.floatToRawIntBits(translateX);
+            next[TRANSLATE_Y] = Float.floatToRawIntBits(translateY);
+            setRect(VIEW_IN_BM, engine.getViewInBmLeft(), engine.getViewInBmTop(), engine.getViewInBmRight(), engine.getViewInBmBottom());
+            setRect(BM_SHOWING, engine.getBmShowingLeft(), engine.getBmShowingTop(), engine.getBmShowingRight(), engine.getBmShowingBottom());
+            setRect(VIEW_SHOWING, engine.getViewShowingLeft(), engine.getViewShowingTop(), engine.getViewShowingRight(), engine.getViewShowingBottom());
+            }
+        int first = 0;
+        while (first < VALUE_COUNT && values.get(first) == next[first]) first++;
+        if (first == VALUE_COUNT) return false;
+        long s = sequence;
+        sequence = s + 1;
+        for (int i = first; i < VALUE_COUNT; i++) values.set(i, next[i]);
+        sequence = s + 2;
+        return true;
+        }
+
+    /**
+     * Copy the latest published viewport, consistently, on any thread. Spins (yielding) only while a publish is under
+     * way, which takes a few dozen stores.
+     * @param out Where to copy it.
+     * @return out.
+     */
+    ViewportSnapshot read(ViewportSnapshot out)
+        {
+        for (;;)
+            {
+            long s = sequence;
+            if ((s & 1) != 0)
+                {
+                Thread.yield();
+                continue;
+                }
+            out.viewWidth = values.get(VIEW_W);
+            out.viewHeight = values.get(VIEW_H);
+            out.bitmapWidth = values.get(BM_W);
+            out.bitmapHeight = values.get(BM_H);
+            out.bmToViewScaleX = Float.intBitsToFloat(values.get(SCALE_X));
+            out.bmToViewScaleY = Float.intBitsToFloat(values.get(SCALE_Y));
+            out.bmToViewTranslateX = Float.intBitsToFloat(values.get(TRANSLATE_X));
+            out.bmToViewTranslateY = Float.intBitsToFloat(values.get(TRANSLATE_Y));
+            out.viewInBmLeft = values.get(VIEW_IN_BM);
+            out.viewInBmTop = values.get(VIEW_IN_BM + 1);
+            out.viewInBmRight = values.get(VIEW_IN_BM + 2);
+            out.viewInBmBottom = values.get(VIEW_IN_BM + 3);
+            out.bmShowingLeft = values.get(BM_SHOWING);
+            out.bmShowingTop = values.get(BM_SHOWING + 1);
+            out.bmShowingRight = values.get(BM_SHOWING + 2);
+            out.bmShowingBottom = values.get(BM_SHOWING + 3);
+            out.viewShowingLeft = values.get(VIEW_SHOWING);
+            out.viewShowingTop = values.get(VIEW_SHOWING + 1);
+            out.viewShowingRight = values.get(VIEW_SHOWING + 2);
+            out.viewShowingBottom = values.get(VIEW_SHOWING + 3);
+            if (sequence == s)
+                {
+                out.version = s/2;
+                return out;
+                }
+            }
+        }
+
+    /**
+     * @return The version of the latest published viewport, for checking cheaply, on any thread, whether it's changed.
+     */
+    long getVersion()
+        {
+        return sequence/2;
+        }
+
+    private void setRect(int index, int left, int top, int right, int bottom)
+        {
+        next[index] = left;
+        next[index + 1] = top;
+        next[index + 2] = right;
+        next[index + 3] = bottom;
+        }
+    }
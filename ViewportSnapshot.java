@@ -0,0 +1,118 @@
+package baydroid.android_pan_zoom_bitmap_view.util;
+
+
+
+/**
+ * A consistent copy of a PanZoomBitmapView's viewport as of a frame it drew, for reading on any thread (e.g. to
+ * render overlays or run analytics in the background) with PanZoomBitmapView.getViewportSnapshot(). The view
+ * publishes each frame's viewport without locking, and getViewportSnapshot() copies it into a snapshot the caller
+ * keeps and reuses, so neither side blocks the other or allocates.
+ */
+public class ViewportSnapshot
+    {
+    /**
+     * Counts the viewports the view has published: equal versions mean the same viewport.
+     */
+    public long version;
+    /**
+     * The view width (in view pixels).
+     */
+    public int viewWidth;
+    /**
+     * The view height (in view pixels).
+     */
+    public int viewHeight;
+    /**
+     * The image width (in bitmap pixels), or -1 if there's no image.
+     */
+    public int bitmapWidth;
+    /**
+     * The image height (in bitmap pixels), or -1 if there's no image.
+     */
+    public int bitmapHeight;
+    /**
+     * The bitmap to view transform the frame was drawn through: viewX = bmX*bmToViewScaleX + bmToViewTranslateX.
+     */
+    public float bmToViewScaleX;
+    /**
+     * The bitmap to view transform the frame was drawn through: viewY = bmY*bmToViewScaleY + bmToViewTranslateY.
+     */
+    public float bmToViewScaleY;
+    /**
+     * The horizontal translation of the bitmap to view transform (in view pixels).
+     */
+    public float bmToViewTranslateX;
+    /**
+     * The vertical translation of the bitmap to view transform (in view pixels).
+     */
+    public float bmToViewTranslateY;
+    /**
+     * The frame of the view mapped into the bitmap's co-ordinate space (in bitmap pixel co-ordinates).
+     */
+    public int viewInBmLeft;
+    public int viewInBmTop;
+    public int viewInBmRight;
+    public int viewInBmBottom;
+    /**
+     * The part of the bitmap showing (in bitmap pixel co-ordinates).
+     */
+    public int bmShowingLeft;
+    public int bmShowingTop;
+    public int bmShowingRight;
+    public int bmShowingBottom;
+    /**
+     * The part of the view showing the bitmap (in view pixel co-ordinates).
+     */
+    public int viewShowingLeft;
+    public int viewShowingTop;
+    public int viewShowingRight;
+    public int viewShowingBottom;
+
+    /**
+     * Is there an image in the viewport?
+     * @return True if there's an image, false if the view had none (in which case the transform and rects mean nothing).
+     */
+    public boolean hasImage()
+        {
+        return bitmapWidth > 0 && bitmapHeight > 0;
+        }
+
+    /**
+     * Get the number of bitmap pixels per view pixel.
+     * @return The scale factor.
+     */
+    public float getScaleFactor()
+        {
+        return 1.0f/bmToViewScaleX;
+        }
+
+    /**
+     * Map points from bitmap pixel co-ordinates to view pixel co-ordinates through the snapshot's transform, without
+     * allocating, as PanZoomBitmapView.mapBitmapToView() does.
+     * @param dst Where to put the mapped points, as X, Y pairs.
+     * @param dstIndex The index in dst of the first mapped point's X co-ordinate.
+     * @param src The points to map, as X, Y pairs.
+     * @param srcIndex The index in src of the first point's X co-ordinate.
+     * @param pointCount The number of points (X, Y pairs) to map.
+     */
+    public void mapBitmapToView(float[] dst, int dstIndex, float[] src, int srcIndex, int pointCount)
+        {
+        ViewportEngine.mapPoints(dst, dstIndex, src, srcIndex, pointCount, bmToViewScaleX, bmToViewScaleY, bmToViewTranslateX, bmToViewTranslateY);
+        }
+
+    /**
+     * Map points from view pixel co-ordinates to bitmap pixel co-ordinates through the inverse of the snapshot's
+     * transform, without allocating, as PanZoomBitmapView.mapViewToBitmap() does.
+     * @param dst Where to put the mapped points, as X, Y pairs.
+     * @param dstIndex The index in dst of the first mapped point's X co-ordinate.
+     * @param src The points to map, as X, Y pairs.
+     * @param srcIndex The index in src of the first point's X co-ordinate.
+     * @param pointCount The number of points (X, Y pairs) to map.
+     */
+    public void mapViewToBitmap(float[] dst, int dstIndex, float[] src, int srcIndex, int pointCount)
+        {
+        float scaleX = 1.0f/bmToViewScaleX;
+        float scaleY = 1.0f/bmToViewScaleY;
+        ViewportEngine.mapPoints(dst, dstIndex, src, srcIndex, pointCount, scaleX, scaleY, -bmToViewTranslateX*scaleX, -bmToViewTranslateY*scaleY);
+        }
+    }
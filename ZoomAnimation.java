@@ -0,0 +1,132 @@
+package baydroid.android_pan_zoom_bitmap_view.util;
+
+import android.animation.TimeInterpolator;
+
+
+
+/**
+ * The state of an animated zoom and/or pan from one viewport to another, stepped once per display frame. The scale is
+ * interpolated geometrically (so that each frame zooms by the same factor, as a pinch does) and the center linearly,
+ * both by the fraction of the duration an interpolator gives for the frame time. Progress goes by the frame times,
+ * not by frames, so a slow frame is followed by a bigger step rather than the animation running late.
+ */
+class ZoomAnimation
+    {
+    private boolean active = false;
+    private float fromScale;         // The viewport at the start: scale (bitmap pixels per view pixel) and center (in bitmap pixel co-ordinates).
+    private float fromX;
+    private float fromY;
+    private float toScale;           // The viewport at the end.
+    private float toX;
+    private float toY;
+    private boolean toFit;           // Whether or not the end is zoomed to fit, exactly.
+    private long durationNanos;
+    private long startNanos;         // The time the animation started (System.nanoTime() time base).
+    private TimeInterpolator interpolator;
+    private float scale;             // The viewport as of the last step.
+    private float centerX;
+    private float centerY;
+
+    /**
+     * Start an animation. It's under way from the start time, so the first frame after it has already moved.
+     * @param fromScale The scale at the start (bitmap pixels per view pixel).
+     * @param fromX The X co-ordinate of the center at the start (in bitmap pixel co-ordinates).
+     * @param fromY The Y co-ordinate of the center at the start (in bitmap pixel co-ordinates).
+     * @param toScale The scale at the end (bitmap pixels per view pixel).
+     * @param toX The X co-ordinate of the center at the end (in bitmap pixel co-ordinates).
+     * @param toY The Y co-ordinate of the center at the end (in bitmap pixel co-ordinates).
+     * @param toFit Whether or not the end is zoomed to fit, which the caller should zoom to exactly at the last step.
+     * @param startNanos The time the animation starts (System.nanoTime() time base), e.g. that of the touch event that started it.
+     * @param durationNanos How long the animation takes (in nanoseconds).
+     * @param interpolator Maps the fraction of the duration passed to the fraction of the way from start to end.
+     */
+    void start(float fromScale, float fromX, float fromY, float toScale, float toX, float toY, boolean toFit, long startNanos, long durationNanos, TimeInterpolator interpolator)
+        {
+        this.fromScale = fromScale;
+        this.fromX = fromX;
+        this.fromY = fromY;
+        this.toScale = toScale;
+        this.toX = toX;
+        this.toY = toY;
+        this.toFit = toFit;
+        this.durationNanos = Math.max(1L, durationNanos);
+        this.interpolator = interpolator;
+        this.startNanos = startNanos;
+        scale = fromScale;
+        centerX = fromX;
+        centerY = fromY;
+        active = true;
+        }
+
+    /**
+     * Advance the animation to a frame time. A frame time before the start is taken as the start.
+     * @param frameTimeNanos The frame time (System.nanoTime() time base).
+     * @return True if there's more of the animation after this frame, false if this frame is its end.
+     */
+    boolean step(long frameTimeNanos)
+        {
+        if (!active) return false;
+        float t = Math.min(1.0f, ((float)Math.max(0L, frameTimeNanos - startNanos))/durationNanos);
+        if (t >= 1.0f)
+            {
+            scale = toScale;
+            centerX = toX;
+            centerY = toY;
+            active = false;
+            return false;
+            }
+        float f = interpolator.getInterpolation(t);
+        scale = (float)(fromScale*Math.pow(toScale/fromScale, f));
+        centerX = fromX + (toX - fromX)*f;
+        centerY = fromY + (toY - fromY)*f;
+        return true;
+        }
+
+    /**
+     * Stop the animation where it is.
+     */
+    void stop()
+        {
+        active = false;
+        }
+
+    /**
+     * @return True if the animation's under way, false if it's ended or been stopped.
+     */
+    boolean isActive()
+        {
+        return active;
+        }
+
+    /**
+     * @return True if the animation ends zoomed to fit.
+     */
+    boolean isToFit()
+        {
+        return toFit;
+        }
+
+    /**
+     * @return The scale as of the last step (bitmap pixels per view pixel).
+     */
+    float getScaleFactor()
+        {
+        return scale;
+        }
+
+    /**
+     * @return The X co-ordinate of the center as of the last step (in bitmap pixel co-ordinates).
+     */
+    float getCenterX()
+        {
+        return centerX;
+        }
+
+    /**
+     * @return The Y co-ordinate of the center as of the last step (in bitmap pixel co-ordinates).
+     */
+    float getCenterY()
+        {
+        return centerY;
+        }
+    }
@@ -0,0 +1,152 @@
+package baydroid.android_pan_zoom_bitmap_view.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+
+
+/**
+ * Latency of the ViewportEngine operations behind each frame of a gesture: the transform update itself followed by
+ * layout(), which is what PanZoomBitmapView.onDraw() runs to compute bmShowingR and viewShowingR.
+ * <p>
+ * Run with: gradle :benchmarks:jmh (the gc profiler reports the allocation rate, which should be ~0 B/op).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ViewportEngineBenchmark
+    {
+    private static final int SEQUENCE_LENGTH = 256; // Must be a power of 2.
+    private static final int MAP_POINT_COUNT = 1024; // Points per mapPoints() batch, e.g. a page of annotations.
+
+    /**
+     * Image size as WIDTHxHEIGHT, including extreme aspect ratios.
+     */
+    @Param({ "4000x3000", "20000x15000", "100000x400", "400x100000" })
+    public String image;
+
+    /**
+     * View size as WIDTHxHEIGHT.
+     */
+    @Param({ "1080x1920" })
+    public String view;
+
+    /**
+     * Whether or not the engine holds the viewport in floats.
+     */
+    @Param({ "false", "true" })
+    public boolean subPixel;
+
+    private ViewportEngine engine;
+    private int viewW;
+    private int viewH;
+    private int bmW;
+    private int bmH;
+    private final int[] panDX = new int[SEQUENCE_LENGTH];
+    private final int[] panDY = new int[SEQUENCE_LENGTH];
+    private final float[] zoomFactors = new float[SEQUENCE_LENGTH];
+    private final float[] bmPoints = new float[2*MAP_POINT_COUNT];
+    private final float[] viewPoints = new float[2*MAP_POINT_COUNT];
+    private int step;
+
+    @Setup(Level.Trial)
+    public void setUpTrial()
+        {
+        bmW = parseWidth(image);
+        bmH = parseHeight(image);
+        viewW = parseWidth(view);
+        viewH = parseHeight(view);
+        // A finger dragging back and forth with a little vertical wobble, so the pans don't just pin against an edge.
+        for (int i = 0; i < SEQUENCE_LENGTH; i++)
+            {
+            panDX[i] = (i & 32) == 0 ? 17 : -17;
+            panDY[i] = (i & 8) == 0 ? 5 : -5;
+            }
+        // A pinch that opens then closes again, ending where it started.
+        for (int i = 0; i < SEQUENCE_LENGTH; i++) zoomFactors[i] = i < SEQUENCE_LENGTH/2 ? 1.03f : 1.0f/1.03f;
+        // Points spread over the whole bitmap.
+        for (int i = 0; i < MAP_POINT_COUNT; i++)
+            {
+            bmPoints[2*i] = (i*7919L % bmW) + 0.5f;
+            bmPoints[2*i + 1] = (i*104729L % bmH) + 0.5f;
+            }
+        }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration()
+        {
+        engine = new ViewportEngine();
+        engine.setSubPixel(subPixel);
+        engine.setBitmapSize(bmW, bmH);
+        engine.layout(viewW, viewH);
+        engine.zoom(viewW, viewH, 4.0f, viewW/2, viewH/2);
+        engine.layout(viewW, viewH);
+        step = 0;
+        }
+
+    @Benchmark
+    public int sustainedPan()
+        {
+        int i = step++ & (SEQUENCE_LENGTH - 1);
+        engine.pan(panDX[i], panDY[i]);
+        engine.layout(viewW, viewH);
+        return engine.getBmShowingLeft();
+        }
+
+    @Benchmark
+    public int pinchZoom()
+        {
+        int i = step++ & (SEQUENCE_LENGTH - 1);
+        engine.zoom(viewW, viewH, zoomFactors[i], viewW/3 + i, viewH/3 + i);
+        engine.layout(viewW, viewH);
+        return engine.getBmShowingLeft();
+        }
+
+    @Benchmark
+    public int rotate()
+        {
+        if ((step++ & 1) == 0)
+            engine.layout(viewH, viewW);
+        else
+            engine.layout(viewW, viewH);
+        return engine.getBmShowingLeft();
+        }
+
+    @Benchmark
+    public int doubleTap()
+        {
+        if ((step++ & 1) == 0)
+            engine.zoomToPixel1To1(viewW, viewH, viewW/3, viewH/3);
+        else
+            engine.zoomToFit(viewW, viewH);
+        engine.layout(viewW, viewH);
+        return engine.getBmShowingLeft();
+        }
+
+    @Benchmark
+    public float mapPoints()
+        {
+        engine.mapBmToView(viewPoints, 0, bmPoints, 0, MAP_POINT_COUNT);
+        engine.mapViewToBm(viewPoints, 0, viewPoints, 0, MAP_POINT_COUNT);
+        return viewPoints[step++ & (2*MAP_POINT_COUNT - 1)];
+        }
+
+    private static int parseWidth(String size)
+        {
+        return Integer.parseInt(size.substring(0, size.indexOf('x')));
+        }
+
+    private static int parseHeight(String size)
+        {
+        return Integer.parseInt(size.substring(size.indexOf('x') + 1));
+        }
+    }
@@ -0,0 +1,108 @@
+package baydroid.android_pan_zoom_bitmap_view.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+
+/**
+ * Fling physics on a plain JVM: a fling at speed v with deceleration a comes to rest after v/a seconds having
+ * travelled v*v/(2a), however the frames fall.
+ */
+public class FlingEngineTest
+    {
+    private static final long START_NANOS = 1000000000L;
+    private static final float VELOCITY = 3000.0f;
+    private static final float DECELERATION = 10000.0f;
+    private static final float DISTANCE = VELOCITY*VELOCITY/(2.0f*DECELERATION); // 450 view pixels, over 0.3 seconds.
+
+    @Test
+    public void decaysToRestAfterTheFullDistance()
+        {
+        FlingEngine fling = new FlingEngine();
+        fling.setDeceleration(DECELERATION);
+        assertTrue(fling.start(VELOCITY*0.6f, VELOCITY*0.8f, START_NANOS));
+        float x = 0.0f;
+        float y = 0.0f;
+        float lastStep = Float.MAX_VALUE;
+        int frames = 0;
+        for (long t = START_NANOS + 16666667L; fling.step(t); t += 16666667L)
+            {
+            float step = (float)Math.hypot(fling.getStepDeltaX(), fling.getStepDeltaY());
+            assertTrue("Each frame moves less than the one before", step < lastStep);
+            lastStep = step;
+            x += fling.getStepDeltaX();
+            y += fling.getStepDeltaY();
+            frames++;
+            }
+        x += fling.getStepDeltaX();
+        y += fling.getStepDeltaY();
+        assertFalse(fling.isActive());
+        assertEquals(17, frames);
+        assertEquals(DISTANCE*0.6f, x, 0.01f);
+        assertEquals(DISTANCE*0.8f, y, 0.01f);
+        assertEquals(0.0f, fling.getRemainingDeltaX(), 0.0f);
+        assertFalse("A fling at rest doesn't step", fling.step(START_NANOS + 1000000000L));
+        }
+
+    @Test
+    public void droppedFramesDontChangeTheDistance()
+        {
+        FlingEngine fling = new FlingEngine();
+        fling.setDeceleration(DECELERATION);
+        fling.start(VELOCITY, 0.0f, START_NANOS);
+        long[] frameNanos = { 16000000L, 20000000L, 90000000L, 95000000L, 200000000L, 1000000000L };
+        float x = 0.0f;
+        for (long t : frameNanos)
+            {
+            fling.step(START_NANOS + t);
+            x += fling.getStepDeltaX();
+            }
+        assertFalse(fling.isActive());
+        assertEquals(DISTANCE, x, 0.01f);
+        }
+
+    @Test
+    public void remainingDeltaIsWhatsLeftToTravel()
+        {
+        FlingEngine fling = new FlingEngine();
+        fling.setDeceleration(DECELERATION);
+        fling.start(0.0f, -VELOCITY, START_NANOS);
+        fling.step(START_NANOS + 100000000L);
+        float travelled = fling.getStepDeltaY();
+        assertEquals(-(VELOCITY*0.1f - 0.5f*DECELERATION*0.01f), travelled, 0.01f);
+        assertEquals(-DISTANCE, travelled + fling.getRemainingDeltaY(), 0.01f);
+        assertEquals(0.0f, fling.getRemainingDeltaX(), 0.0f);
+        }
+
+    @Test
+    public void slowFlingsAreIgnored()
+        {
+        FlingEngine fling = new FlingEngine();
+        assertFalse(fling.start(FlingEngine.MIN_VELOCITY*0.5f, 0.0f, START_NANOS));
+        assertFalse(fling.isActive());
+        assertFalse(fling.step(START_NANOS + 16000000L));
+        assertEquals(0.0f, fling.getStepDeltaX(), 0.0f);
+        }
+
+    @Test
+    public void stopEndsTheFling()
+        {
+        FlingEngine fling = new FlingEngine();
+        fling.start(VELOCITY, 0.0f, START_NANOS);
+        fling.step(START_NANOS + 16000000L);
+        fling.stop();
+        assertFalse(fling.isActive());
+        assertEquals(0.0f, fling.getStepDeltaX(), 0.0f);
+        assertEquals(0.0f, fling.getRemainingDeltaX(), 0.0f);
+        }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decelerationMustBePositive()
+        {
+        new FlingEngine().setDeceleration(0.0f);
+        }
+    }
@@ -0,0 +1,194 @@
+package baydroid.android_pan_zoom_bitmap_view.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+
+
+/**
+ * The viewport math on a plain JVM: a 4000x3000 bitmap in a 1000x2000 (portrait) view, so zoomed to fit it's
+ * letterboxed top and bottom at 4 bitmap pixels per view pixel.
+ */
+public class ViewportEngineTest
+    {
+    private static final int VIEW_W = 1000;
+    private static final int VIEW_H = 2000;
+    private static final int BM_W = 4000;
+    private static final int BM_H = 3000;
+
+    private ViewportEngine engine;
+
+    @Before
+    public void setUp()
+        {
+        engine = new ViewportEngine();
+        engine.setBitmapSize(BM_W, BM_H);
+        }
+
+    @Test
+    public void zoomToFitLetterboxes()
+        {
+        assertTrue(engine.zoomToFit(VIEW_W, VIEW_H));
+        engine.layout(VIEW_W, VIEW_H);
+        assertTrue(engine.isZoomedToFit());
+        assertViewInBm(0, -2500, 4000, 5500);
+        assertEquals(0, engine.getBmShowingLeft());
+        assertEquals(0, engine.getBmShowingTop());
+        assertEquals(BM_W, engine.getBmShowingRight());
+        assertEquals(BM_H, engine.getBmShowingBottom());
+        assertEquals(0, engine.getViewShowingLeft());
+        assertEquals(625, engine.getViewShowingTop());
+        assertEquals(VIEW_W, engine.getViewShowingRight());
+        assertEquals(1375, engine.getViewShowingBottom());
+        assertEquals(4.0f, engine.computeScaleFactor(), 0.0f);
+        assertEquals(4, engine.computeSampleSize());
+        assertFalse("A second zoom to fit changes nothing", engine.zoomToFit(VIEW_W, VIEW_H));
+        }
+
+    @Test
+    public void layoutZoomsToFitTheFirstTime()
+        {
+        engine.layout(VIEW_W, VIEW_H);
+        assertTrue(engine.hasViewport());
+        assertTrue(engine.isZoomedToFit());
+        }
+
+    @Test
+    public void zoomToPixel1To1CentersOnThePoint()
+        {
+        engine.layout(VIEW_W, VIEW_H);
+        assertTrue(engine.zoomToPixel1To1(VIEW_W, VIEW_H, VIEW_W/2, VIEW_H/2));
+        engine.layout(VIEW_W, VIEW_H);
+        assertViewInBm(1500, 500, 2500, 2500);
+        assertEquals(1.0f, engine.computeScaleFactor(), 0.0f);
+        assertEquals(1, engine.computeSampleSize());
+        assertFalse(engine.isZoomedToFit());
+        assertEquals(1.0f, engine.getBmToViewScaleX(), 0.0f);
+        assertEquals(-1500.0f, engine.getBmToViewTranslateX(), 0.0f);
+        assertEquals(-500.0f, engine.getBmToViewTranslateY(), 0.0f);
+        }
+
+    @Test
+    public void panIsClampedToTheBitmap()
+        {
+        engine.layout(VIEW_W, VIEW_H);
+        engine.zoomToPixel1To1(VIEW_W, VIEW_H, VIEW_W/2, VIEW_H/2);
+        engine.layout(VIEW_W, VIEW_H);
+        assertTrue(engine.pan(100000, 100000));
+        assertViewInBm(3000, 1000, 4000, 3000);
+        assertFalse("Panning further past the edge changes nothing", engine.pan(10, 10));
+        assertTrue(engine.pan(-100000, -100000));
+        assertViewInBm(0, 0, 1000, 2000);
+        assertFalse(engine.pan(0, -5));
+        }
+
+    @Test
+    public void panIsCenteredAlongAnAxisTheBitmapFits()
+        {
+        engine.layout(VIEW_W, VIEW_H);
+        assertFalse("Zoomed to fit, the letterboxed axis can't move", engine.pan(0, 300));
+        assertViewInBm(0, -2500, 4000, 5500);
+        }
+
+    @Test
+    public void zoomIsLimitedByTheMaximumZoomOut()
+        {
+        engine.setMaxZoomOut(ViewportEngine.MAX_ZOOM_OUT_FITS);
+        engine.layout(VIEW_W, VIEW_H);
+        assertFalse(engine.zoom(VIEW_W, VIEW_H, 0.5f, VIEW_W/2, VIEW_H/2));
+        assertTrue(engine.isZoomedToFit());
+        }
+
+    @Test
+    public void subPixelPansAccumulate()
+        {
+        engine.layout(VIEW_W, VIEW_H);
+        engine.zoomToPixel1To1(VIEW_W, VIEW_H, VIEW_W/2, VIEW_H/2);
+        engine.layout(VIEW_W, VIEW_H);
+        engine.zoom(VIEW_W, VIEW_H, 8.0f, VIEW_W/2, VIEW_H/2);
+        engine.layout(VIEW_W, VIEW_H);
+        assertEquals(0.125f, engine.computeScaleFactor(), 0.0f);
+        float centerX = engine.getCenterX();
+        assertFalse("A 1 view pixel pan rounds away in whole bitmap pixels", engine.pan(1, 0));
+        assertEquals(centerX, engine.getCenterX(), 0.0f);
+
+        engine.setSubPixel(true);
+        assertTrue(engine.isSubPixel());
+        assertTrue(engine.pan(1.0f, 0.0f));
+        assertEquals(centerX + 0.125f, engine.getCenterX(), 1.0e-4f);
+        engine.layout(VIEW_W, VIEW_H);
+        assertEquals(8.0f, engine.getBmToViewScaleX(), 1.0e-4f);
+        }
+
+    @Test
+    public void subPixelChangesBelowTheEpsilonAreNotReported()
+        {
+        engine.setSubPixel(true);
+        engine.layout(VIEW_W, VIEW_H);
+        engine.zoomToPixel1To1(VIEW_W, VIEW_H, VIEW_W/2, VIEW_H/2);
+        engine.layout(VIEW_W, VIEW_H);
+        float centerX = engine.getCenterX();
+        assertFalse(engine.pan(0.02f, 0.0f));
+        assertFalse(engine.pan(0.02f, 0.0f));
+        assertTrue("The small pans add up to more than the epsilon", engine.pan(0.02f, 0.0f));
+        assertEquals(centerX + 0.06f, engine.getCenterX(), 1.0e-3f);
+        }
+
+    @Test
+    public void setViewportRestoresCenterAndScale()
+        {
+        engine.layout(VIEW_W, VIEW_H);
+        assertTrue(engine.setViewport(VIEW_W, VIEW_H, 1000.0f, 800.0f, 0.5f));
+        engine.layout(VIEW_W, VIEW_H);
+        assertEquals(0.5f, engine.computeScaleFactor(), 0.0f);
+        assertEquals(1000.0f, engine.getCenterX(), 1.0f);
+        assertEquals(800.0f, engine.getCenterY(), 1.0f);
+        }
+
+    @Test
+    public void setViewportToTheSameViewportChangesNothing()
+        {
+        engine.layout(VIEW_W, VIEW_H);
+        assertTrue(engine.setViewport(VIEW_W, VIEW_H, 1000.0f, 800.0f, 0.5f));
+        engine.layout(VIEW_W, VIEW_H);
+        assertFalse(engine.setViewport(VIEW_W, VIEW_H, engine.getCenterX(), engine.getCenterY(), engine.computeScaleFactor()));
+        }
+
+    @Test
+    public void setViewportToTheSameSubPixelViewportChangesNothing()
+        {
+        engine.setSubPixel(true);
+        engine.layout(VIEW_W, VIEW_H);
+        assertTrue(engine.setViewport(VIEW_W, VIEW_H, 1000.5f, 800.25f, 0.5f));
+        engine.layout(VIEW_W, VIEW_H);
+        assertFalse(engine.setViewport(VIEW_W, VIEW_H, engine.getCenterX(), engine.getCenterY(), engine.computeScaleFactor()));
+        assertTrue(engine.setViewport(VIEW_W, VIEW_H, engine.getCenterX() + 1.0f, engine.getCenterY(), engine.computeScaleFactor()));
+        }
+
+    @Test
+    public void mapPointsRoundTrips()
+        {
+        engine.layout(VIEW_W, VIEW_H);
+        float[] pts = { 0.0f, 0.0f, 4000.0f, 3000.0f };
+        engine.mapBmToView(pts, 0, pts, 0, 2);
+        assertEquals(0.0f, pts[0], 1.0e-3f);
+        assertEquals(625.0f, pts[1], 1.0e-3f);
+        assertEquals(1000.0f, pts[2], 1.0e-3f);
+        assertEquals(1375.0f, pts[3], 1.0e-3f);
+        engine.mapViewToBm(pts, 0, pts, 0, 2);
+        assertEquals(4000.0f, pts[2], 1.0e-2f);
+        assertEquals(3000.0f, pts[3], 1.0e-2f);
+        }
+
+    private void assertViewInBm(int left, int top, int right, int bottom)
+        {
+        assertEquals("left", left, engine.getViewInBmLeft());
+        assertEquals("top", top, engine.getViewInBmTop());
+        assertEquals("right", right, engine.getViewInBmRight());
+        assertEquals("bottom", bottom, engine.getViewInBmBottom());
+        }
+    }
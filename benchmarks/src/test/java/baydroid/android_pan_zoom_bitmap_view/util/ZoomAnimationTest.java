@@ -0,0 +1,114 @@
+package baydroid.android_pan_zoom_bitmap_view.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.animation.TimeInterpolator;
+
+import org.junit.Test;
+
+
+
+/**
+ * Animated zooms on a plain JVM: the scale is interpolated geometrically and the center linearly, and the last step
+ * lands exactly on the end.
+ */
+public class ZoomAnimationTest
+    {
+    private static final long START_NANOS = 5000000000L;
+    private static final long DURATION_NANOS = 100000000L;
+    private static final TimeInterpolator LINEAR = new TimeInterpolator()
+        {
+
+        public float getInterpolation(float input)
+            {
+            return input;
+            }
+
+        };
+    private static final TimeInterpolator EASE_OUT = new TimeInterpolator()
+        {
+
+        public float getInterpolation(float input)
+            {
+            float r = 1.0f - input;
+            return 1.0f - r*r*r;
+            }
+
+        };
+
+    @Test
+    public void endsExactlyAtTheEnd()
+        {
+        ZoomAnimation animation = new ZoomAnimation();
+        animation.start(4.0f, 100.0f, 200.0f, 0.25f, 1000.0f, 1500.0f, false, START_NANOS, DURATION_NANOS, EASE_OUT);
+        assertTrue(animation.isActive());
+        long t = START_NANOS + 16666667L;
+        int frames = 0;
+        while (animation.step(t))
+            {
+            t += 16666667L;
+            frames++;
+            }
+        assertFalse(animation.isActive());
+        assertEquals("Frames at 1/6 to 5/6 of the way, then the end", 5, frames);
+        assertEquals(0.25f, animation.getScaleFactor(), 0.0f);
+        assertEquals(1000.0f, animation.getCenterX(), 0.0f);
+        assertEquals(1500.0f, animation.getCenterY(), 0.0f);
+        assertFalse(animation.step(t + 16666667L));
+        }
+
+    @Test
+    public void theFirstFrameHasMoved()
+        {
+        ZoomAnimation animation = new ZoomAnimation();
+        animation.start(1.0f, 0.0f, 0.0f, 1.0f, 100.0f, 0.0f, false, START_NANOS, DURATION_NANOS, LINEAR);
+        assertTrue(animation.step(START_NANOS + 20000000L));
+        assertEquals(20.0f, animation.getCenterX(), 1.0e-3f);
+        }
+
+    @Test
+    public void aFrameBeforeTheStartIsAtTheStart()
+        {
+        ZoomAnimation animation = new ZoomAnimation();
+        animation.start(1.0f, 0.0f, 0.0f, 1.0f, 100.0f, 0.0f, false, START_NANOS, DURATION_NANOS, LINEAR);
+        assertTrue(animation.step(START_NANOS - 5000000L));
+        assertEquals(0.0f, animation.getCenterX(), 0.0f);
+        }
+
+    @Test
+    public void scaleIsGeometricAndCenterLinear()
+        {
+        ZoomAnimation animation = new ZoomAnimation();
+        animation.start(4.0f, 100.0f, 200.0f, 1.0f, 300.0f, 600.0f, true, START_NANOS, DURATION_NANOS, LINEAR);
+        assertTrue(animation.step(START_NANOS + DURATION_NANOS/2));
+        assertEquals("Half way from 4 to 1 geometrically is 2", 2.0f, animation.getScaleFactor(), 1.0e-4f);
+        assertEquals(200.0f, animation.getCenterX(), 1.0e-3f);
+        assertEquals(400.0f, animation.getCenterY(), 1.0e-3f);
+        assertTrue(animation.isToFit());
+        }
+
+    @Test
+    public void aSlowFrameIsABiggerStep()
+        {
+        ZoomAnimation animation = new ZoomAnimation();
+        animation.start(1.0f, 0.0f, 0.0f, 1.0f, 100.0f, 0.0f, false, START_NANOS, DURATION_NANOS, LINEAR);
+        assertTrue(animation.step(START_NANOS + 75000000L));
+        assertEquals(75.0f, animation.getCenterX(), 1.0e-3f);
+        assertFalse(animation.step(START_NANOS + 400000000L));
+        assertEquals(100.0f, animation.getCenterX(), 0.0f);
+        }
+
+    @Test
+    public void stopLeavesTheAnimationWhereItIs()
+        {
+        ZoomAnimation animation = new ZoomAnimation();
+        animation.start(1.0f, 0.0f, 0.0f, 1.0f, 100.0f, 0.0f, false, START_NANOS, DURATION_NANOS, LINEAR);
+        animation.step(START_NANOS + 25000000L);
+        animation.stop();
+        assertFalse(animation.isActive());
+        assertFalse(animation.step(START_NANOS + 50000000L));
+        assertEquals(25.0f, animation.getCenterX(), 1.0e-3f);
+        }
+    }
@@ -0,0 +1,158 @@
+package baydroid.android_pan_zoom_bitmap_view.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.Bitmap;
+import android.view.MotionEvent;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+
+
+/**
+ * Replaying a recorded gesture on Robolectric: a 2000x1500 bitmap in a 500x1000 view is double tapped from zoomed to
+ * fit to pixel 1 to 1 on its center, scrolled 200 view pixels right, then flung into its bottom edge. The test
+ * stands in for the Choreographer while recording, running a frame every 16ms whenever the view has asked for one,
+ * and lays the view out after each as onDraw() would. A fresh view replaying the saved trace must end at the same
+ * viewport, on the same frames, with the same invalidates: at most one a frame, however many touch events arrive, plus
+ * one as each gesture comes to rest (to redraw filtered).
+ */
+@RunWith(RobolectricTestRunner.class)
+public class GestureTraceReplayTest
+    {
+    private static final int VIEW_W = 500;
+    private static final int VIEW_H = 1000;
+    private static final int BM_W = 2000;
+    private static final int BM_H = 1500;
+    private static final long FRAME_MILLIS = 16;
+    private static final int GESTURES = 3;
+    private static final int GESTURE_GAP_FRAMES = 15; // Robolectric's VelocityTracker can still see the last gesture's samples from the past 200ms.
+
+    private TouchPanZoomBitmapView view;
+    private long nowMillis = 1000;   // The time of the next touch event or frame (in milliseconds, SystemClock.uptimeMillis() time base).
+    private long downMillis = 0;     // The time of the gesture's ACTION_DOWN.
+    private int frames = 0;          // Frames run while recording.
+
+    @Test
+    public void replayEndsWhereTheRecordingDid() throws IOException
+        {
+        view = newView();
+        ViewMetrics recordedMetrics = new ViewMetrics();
+        view.setMetrics(recordedMetrics);
+        GestureTrace trace = new GestureTrace();
+        view.setGestureTrace(trace);
+
+        tap(250, 500);
+        runFrames(6);
+        tap(250, 500);
+        runFrames(20);
+        assertFalse("The double tap zoom has finished", view.isZoomAnimating());
+        assertFalse(view.isZoomedToFit());
+
+        touch(MotionEvent.ACTION_DOWN, 300, 500);
+        for (int i = 1; i <= 10; i++)
+            {
+            runFrames(1);
+            touch(MotionEvent.ACTION_MOVE, 300 - 20*i, 500);
+            }
+        for (int i = 0; i < 12; i++)
+            {
+            runFrames(1);
+            touch(MotionEvent.ACTION_MOVE, 100, 500); // Held still, so lifting doesn't fling.
+            }
+        touch(MotionEvent.ACTION_UP, 100, 500);
+        runFrames(2);
+        assertFalse(view.isFlinging());
+        runFrames(GESTURE_GAP_FRAMES);
+
+        touch(MotionEvent.ACTION_DOWN, 250, 700);
+        for (int i = 1; i <= 5; i++)
+            {
+            runFrames(1);
+            touch(MotionEvent.ACTION_MOVE, 250, 700 - 40*i);
+            }
+        touch(MotionEvent.ACTION_UP, 250, 500);
+        assertTrue(view.isFlinging());
+        runFrames(60);
+        assertFalse("The fling has reached the edge", view.isFlinging());
+        view.setGestureTrace(null);
+
+        PanZoomBitmapView.ViewportState recorded = view.getViewportState(new PanZoomBitmapView.ViewportState());
+        assertNotNull(recorded);
+        assertFalse(recorded.zoomedToFit);
+        assertEquals(1.0f, recorded.scaleFactor, 0.0f);
+        assertEquals(BM_W/2 + 200, recorded.centerX, 0.5f);
+        assertEquals(BM_H - VIEW_H/2, recorded.centerY, 0.5f);
+        assertEquals(frames, trace.getFrameCount());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        trace.writeTo(out);
+        GestureTrace saved = GestureTrace.readFrom(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(trace.getMotionEventCount(), saved.getMotionEventCount());
+        assertEquals(frames, saved.getFrameCount());
+
+        GestureTrace.ReplayResult result = saved.replay(newView());
+        assertEquals(trace.getMotionEventCount(), result.getMotionEvents());
+        assertEquals(frames, result.getFrames());
+        PanZoomBitmapView.ViewportState replayed = result.getViewport();
+        assertNotNull(replayed);
+        assertEquals(recorded.zoomedToFit, replayed.zoomedToFit);
+        assertEquals(recorded.scaleFactor, replayed.scaleFactor, 0.0f);
+        assertEquals(recorded.centerX, replayed.centerX, 0.0f);
+        assertEquals(recorded.centerY, replayed.centerY, 0.0f);
+
+        ViewMetrics metrics = result.getMetrics();
+        assertTrue(metrics.getInvalidates() > 0);
+        assertEquals(recordedMetrics.getInvalidates(), metrics.getInvalidates());
+        assertTrue("At most one invalidate a frame, and one as each gesture comes to rest", metrics.getInvalidates() <= result.getFrames() + GESTURES);
+        assertEquals(recordedMetrics.getFlingFrames(), metrics.getFlingFrames());
+        assertTrue(metrics.getFlingFrames() > 0);
+        }
+
+    private static TouchPanZoomBitmapView newView()
+        {
+        TouchPanZoomBitmapView v = new TouchPanZoomBitmapView(RuntimeEnvironment.getApplication());
+        v.setImageBitmap(Bitmap.createBitmap(BM_W, BM_H, Bitmap.Config.ARGB_8888));
+        v.layout(0, 0, VIEW_W, VIEW_H);
+        v.layoutFrame(); // Zooms to fit, as the first draw would.
+        return v;
+        }
+
+    private void tap(float x, float y)
+        {
+        touch(MotionEvent.ACTION_DOWN, x, y);
+        nowMillis += 50;
+        touch(MotionEvent.ACTION_UP, x, y);
+        }
+
+    private void touch(int action, float x, float y)
+        {
+        if (action == MotionEvent.ACTION_DOWN) downMillis = nowMillis;
+        MotionEvent ev = MotionEvent.obtain(downMillis, nowMillis, action, x, y, 0);
+        view.onTouchEvent(ev);
+        ev.recycle();
+        }
+
+    // Run a frame every FRAME_MILLIS, as the Choreographer would, when the view has asked for one.
+    private void runFrames(int count)
+        {
+        for (int i = 0; i < count; i++)
+            {
+            nowMillis += FRAME_MILLIS;
+            if (!view.isFrameScheduled()) continue;
+            view.doFrame(nowMillis*1000000L);
+            if (view.hasLoadedBitmap()) view.layoutFrame();
+            frames++;
+            }
+        }
+    }
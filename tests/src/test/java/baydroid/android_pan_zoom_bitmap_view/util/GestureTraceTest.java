@@ -0,0 +1,76 @@
+package baydroid.android_pan_zoom_bitmap_view.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+
+
+/**
+ * The gesture trace format on a plain JVM (frame records need no framework code): times are written as zigzag
+ * varints of the change since the last record, which readFrom() must read back byte for byte, whatever their size or
+ * sign.
+ */
+public class GestureTraceTest
+    {
+    private static final int HEADER_BYTES = 5; // Magic and version, before the varint view size.
+
+    @Test
+    public void varintsAreZigzagSevenBitsLowFirst() throws IOException
+        {
+        GestureTrace trace = new GestureTrace();
+        trace.begin(1080, 2340);
+        trace.recordFrame(0L);
+        trace.recordFrame(-1L);
+        trace.recordFrame(63L);
+        byte[] expected = {
+            (byte)0xF0, 0x10,         // 1080, zigzag 2160.
+            (byte)0xC8, 0x24,         // 2340, zigzag 4680.
+            2, 0,                     // Frame, 0 after the start.
+            2, 1,                     // Frame, -1 after that.
+            2, (byte)0x80, 0x01 };    // Frame, 64 after that: zigzag 128 takes a second byte.
+        byte[] bytes = write(trace);
+        assertEquals(HEADER_BYTES + expected.length, bytes.length);
+        for (int i = 0; i < expected.length; i++) assertEquals("Byte " + (HEADER_BYTES + i), expected[i], bytes[HEADER_BYTES + i]);
+        }
+
+    @Test
+    public void roundTripsExtremeTimes() throws IOException
+        {
+        GestureTrace trace = new GestureTrace();
+        trace.begin(65536, 1);
+        long[] times = { 16666667L, 1000000000000L, Long.MAX_VALUE, Long.MIN_VALUE, -1L, 0L };
+        for (long t : times) trace.recordFrame(t);
+        byte[] bytes = write(trace);
+        assertEquals(trace.getByteCount(), bytes.length);
+
+        GestureTrace read = GestureTrace.readFrom(new ByteArrayInputStream(bytes));
+        assertEquals(65536, read.getViewWidth());
+        assertEquals(1, read.getViewHeight());
+        assertEquals(times.length, read.getFrameCount());
+        assertEquals(0, read.getMotionEventCount());
+        assertArrayEquals(bytes, write(read));
+        }
+
+    @Test(expected = IOException.class)
+    public void rejectsATruncatedVarint() throws IOException
+        {
+        GestureTrace trace = new GestureTrace();
+        trace.begin(1080, 2340);
+        trace.recordFrame(Long.MAX_VALUE);
+        byte[] bytes = write(trace);
+        GestureTrace.readFrom(new ByteArrayInputStream(bytes, 0, bytes.length - 1));
+        }
+
+    private static byte[] write(GestureTrace trace) throws IOException
+        {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        trace.writeTo(out);
+        return out.toByteArray();
+        }
+    }
@@ -0,0 +1,46 @@
+package baydroid.android_pan_zoom_bitmap_view.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.BitmapRegionDecoder;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+
+
+
+/**
+ * The image cache on Robolectric: a tiled image is counted by the tiles it holds, not by its tile cache's budget
+ * (which by default is as big as the whole image cache).
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ImageCacheTest
+    {
+    private static final TiledImageSource.DecoderFactory NO_DECODER = new TiledImageSource.DecoderFactory()
+        {
+        @Override
+        public BitmapRegionDecoder newDecoder() throws IOException
+            {
+            throw new IOException("No decoder in this test");
+            }
+        };
+
+    @Test
+    public void tiledEntrySurvivesPut()
+        {
+        ImageCache cache = new ImageCache(ImageCache.DEFAULT_MAX_BYTES);
+        TiledImageSource tiles = new TiledImageSource(NO_DECODER, 20000, 15000, 256, TiledImageSource.DEFAULT_CACHE_BYTES, 1);
+        ImageCache.Entry e = new ImageCache.Entry(null, tiles, null, 20000, 15000, null);
+        assertTrue(e.getByteCount() < ImageCache.DEFAULT_MAX_BYTES);
+        cache.put("tiled", e);
+        assertEquals(e.getByteCount(), cache.getSizeBytes());
+        assertSame(e, cache.take("tiled"));
+        assertEquals(TiledImageSource.DEFAULT_CACHE_BYTES, tiles.getCacheBytes());
+        tiles.recycle();
+        }
+    }